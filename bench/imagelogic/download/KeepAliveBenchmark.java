@@ -0,0 +1,84 @@
+package imagelogic.download;
+
+import imagelogic.utils.ByteArrayPool;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * ImageSimpleHttpDownloader复用连接的基准测试，用main运行。
+ * 对带延迟的本地服务端依次请求200、404和中途断开的地址，打印耗时和服务端接受的连接数。
+ * 复用正常的时候开启keep-alive只需要一两个连接，中途断开的响应不能放回连接池。
+ * 参数：延迟毫秒数，默认50。
+ *
+ */
+public class KeepAliveBenchmark {
+	private static final int REQUESTS = 20;
+
+	public static void main(String[] args) throws Exception {
+		final long latency = args.length > 0 ? Long.parseLong(args[0]) : 50;
+		run(latency, false);
+		run(latency, true);
+		System.exit(0);
+	}
+
+	private static void run(long latency, boolean keepAlive) throws Exception {
+		LocalHttpServer server = new LocalHttpServer(latency);
+		ImageSimpleHttpDownloader downloader = new ImageSimpleHttpDownloader(
+				keepAlive);
+		downloader.setHostBreaker(null);
+		final ByteArrayPool pool = ByteArrayPool.getDefault();
+		long start = System.nanoTime();
+		int ok = 0;
+		for (int i = 0; i < REQUESTS; i++) {
+			ByteArrayPool.Buffer buffer = downloader.downloadPooledBytesByUrl(
+					server.getUrl("/img" + i), null, pool);
+			if (buffer != null && buffer.length == LocalHttpServer.BODY_SIZE) {
+				ok++;
+			}
+			if (buffer != null) {
+				buffer.release();
+			}
+		}
+		long okMs = elapsedMs(start);
+		int okConnections = server.getConnectionCount();
+
+		start = System.nanoTime();
+		for (int i = 0; i < REQUESTS / 4; i++) {
+			downloader.downloadPooledBytesByUrl(server.getUrl("/missing"),
+					null, pool);
+		}
+		long missingMs = elapsedMs(start);
+		int missingConnections = server.getConnectionCount() - okConnections;
+		int missingRequests = server.getRequestCount() - REQUESTS;
+
+		start = System.nanoTime();
+		boolean dropFailed = downloader.downloadPooledBytesByUrl(
+				server.getUrl("/drop"), null, pool) == null;
+		long dropMs = elapsedMs(start);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		start = System.nanoTime();
+		for (int i = 0; i < REQUESTS / 4; i++) {
+			out.reset();
+			downloader.downloadToLocalStreamByUrl(server.getUrl("/img"), out);
+		}
+		long streamMs = elapsedMs(start);
+
+		System.out.println("keepAlive=" + keepAlive + " latency=" + latency
+				+ "ms");
+		System.out.println("  " + REQUESTS + " x 200: " + ok + " ok, "
+				+ okMs + "ms, " + okConnections + " connections");
+		System.out.println("  " + REQUESTS / 4 + " x 404: " + missingMs
+				+ "ms, " + missingRequests + " requests, " + missingConnections
+				+ " connections");
+		System.out.println("  drop mid-body: " + (dropFailed ? "failed" : "ok?")
+				+ ", " + dropMs + "ms");
+		System.out.println("  " + REQUESTS / 4 + " x stream: " + streamMs
+				+ "ms, " + server.getConnectionCount() + " connections total");
+		server.close();
+	}
+
+	private static long elapsedMs(long startNanos) {
+		return (System.nanoTime() - startNanos) / 1000000;
+	}
+}
@@ -0,0 +1,155 @@
+package imagelogic.download;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基准测试用的本地HTTP服务端，支持keep-alive，每个请求先等待固定的延迟，模拟移动网络的往返时间。
+ * /missing 返回404，/drop 响应体发送一部分就断开，/redir<n> 重定向到/img<n>，
+ * /chunked 分块传输，其他地址返回固定的图片数据。
+ *
+ */
+public class LocalHttpServer implements Runnable {
+	public static final int BODY_SIZE = 48 * 1024;
+
+	private final ServerSocket mSocket;
+	private final long mLatencyMs;
+	private final byte[] mBody = new byte[BODY_SIZE];
+	private final AtomicInteger mConnections = new AtomicInteger();// 接受的连接数
+	private final AtomicInteger mRequests = new AtomicInteger();// 处理的请求数
+
+	public LocalHttpServer(long latencyMs) throws IOException {
+		mLatencyMs = latencyMs;
+		new Random(0).nextBytes(mBody);
+		mSocket = new ServerSocket(0, 256);
+		Thread thread = new Thread(this, "LocalHttpServer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public String getUrl(String path) {
+		return "http://127.0.0.1:" + mSocket.getLocalPort() + path;
+	}
+
+	public byte[] getBody() {
+		return mBody;
+	}
+
+	public int getConnectionCount() {
+		return mConnections.get();
+	}
+
+	public int getRequestCount() {
+		return mRequests.get();
+	}
+
+	public void close() {
+		try {
+			mSocket.close();
+		} catch (IOException ignored) {
+		}
+	}
+
+	@Override
+	public void run() {
+		while (!mSocket.isClosed()) {
+			try {
+				final Socket socket = mSocket.accept();
+				mConnections.incrementAndGet();
+				Thread thread = new Thread("LocalHttpConnection") {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				};
+				thread.setDaemon(true);
+				thread.start();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	// 一个连接上按顺序处理请求，直到客户端关闭或者请求Connection: close
+	private void serve(Socket socket) {
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), "ISO-8859-1"));
+			// 响应头和响应体一次发出，避免Nagle和延迟确认多等40ms
+			OutputStream out = new BufferedOutputStream(
+					socket.getOutputStream(), 64 * 1024);
+			String requestLine;
+			while ((requestLine = reader.readLine()) != null) {
+				if (requestLine.length() == 0) {
+					continue;
+				}
+				boolean close = false;
+				String line;
+				while ((line = reader.readLine()) != null && line.length() > 0) {
+					if (line.toLowerCase().startsWith("connection:")
+							&& line.toLowerCase().contains("close")) {
+						close = true;
+					}
+				}
+				mRequests.incrementAndGet();
+				if (mLatencyMs > 0) {
+					Thread.sleep(mLatencyMs);
+				}
+				String[] parts = requestLine.split(" ");
+				if (!respond(out, parts.length > 1 ? parts[1] : "/") || close) {
+					break;
+				}
+			}
+		} catch (Exception ignored) {
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	// 返回false表示响应以后关闭连接
+	private boolean respond(OutputStream out, String path) throws IOException {
+		if (path.startsWith("/missing")) {
+			writeHead(out, "404 Not Found", "Content-Length: 9\r\n");
+			out.write("not found".getBytes("ISO-8859-1"));
+		} else if (path.startsWith("/drop")) {
+			writeHead(out, "200 OK", "Content-Length: " + BODY_SIZE + "\r\n");
+			out.write(mBody, 0, BODY_SIZE / 4);
+			out.flush();
+			return false;
+		} else if (path.startsWith("/redir")) {
+			writeHead(out, "302 Found", "Location: /img"
+					+ path.substring("/redir".length())
+					+ "\r\nContent-Length: 0\r\n");
+		} else if (path.startsWith("/chunked")) {
+			writeHead(out, "200 OK", "Transfer-Encoding: chunked\r\n");
+			for (int i = 0; i < BODY_SIZE; i += 5000) {
+				int count = Math.min(5000, BODY_SIZE - i);
+				out.write((Integer.toHexString(count) + "\r\n")
+						.getBytes("ISO-8859-1"));
+				out.write(mBody, i, count);
+				out.write("\r\n".getBytes("ISO-8859-1"));
+			}
+			out.write("0\r\n\r\n".getBytes("ISO-8859-1"));
+		} else {
+			writeHead(out, "200 OK", "Content-Length: " + BODY_SIZE + "\r\n");
+			out.write(mBody);
+		}
+		out.flush();
+		return true;
+	}
+
+	private static void writeHead(OutputStream out, String status,
+			String headers) throws IOException {
+		out.write(("HTTP/1.1 " + status + "\r\nETag: \"bench\"\r\n" + headers + "\r\n")
+				.getBytes("ISO-8859-1"));
+	}
+}
@@ -0,0 +1,108 @@
+package imagelogic.download;
+
+import imagelogic.utils.ByteArrayPool;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NioImageDownloader和ImageSimpleHttpDownloader的吞吐量对比，用main运行。
+ * 本地服务端每个请求延迟固定时间，模拟高延迟网络；阻塞下载器受线程数限制，NIO下载器受连接数限制。
+ * 先检查分块传输、重定向和404的结果，再跑两轮，第一轮用来预热。
+ * 参数：延迟毫秒数，默认200；请求数，默认64。
+ *
+ */
+public class NioDownloadBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		final long latency = args.length > 0 ? Long.parseLong(args[0]) : 200;
+		final int requests = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		LocalHttpServer server = new LocalHttpServer(latency);
+		NioImageDownloader nio = new NioImageDownloader();
+		ImageSimpleHttpDownloader simple = new ImageSimpleHttpDownloader(false);
+		simple.setHostBreaker(null);
+
+		byte[] body = server.getBody();
+		System.out.println("chunked ok: "
+				+ Arrays.equals(body,
+						nio.downloadBytesByUrl(server.getUrl("/chunked"))));
+		System.out.println("redirect ok: "
+				+ Arrays.equals(body,
+						nio.downloadBytesByUrl(server.getUrl("/redir1"))));
+		System.out.println("404 is null: "
+				+ (nio.downloadBytesByUrl(server.getUrl("/missing")) == null));
+
+		for (int round = 0; round < 2; round++) {
+			System.out.println("round " + round + ", latency " + latency
+					+ "ms, " + requests + " requests");
+			blocking("  simple x4", simple, server, 4, requests);
+			blocking("  nio sync x4", nio, server, 4, requests);
+			blocking("  nio sync x16", nio, server, 16, requests);
+			async("  nio async", nio, server, requests);
+		}
+		server.close();
+		System.exit(0);
+	}
+
+	// 固定数量的线程同步下载
+	private static void blocking(String name, final ImageDownloader downloader,
+			final LocalHttpServer server, int threads, int requests)
+			throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final AtomicInteger ok = new AtomicInteger();
+		long start = System.nanoTime();
+		for (int i = 0; i < requests; i++) {
+			final String url = server.getUrl("/img" + i);
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					byte[] data = downloader.downloadBytesByUrl(url);
+					if (data != null && data.length == LocalHttpServer.BODY_SIZE) {
+						ok.incrementAndGet();
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+		print(name, ok.get(), start);
+	}
+
+	// 全部放进NIO下载器的队列，不占用调用线程
+	private static void async(String name, NioImageDownloader downloader,
+			LocalHttpServer server, int requests) throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(requests);
+		final AtomicInteger ok = new AtomicInteger();
+		long start = System.nanoTime();
+		for (int i = 0; i < requests; i++) {
+			downloader.enqueue(server.getUrl("/img" + i),
+					new NioImageDownloader.Callback() {
+						@Override
+						public void onComplete(String url,
+								ByteArrayPool.Buffer body) {
+							if (body.length == LocalHttpServer.BODY_SIZE) {
+								ok.incrementAndGet();
+							}
+							body.release();
+							latch.countDown();
+						}
+
+						@Override
+						public void onFailure(String url, int code) {
+							latch.countDown();
+						}
+					});
+		}
+		latch.await(1, TimeUnit.MINUTES);
+		print(name, ok.get(), start);
+	}
+
+	private static void print(String name, int ok, long startNanos) {
+		System.out.println(name + ": " + ok + " ok, "
+				+ (System.nanoTime() - startNanos) / 1000000 + "ms");
+	}
+}
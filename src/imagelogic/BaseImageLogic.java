@@ -2,15 +2,21 @@ package imagelogic;
 
 import imagelogic.ImageLogic.BitmapFinishCallback;
 import imagelogic.display.ImageDisplayConfig;
+import imagelogic.download.HostCircuitBreaker;
+import imagelogic.download.LocalImageLoader;
+import imagelogic.download.ProgressiveJpegOutputStream.PreviewListener;
 import imagelogic.exception.TaskCancelledException;
 import imagelogic.imageview.CacheableDrawable;
 import imagelogic.imageview.ImageViewImpl;
 import imagelogic.threads.ImageAsyncTask;
+import imagelogic.threads.PriorityLifoExecutor;
 import imagelogic.utils.Log;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import android.annotation.SuppressLint;
@@ -46,8 +52,61 @@ public abstract class BaseImageLogic {
 	private final Map<Integer, String> cacheKeysForImageAwares = Collections
 			.synchronizedMap(new HashMap<Integer, String>());
 
+	// 正在加载的任务，key是图片地址，解码大小和回调，只在主线程访问
+	private final Map<String, BitmapLoadAndDisplayTask> mInFlightTasks = new HashMap<String, BitmapLoadAndDisplayTask>();
+
+	// 合并加载任务的key，同一个地址解码成同样大小并且回调相同的请求共用一个任务，回调会处理bitmap，不同的回调不能共用结果
+	private static String getLoadKey(String uri, ImageDisplayConfig config,
+			BitmapFinishCallback bitmapFinishCallback) {
+		String key = uri + "#" + config.getBitmapWidth() + "x"
+				+ config.getBitmapHeight();
+		if (bitmapFinishCallback != null) {
+			key += "#" + System.identityHashCode(bitmapFinishCallback);
+		}
+		return key;
+	}
+
+	/**
+	 * @Title: joinInFlightTask
+	 * @Description: 同一个图片已经在加载的时候，把imageView加入到这个任务中，不再新建任务
+	 * @param @param imageview
+	 * @param @param uri
+	 * @param @param config
+	 * @param @param bitmapFinishCallback
+	 * @return boolean true 已经加入正在加载的任务
+	 * @throws
+	 */
+	protected boolean joinInFlightTask(ImageViewImpl imageview, String uri,
+			ImageDisplayConfig config, BitmapFinishCallback bitmapFinishCallback) {
+		BitmapLoadAndDisplayTask task = mInFlightTasks.get(getLoadKey(uri,
+				config, bitmapFinishCallback));
+		if (task == null || task.isCancelled()
+				|| task.bitmapFinishCallback != bitmapFinishCallback) {
+			return false;
+		}
+		// 新的imageView加入，按可见优先级重新排队
+		task.subscribe(imageview, config, bitmapFinishCallback,
+				PriorityLifoExecutor.PRIORITY_VISIBLE);
+		imageview.setImageDrawable(new DefaultDrawable(mResources, config
+				.getLoadingBitmap(), task));
+		Log.d(TAG, "合并到正在加载的任务:" + uri);
+		return true;
+	}
+
+	// 登记正在加载的任务
+	protected void registerInFlightTask(BitmapLoadAndDisplayTask task) {
+		mInFlightTasks.put(task.mLoadKey, task);
+	}
+
+	// 任务结束，取消登记
+	private void unregisterInFlightTask(BitmapLoadAndDisplayTask task) {
+		if (mInFlightTasks.get(task.mLoadKey) == task) {
+			mInFlightTasks.remove(task.mLoadKey);
+		}
+	}
+
 	// 是否滚动暂停
-	protected boolean waitIfPaused(String key, ImageViewImpl imageview) {
+	protected boolean waitIfPaused(BitmapLoadAndDisplayTask task) {
 		if (mPauseWork) {
 			synchronized (mPauseWorkLock) {
 				if (mPauseWork) {
@@ -59,7 +118,25 @@ public abstract class BaseImageLogic {
 				}
 			}
 		}
-		return isTaskNotActual(key, imageview);
+		return task.isTaskNotActual();
+	}
+
+	/**
+	 * @Title: updateTaskPriority
+	 * @Description: 修改imageView正在加载的任务的优先级，例如列表滑动时把刚滑出屏幕的imageView降为即将可见
+	 * @param @param imageview
+	 * @param @param priority PriorityLifoExecutor.PRIORITY_*
+	 * @return boolean false imageView没有正在加载的任务
+	 * @throws
+	 */
+	protected static boolean updateTaskPriority(ImageViewImpl imageview,
+			int priority) {
+		final BitmapLoadAndDisplayTask task = getBitmapTaskFromImageView(imageview);
+		if (task == null || task.isCancelled()) {
+			return false;
+		}
+		task.updatePriority(imageview, priority);
+		return true;
 	}
 
 	// 删除图片ID对应的唯一key
@@ -87,8 +164,11 @@ public abstract class BaseImageLogic {
 		if (bitmapWorkerTask != null) {
 			final String bitmapData = bitmapWorkerTask.uri;
 			if (bitmapData == null || !bitmapData.equals(url)) {
-				bitmapWorkerTask.cancel(true);
+				bitmapWorkerTask.detach(imageview);
 			} else {
+				// 重新绑定同一张图片，排到最前面
+				bitmapWorkerTask.updatePriority(imageview,
+						PriorityLifoExecutor.PRIORITY_VISIBLE);
 				return false;
 			}
 		}
@@ -103,7 +183,7 @@ public abstract class BaseImageLogic {
 			if (bitmapWorkerTask.isCacheThread()) {
 				return true;
 			} else if (bitmapData == null || !bitmapData.equals(url)) {
-				bitmapWorkerTask.cancel(true);
+				bitmapWorkerTask.detach(imageview);
 			} else {
 				return false;
 			}
@@ -147,52 +227,130 @@ public abstract class BaseImageLogic {
 	protected void stop() {
 		if (cacheKeysForImageAwares != null)
 			cacheKeysForImageAwares.clear();
+		mInFlightTasks.clear();
 	}
 
-	private void checkTaskNotActual(String key, ImageViewImpl imageview)
-			throws TaskCancelledException {
-		checkViewCollected(imageview);
-		checkViewReused(key, imageview);
-	}
+	// 等待图片的imageView
+	private static class Subscriber {
+		final ImageViewImpl imageview;
+		final ImageDisplayConfig displayConfig;
+		final BitmapFinishCallback bitmapFinishCallback;
+		int priority;// 加载优先级
 
-	private void checkViewCollected(ImageViewImpl imageview)
-			throws TaskCancelledException {
-		if (isViewCollected(imageview)) {
-			throw new TaskCancelledException();
-		}
-	}
-
-	private void checkViewReused(String key, ImageViewImpl imageview)
-			throws TaskCancelledException {
-		if (isViewReused(key, imageview)) {
-			throw new TaskCancelledException();
+		Subscriber(ImageViewImpl imageview, ImageDisplayConfig displayConfig,
+				BitmapFinishCallback bitmapFinishCallback, int priority) {
+			this.imageview = imageview;
+			this.displayConfig = displayConfig;
+			this.bitmapFinishCallback = bitmapFinishCallback;
+			this.priority = priority;
 		}
 	}
 
-	// 图片下载显示的异步任务
+	// 图片下载显示的异步任务，同一个图片的多个imageView共用一个任务
 	protected class BitmapLoadAndDisplayTask extends
-			ImageAsyncTask<Object, Void, CacheableDrawable> {
-		private ImageViewImpl imageview;
+			ImageAsyncTask<Object, Bitmap, CacheableDrawable> implements
+			PreviewListener {
 		private final ImageDisplayConfig displayConfig;
 		private final BitmapFinishCallback bitmapFinishCallback;
 		protected String uri;
+		private final String mLoadKey;
 		private volatile boolean mFromCache;
-		private int retryCount = 1;
-		private final WeakReference<ImageViewImpl> imageViewReference;
+		private int retryCount = 2;// 网络请求最多尝试次数
+		// 等待这个任务结果的imageView
+		private final List<Subscriber> mSubscribers = new ArrayList<Subscriber>();
 
 		public boolean isCacheThread() {
 			return mFromCache;
 		}
 
-		public BitmapLoadAndDisplayTask(ImageViewImpl imageview,
+		public BitmapLoadAndDisplayTask(String uri, ImageViewImpl imageview,
 				ImageDisplayConfig config,
 				BitmapFinishCallback bitmapFinishCallback, boolean fromCache) {
-			this.imageview = imageview;
+			this.uri = uri;
 			this.displayConfig = config;
 			this.bitmapFinishCallback = bitmapFinishCallback;
-			this.imageViewReference = new WeakReference<ImageViewImpl>(
-					imageview);
+			this.mLoadKey = getLoadKey(uri, config, bitmapFinishCallback);
 			this.mFromCache = fromCache;
+			subscribe(imageview, config, bitmapFinishCallback,
+					PriorityLifoExecutor.PRIORITY_VISIBLE);
+		}
+
+		// 加入一个等待结果的imageView
+		void subscribe(ImageViewImpl imageview, ImageDisplayConfig config,
+				BitmapFinishCallback bitmapFinishCallback, int priority) {
+			synchronized (mSubscribers) {
+				mSubscribers.add(new Subscriber(imageview, config,
+						bitmapFinishCallback, priority));
+			}
+			updatePriority();
+		}
+
+		// 修改imageView的优先级，任务按所有imageView中最高的优先级重新排队
+		void updatePriority(ImageViewImpl imageview, int priority) {
+			synchronized (mSubscribers) {
+				for (Subscriber subscriber : mSubscribers) {
+					if (subscriber.imageview.getImageViewId() == imageview
+							.getImageViewId()) {
+						subscriber.priority = priority;
+					}
+				}
+			}
+			updatePriority();
+		}
+
+		private void updatePriority() {
+			int priority = PriorityLifoExecutor.PRIORITY_PREFETCH;
+			synchronized (mSubscribers) {
+				for (Subscriber subscriber : mSubscribers) {
+					priority = Math.min(priority, subscriber.priority);
+				}
+			}
+			setPriority(priority);
+		}
+
+		// 还在排队的时候imageView都已经被回收或者重用，不再执行
+		@Override
+		protected boolean isObsolete() {
+			return mExitTasksEarly || isTaskNotActual();
+		}
+
+		@Override
+		protected String getHost() {
+			return HostCircuitBreaker.hostOf(uri);
+		}
+
+		/**
+		 * imageView换成别的图片，不再等待这个任务，最后一个imageView离开的时候才取消任务
+		 */
+		void detach(ImageViewImpl imageview) {
+			boolean empty;
+			synchronized (mSubscribers) {
+				for (int i = mSubscribers.size() - 1; i >= 0; i--) {
+					ImageViewImpl view = mSubscribers.get(i).imageview;
+					if (view.getImageViewId() == imageview.getImageViewId()
+							|| view.isImageViewCollected()) {
+						mSubscribers.remove(i);
+					}
+				}
+				empty = mSubscribers.isEmpty();
+			}
+			if (empty) {
+				unregisterInFlightTask(this);
+				cancel(true);
+			}
+		}
+
+		// 所有的imageView都被回收或者重用了，任务不需要再执行
+		boolean isTaskNotActual() {
+			synchronized (mSubscribers) {
+				for (Subscriber subscriber : mSubscribers) {
+					if (!BaseImageLogic.this.isTaskNotActual(uri,
+							subscriber.imageview)) {
+						return false;
+					}
+				}
+			}
+			return true;
 		}
 
 		@Override
@@ -203,7 +361,7 @@ public abstract class BaseImageLogic {
 			uri = String.valueOf(params[0]);
 			Bitmap bitmap = null;
 			CacheableDrawable drawable = null;
-			if (waitIfPaused(uri, imageview)) {
+			if (waitIfPaused(this)) {
 				return null;
 			}
 			try {
@@ -211,9 +369,12 @@ public abstract class BaseImageLogic {
 				if (mImageCache == null) {
 					Log.e(TAG, "mImageCache==null");
 				}
-				if (mFromCache && mImageCache != null) {
+				if (isLocal()) {
+					// 本地图片直接解码，不经过磁盘缓存和网络
+					bitmap = loadLocalBitmap();
+				} else if (mFromCache && mImageCache != null) {
 					// 从磁盘获取bitmap对象
-					bitmap = mImageCache.getBitmapFromDiskCache(uri);
+					bitmap = loadBitmapFromDisk();
 				} else {
 					// 从网络获取bitmap对象
 					bitmap = tryLoadBitmap();
@@ -231,7 +392,8 @@ public abstract class BaseImageLogic {
 					drawable = new CacheableDrawable(uri, mResources, bitmap);
 				}
 				// 添加磁盘
-				if (!mFromCache && bitmap != null && mImageCache != null) {
+				if (!mFromCache && !isLocal() && bitmap != null
+						&& mImageCache != null) {
 					mImageCache.addBitmapToDiskCache(uri, bitmap);
 				}
 				// 添加内存
@@ -247,68 +409,164 @@ public abstract class BaseImageLogic {
 
 		@Override
 		protected void onPostExecute(CacheableDrawable drawable) {
+			unregisterInFlightTask(this);
 			if (mExitTasksEarly) {
 				drawable = null;
 			}
-			imageview = getAttachedImageView();
-			if (imageview == null) {
+			List<Subscriber> subscribers = getAttachedSubscribers();
+			if (subscribers.isEmpty()) {
 				return;
 			}
 			// 网络请求
-			if (mFromCache && drawable == null) {
-				loadFromNetwork(imageview);
+			if (mFromCache && drawable == null && !isLocal()) {
+				loadFromNetwork(subscribers);
 				return;
 			}
-			if (drawable != null) {
-				Log.i(TAG, "图片显示成功:" + uri);
-				mConfig.displayer.loadCompletedisplay(imageview, drawable,
-						displayConfig);
-				if (bitmapFinishCallback != null)
-					bitmapFinishCallback.showSuccess();
-				cancelDisplayTaskFor(imageview);
-			} else if (drawable == null) {
-				Log.i(TAG, "图片显示失败:" + uri);
-				mConfig.displayer.loadFailDisplay(imageview,
-						displayConfig.getLoadingBitmap());
-				if (bitmapFinishCallback != null) {
-					bitmapFinishCallback.showError();
+			for (Subscriber subscriber : subscribers) {
+				ImageViewImpl imageview = subscriber.imageview;
+				if (drawable != null) {
+					Log.i(TAG, "图片显示成功:" + uri);
+					mConfig.displayer.loadCompletedisplay(imageview, drawable,
+							subscriber.displayConfig);
+					if (subscriber.bitmapFinishCallback != null)
+						subscriber.bitmapFinishCallback.showSuccess();
+					cancelDisplayTaskFor(imageview);
+				} else {
+					Log.i(TAG, "图片显示失败:" + uri);
+					mConfig.displayer.loadFailDisplay(imageview,
+							subscriber.displayConfig.getLoadingBitmap());
+					if (subscriber.bitmapFinishCallback != null) {
+						subscriber.bitmapFinishCallback.showError();
+					}
 				}
 			}
 		}
 
+		// 下载线程中解码出预览图
+		@Override
+		public void onPreview(Bitmap preview) {
+			if (!isCancelled()) {
+				publishProgress(preview);
+			}
+		}
+
+		// 预览图直接替换默认图片，最终的图片在onPostExecute中显示
+		@Override
+		protected void onProgressUpdate(Bitmap... previews) {
+			if (mExitTasksEarly || previews == null || previews.length == 0) {
+				return;
+			}
+			for (Subscriber subscriber : getAttachedSubscribers()) {
+				subscriber.imageview.setImageDrawable(new DefaultDrawable(
+						mResources, previews[0], this));
+			}
+		}
+
 		@Override
 		protected void onCancelled(CacheableDrawable drawable) {
+			unregisterInFlightTask(this);
 			super.onCancelled(drawable);
 		}
 
 		/**
-		 * 网络请求
+		 * 网络请求，失败后按退避时间重试，主机熔断的时候不再重试
 		 */
 		private Bitmap tryLoadBitmap() throws TaskCancelledException {
 			Bitmap bitmap = null;
-			while (retryCount > 0) {
+			int attempt = 0;
+			while (attempt < retryCount) {
 				Log.d(TAG, "开始从服务器获取图片数据...");
-				bitmap = processBitmap(uri, displayConfig);
+				// 有回调的时候回调要处理bitmap，不显示没有处理过的预览图
+				bitmap = processBitmap(uri, displayConfig,
+						bitmapFinishCallback == null ? this : null);
 				if (bitmap != null) {
-					Log.i(TAG, "服务器获取图片数据ok:" + retryCount);
+					Log.i(TAG, "服务器获取图片数据ok:" + attempt);
 					break;
 				}
-				retryCount--;
+				attempt++;
 				checkTaskIsCancel();
+				if (attempt < retryCount && !sleepBeforeRetry(attempt)) {
+					break;
+				}
 			}
 			return bitmap;
 		}
 
+		// 等待退避时间，不需要重试的时候返回false
+		private boolean sleepBeforeRetry(int attempt)
+				throws TaskCancelledException {
+			long delay = getRetryDelay(uri, attempt);
+			if (delay < 0) {
+				Log.d(TAG, "不再重试:" + uri);
+				return false;
+			}
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				throw new TaskCancelledException();
+			}
+			checkTaskIsCancel();
+			return true;
+		}
+
+		// 是否是本地图片地址
+		private boolean isLocal() {
+			return mConfig.localLoader != null
+					&& LocalImageLoader.isLocalUri(uri);
+		}
+
+		/**
+		 * 本地图片，按显示配置的大小压缩
+		 */
+		private Bitmap loadLocalBitmap() {
+			if (mConfig.bitmapProcess != null
+					&& mConfig.bitmapProcess.isNeverCalculate()) {
+				return mConfig.localLoader.loadBitmap(uri, 0, 0);
+			}
+			return mConfig.localLoader.loadBitmap(uri,
+					displayConfig.getBitmapWidth(),
+					displayConfig.getBitmapHeight());
+		}
+
+		/**
+		 * 磁盘请求，按显示配置的大小压缩
+		 */
+		private Bitmap loadBitmapFromDisk() {
+			if (mConfig.bitmapProcess != null
+					&& mConfig.bitmapProcess.isNeverCalculate()) {
+				return mImageCache.getBitmapFromDiskCache(uri);
+			}
+			return mImageCache.getBitmapFromDiskCache(uri,
+					displayConfig.getBitmapWidth(),
+					displayConfig.getBitmapHeight());
+		}
+
 		/**
-		 * 磁盘加载失败，从网络从新加载
+		 * 磁盘加载失败，所有等待的imageView一起从网络从新加载
 		 */
-		private void loadFromNetwork(ImageViewImpl imageview) {
-			if (checkImageTaskForNet(uri, imageview)) {
-				BitmapLoadAndDisplayTask task = new BitmapLoadAndDisplayTask(
-						imageview, displayConfig, bitmapFinishCallback, false);
+		private void loadFromNetwork(List<Subscriber> subscribers) {
+			BitmapLoadAndDisplayTask task = null;
+			for (Subscriber subscriber : subscribers) {
+				ImageViewImpl imageview = subscriber.imageview;
+				if (!checkImageTaskForNet(uri, imageview)) {
+					continue;
+				}
+				if (task == null) {
+					task = new BitmapLoadAndDisplayTask(uri, imageview,
+							displayConfig, bitmapFinishCallback, false);
+					task.updatePriority(imageview, subscriber.priority);
+				} else {
+					task.subscribe(imageview, subscriber.displayConfig,
+							subscriber.bitmapFinishCallback,
+							subscriber.priority);
+				}
 				final DefaultDrawable defaultDrawable = new DefaultDrawable(
-						mResources, displayConfig.getLoadingBitmap(), task);
+						mResources,
+						subscriber.displayConfig.getLoadingBitmap(), task);
 				imageview.setImageDrawable(defaultDrawable);
+			}
+			if (task != null) {
+				registerInFlightTask(task);
 				task.executeOnExecutor(ImageAsyncTask.NET_THREAD_EXECUTOR, uri,
 						uri);
 			}
@@ -318,8 +576,7 @@ public abstract class BaseImageLogic {
 		 * check task need cancel,if need throw TaskCancelledException
 		 */
 		private void checkTaskIsCancel() throws TaskCancelledException {
-			checkTaskNotActual(uri, imageview);
-			if (mExitTasksEarly || isCancelled()) {
+			if (mExitTasksEarly || isCancelled() || isTaskNotActual()) {
 				throw new TaskCancelledException();
 			}
 		}
@@ -327,12 +584,16 @@ public abstract class BaseImageLogic {
 		/**
 		 * 获取线程匹配的imageView,防止出现闪动的现象
 		 */
-		private ImageViewImpl getAttachedImageView() {
-			final ImageViewImpl imageview = imageViewReference.get();
-			final BitmapLoadAndDisplayTask bitmapWorkerTask = getBitmapTaskFromImageView(imageview);
-			if (this == bitmapWorkerTask)
-				return imageview;
-			return null;
+		private List<Subscriber> getAttachedSubscribers() {
+			List<Subscriber> attached = new ArrayList<Subscriber>();
+			synchronized (mSubscribers) {
+				for (Subscriber subscriber : mSubscribers) {
+					if (this == getBitmapTaskFromImageView(subscriber.imageview)) {
+						attached.add(subscriber);
+					}
+				}
+			}
+			return attached;
 		}
 
 	}
@@ -340,6 +601,24 @@ public abstract class BaseImageLogic {
 	public abstract Bitmap processBitmap(String uri,
 			ImageDisplayConfig displayConfig);
 
+	/**
+	 * @Title: getRetryDelay
+	 * @Description: 下载失败后等待多久再重试
+	 * @param @param uri
+	 * @param @param attempt 已经失败的次数，从1开始
+	 * @return long 毫秒，小于0不再重试，默认不重试
+	 * @throws
+	 */
+	protected long getRetryDelay(String uri, int attempt) {
+		return -1;
+	}
+
+	// 下载图片，previewListener不为空时回调下载过程中的预览图，默认不预览
+	protected Bitmap processBitmap(String uri,
+			ImageDisplayConfig displayConfig, PreviewListener previewListener) {
+		return processBitmap(uri, displayConfig);
+	}
+
 	// 默认图片
 	protected static class DefaultDrawable extends BitmapDrawable {
 		private WeakReference<BitmapLoadAndDisplayTask> bitmapWorkerTaskReference;
@@ -1,8 +1,13 @@
 package imagelogic;
 
 import imagelogic.disk.BitmapDiskCache;
+import imagelogic.disk.CacheHeader;
+import imagelogic.disk.DiskEvictionPolicy;
+import imagelogic.disk.ImagePackCache;
+import imagelogic.disk.WebpTranscoder;
 import imagelogic.imageview.CacheableDrawable;
 import imagelogic.memory.ImageLruMemoryCache;
+import imagelogic.utils.CacheKey;
 import imagelogic.utils.ImageUtils;
 import imagelogic.utils.Log;
 
@@ -106,6 +111,13 @@ public class ImageCache {
 					try {
 						mBitmapDiskCache = new BitmapDiskCache(diskCacheDir,
 								mCacheParams.diskCacheSize);
+						mBitmapDiskCache
+								.setEvictionPolicy(mCacheParams.evictionPolicy);
+						if (mCacheParams.webpTranscodeEnabled
+								&& ImageUtils.hasIceCreamSandwich()) {
+							mBitmapDiskCache
+									.setWebpTranscoder(new WebpTranscoder());
+						}
 						synchronized (mDiskCacheLock) {
 							mBitmapDiskCache.initialize();
 						}
@@ -161,7 +173,16 @@ public class ImageCache {
 			return;
 		}
 
-		final String key = ImageUtils.CalcUrl2Md5(uri);
+		if (mCacheParams.imagePack != null
+				&& mCacheParams.imagePack.contains(uri)) {
+			// 图片包中已经有了
+			return;
+		}
+		final String key = CacheKey.of(uri).getFileName();
+		if (mBitmapDiskCache.getHeader(key) != null) {
+			// 下载的时候原始数据已经写入磁盘
+			return;
+		}
 		mBitmapDiskCache.put(key, bitmap, ImageUtils.isJpg(uri));
 	}
 
@@ -186,6 +207,18 @@ public class ImageCache {
 		return drawable;
 	}
 
+	/**
+	 * @Title: evictDrawableFromMemCache
+	 * @Description: 从内存删除图片，磁盘中的图片更新以后下次显示重新加载
+	 * @param @param url图片地址
+	 * @throws
+	 */
+	public void evictDrawableFromMemCache(String url) {
+		if (mMemoryCache != null) {
+			mMemoryCache.remove(url);
+		}
+	}
+
 	/**
 	 * @Title: removeDrawableFromMemCache
 	 * @Description: 从内存删除图片数据
@@ -204,6 +237,28 @@ public class ImageCache {
 		}
 	}
 
+	/**
+	 * @Title: getDiskCacheSize
+	 * @Description: 图片在磁盘缓存中的大小
+	 * @param @param url 图片地址
+	 * @return long 字节数，图片包中的图片返回0，没有缓存返回-1
+	 * @throws
+	 */
+	public long getDiskCacheSize(String url) {
+		if (mCacheParams.imagePack != null
+				&& mCacheParams.imagePack.contains(url)) {
+			return 0;
+		}
+		if (mBitmapDiskCache == null) {
+			return -1;
+		}
+		final CacheKey key = CacheKey.of(url);
+		mBitmapDiskCache.migrateLegacyEntry(key);
+		final CacheHeader header = mBitmapDiskCache.getHeader(key
+				.getFileName());
+		return header != null ? header.size : -1;
+	}
+
 	/**
 	 * @Title: getBitmapFromDiskCache
 	 * @Description: 根据图片地址获取图片数据
@@ -213,13 +268,62 @@ public class ImageCache {
 	 * @throws
 	 */
 	public Bitmap getBitmapFromDiskCache(String url) {
-		final String key = ImageUtils.CalcUrl2Md5(url);
+		return getBitmapFromDiskCache(url, 0, 0);
+	}
+
+	/**
+	 * @Title: getBitmapFromDiskCache
+	 * @Description: 根据图片地址获取压缩后的图片数据
+	 * @param @param url 图片地址
+	 * @param @param reqWidth 需要的宽
+	 * @param @param reqHeight 需要的高
+	 * @param @return
+	 * @return Bitmap
+	 * @throws
+	 */
+	public Bitmap getBitmapFromDiskCache(String url, int reqWidth,
+			int reqHeight) {
+		Bitmap bitmap = getBitmapFromImagePack(url, reqWidth, reqHeight);
+		if (bitmap != null) {
+			return bitmap;
+		}
+		final CacheKey key = CacheKey.of(url);
 		if (mBitmapDiskCache == null) {
 			Log.w(TAG, "mDiskLruCache==null");
 			return null;
 		}
 		try {
-			return mBitmapDiskCache.get(key);
+			mBitmapDiskCache.migrateLegacyEntry(key);
+			return mBitmapDiskCache.get(key.getFileName(), reqWidth,
+					reqHeight);
+		} catch (Exception e) {
+			e.printStackTrace();
+			Log.e(TAG, "error:" + e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * @Title: getBitmapFromImagePack
+	 * @Description: 从随应用发布的图片包中获取图片数据
+	 * @param @param url 图片地址
+	 * @param @param reqWidth 需要的宽
+	 * @param @param reqHeight 需要的高
+	 * @param @return
+	 * @return Bitmap 图片包中没有返回null
+	 * @throws
+	 */
+	private Bitmap getBitmapFromImagePack(String url, int reqWidth,
+			int reqHeight) {
+		final ImagePackCache imagePack = mCacheParams.imagePack;
+		if (imagePack == null || !imagePack.contains(url)) {
+			return null;
+		}
+		try {
+			Bitmap bitmap = BitmapDiskCache.decode(imagePack.getData(url),
+					imagePack.getHeader(url), reqWidth, reqHeight);
+			Log.d(TAG, "图片包获取图片数据ok");
+			return bitmap;
 		} catch (Exception e) {
 			e.printStackTrace();
 			Log.e(TAG, "error:" + e.getMessage());
@@ -227,6 +331,17 @@ public class ImageCache {
 		return null;
 	}
 
+	/**
+	 * @Title: setImagePack
+	 * @Description: 设置随应用发布的只读图片包，先于磁盘缓存查询
+	 * @param @param imagePack 为空不使用图片包
+	 * @return void
+	 * @throws
+	 */
+	public void setImagePack(ImagePackCache imagePack) {
+		mCacheParams.imagePack = imagePack;
+	}
+
 	/**
 	 * @Title: clearCache
 	 * @Description: 清空缓存
@@ -254,6 +369,77 @@ public class ImageCache {
 		}
 	}
 
+	/**
+	 * @Title: setDiskEvictionPolicy
+	 * @Description: 设置磁盘缓存淘汰策略
+	 * @param @param policy 为空使用LRU
+	 * @return void
+	 * @throws
+	 */
+	public void setDiskEvictionPolicy(DiskEvictionPolicy policy) {
+		mCacheParams.evictionPolicy = policy;
+		if (mBitmapDiskCache != null) {
+			mBitmapDiskCache.setEvictionPolicy(policy);
+		}
+	}
+
+	/**
+	 * @Title: setWebpTranscodeEnabled
+	 * @Description: 设置是否把冷文件转码成WebP(4.0以上有效)
+	 * @param @param enabled
+	 * @return void
+	 * @throws
+	 */
+	public void setWebpTranscodeEnabled(boolean enabled) {
+		mCacheParams.webpTranscodeEnabled = enabled;
+		if (mBitmapDiskCache != null) {
+			mBitmapDiskCache.setWebpTranscoder(enabled
+					&& ImageUtils.hasIceCreamSandwich() ? new WebpTranscoder()
+					: null);
+		}
+	}
+
+	/**
+	 * @Title: getWebpTranscoder
+	 * @Description: 获取WebP转码对象，用于查看节省的空间和解码时间变化
+	 * @param @return 没有开启转码返回null
+	 * @return WebpTranscoder
+	 * @throws
+	 */
+	public WebpTranscoder getWebpTranscoder() {
+		if (mBitmapDiskCache != null) {
+			return mBitmapDiskCache.getWebpTranscoder();
+		}
+		return null;
+	}
+
+	/**
+	 * @Title: flush
+	 * @Description: 把磁盘缓存索引写入文件
+	 * @param
+	 * @return void
+	 * @throws
+	 */
+	public void flush() {
+		if (mBitmapDiskCache != null) {
+			mBitmapDiskCache.flushIndex();
+		}
+	}
+
+	/**
+	 * @Title: getDiskCorruptCount
+	 * @Description: 磁盘缓存中检测到的损坏文件个数，用于监控
+	 * @param @return
+	 * @return int
+	 * @throws
+	 */
+	public int getDiskCorruptCount() {
+		if (mBitmapDiskCache != null) {
+			return mBitmapDiskCache.getCorruptCount();
+		}
+		return 0;
+	}
+
 	/**
 	 * @Title: clearMemoryCache
 	 * @Description: 清空内存
@@ -295,7 +481,7 @@ public class ImageCache {
 	 */
 	public void deleteDiskcache(String url) {
 		if (mBitmapDiskCache != null) {
-			mBitmapDiskCache.remove(url);
+			mBitmapDiskCache.remove(CacheKey.of(url));
 		}
 	}
 
@@ -315,6 +501,9 @@ public class ImageCache {
 		public boolean diskCacheEnabled = DEFAULT_DISK_CACHE_ENABLED;// 是否使用磁盘缓存
 		public boolean clearDiskCacheOnStart = DEFAULT_CLEAR_DISK_CACHE_ON_START;// 是否开始请清理磁盘文件
 		public boolean initDiskCacheOnCreate = DEFAULT_INIT_DISK_CACHE_ON_CREATE;// 是否开始初始化磁盘缓存
+		public DiskEvictionPolicy evictionPolicy;// 磁盘缓存淘汰策略，为空使用LRU
+		public boolean webpTranscodeEnabled = false;// 是否把冷文件转码成WebP(4.0以上有效)
+		public ImagePackCache imagePack;// 随应用发布的只读图片包
 
 		// 设置磁盘缓存目录
 		public ImageCacheParams(String diskCacheDir) {
@@ -343,6 +532,11 @@ public class ImageCache {
 			this.diskCacheSize = diskCacheSize;
 		}
 
+		// 设置磁盘缓存淘汰策略
+		public void setEvictionPolicy(DiskEvictionPolicy evictionPolicy) {
+			this.evictionPolicy = evictionPolicy;
+		}
+
 	}
 
 }
@@ -1,18 +1,36 @@
 package imagelogic;
 
 import imagelogic.disk.BitmapDiskCache;
+import imagelogic.disk.DiskEvictionPolicy;
+import imagelogic.disk.ImagePackCache;
 import imagelogic.display.ImageDisplayConfig;
 import imagelogic.display.ImageDisplayer;
 import imagelogic.display.ImageSimpleDisplayer;
+import imagelogic.download.HedgePolicy;
+import imagelogic.download.HostCircuitBreaker;
 import imagelogic.download.ImageDownloader;
 import imagelogic.download.ImageSimpleHttpDownloader;
+import imagelogic.download.ImageUrlRewriter;
+import imagelogic.download.LocalImageLoader;
+import imagelogic.download.MirrorResolver;
+import imagelogic.download.NegativeResultCache;
+import imagelogic.download.ProgressiveJpegOutputStream.PreviewListener;
+import imagelogic.download.RevalidatingImageDownloader;
 import imagelogic.imageview.CacheableDrawable;
 import imagelogic.imageview.ImageViewImpl;
 import imagelogic.threads.ImageAsyncTask;
+import imagelogic.threads.PriorityLifoExecutor;
+import imagelogic.utils.ByteArrayPool;
 import imagelogic.utils.ImageUtils;
 import imagelogic.utils.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
@@ -31,6 +49,8 @@ public class ImageLogic extends BaseImageLogic {
 
 	private Context mContext;// 上下文
 
+	private static final int MAX_DOWNLOAD_ATTEMPTS = 3;// 下载配置图片最多下载次数
+
 	private static ImageLogic mImageLogic; // 静态对象
 
 	// 默认图片对应显示配置
@@ -217,6 +237,239 @@ public class ImageLogic extends BaseImageLogic {
 		return this;
 	}
 
+	/**
+	 * @Title: configKeepAlive
+	 * @Description: 设置默认下载类是否复用keep-alive连接，默认2.2以上复用
+	 * @param @param keepAlive
+	 * @param @return
+	 * @return ImageLogic
+	 * @throws
+	 */
+	public ImageLogic configKeepAlive(boolean keepAlive) {
+		if (mConfig.downloader instanceof ImageSimpleHttpDownloader) {
+			((ImageSimpleHttpDownloader) mConfig.downloader)
+					.setKeepAlive(keepAlive);
+		}
+		return this;
+	}
+
+	/**
+	 * @Title: configUrlRewriter
+	 * @Description: 设置图片地址改写，按imageView的大小下载CDN缩放后的图片，例如BucketedUrlRewriter
+	 * @param @param urlRewriter 为空不改写
+	 * @param @return
+	 * @return ImageLogic
+	 * @throws
+	 */
+	public ImageLogic configUrlRewriter(ImageUrlRewriter urlRewriter) {
+		mConfig.urlRewriter = urlRewriter;
+		return this;
+	}
+
+	/**
+	 * @Title: configProgressiveDisplay
+	 * @Description: 渐进式JPEG是否边下载边显示低分辨率的预览图，默认显示
+	 * @param @param progressiveDisplay
+	 * @param @return
+	 * @return ImageLogic
+	 * @throws
+	 */
+	public ImageLogic configProgressiveDisplay(boolean progressiveDisplay) {
+		mConfig.progressiveDisplay = progressiveDisplay;
+		return this;
+	}
+
+	/**
+	 * @Title: configNegativeCache
+	 * @Description: 设置加载失败的地址缓存，默认在内存中保存最近256个地址并保存到磁盘缓存目录旁边的文件
+	 * @param @param negativeCache 为空不缓存，每次都重新请求
+	 * @param @return
+	 * @return ImageLogic
+	 * @throws
+	 */
+	public ImageLogic configNegativeCache(final NegativeResultCache negativeCache) {
+		mConfig.negativeCache = negativeCache;
+		if (mConfig.bitmapProcess != null) {
+			mConfig.bitmapProcess.setNegativeCache(negativeCache);
+		}
+		if (negativeCache != null) {
+			ImageAsyncTask.NET_THREAD_EXECUTOR.execute(new Runnable() {
+				@Override
+				public void run() {
+					negativeCache.load();
+				}
+			});
+		}
+		return this;
+	}
+
+	/**
+	 * @Title: configNetThreads
+	 * @Description: 设置下载线程数，默认4个。使用NioImageDownloader的时候网络读写都在selector线程中，
+	 *               下载线程只等待结果和解码，可以调大到十几个，同时下载更多图片
+	 * @param @param threads
+	 * @param @return
+	 * @return ImageLogic
+	 * @throws
+	 */
+	public ImageLogic configNetThreads(int threads) {
+		if (ImageAsyncTask.NET_THREAD_EXECUTOR instanceof PriorityLifoExecutor) {
+			((PriorityLifoExecutor) ImageAsyncTask.NET_THREAD_EXECUTOR)
+					.setThreadCount(threads);
+		}
+		return this;
+	}
+
+	/**
+	 * @Title: configMaxRequestsPerHost
+	 * @Description: 设置每个主机同时下载的图片数，默认3个，一个慢主机不会占满所有下载线程
+	 * @param @param maxPerHost
+	 * @param @return
+	 * @return ImageLogic
+	 * @throws
+	 */
+	public ImageLogic configMaxRequestsPerHost(int maxPerHost) {
+		if (ImageAsyncTask.NET_THREAD_EXECUTOR instanceof PriorityLifoExecutor) {
+			((PriorityLifoExecutor) ImageAsyncTask.NET_THREAD_EXECUTOR)
+					.setMaxRequestsPerHost(maxPerHost);
+		}
+		return this;
+	}
+
+	/**
+	 * @Title: configPrefetchBandwidth
+	 * @Description: 设置预加载(downloadImage)的总带宽，前台显示的图片不限速，并且前台有图片在下载时预加载暂停读取
+	 * @param @param bytesPerSecond 每秒字节数，小于等于0不限速
+	 * @param @return
+	 * @return ImageLogic
+	 * @throws
+	 */
+	public ImageLogic configPrefetchBandwidth(long bytesPerSecond) {
+		if (mConfig.downloader instanceof ImageSimpleHttpDownloader) {
+			((ImageSimpleHttpDownloader) mConfig.downloader)
+					.setPrefetchBandwidth(bytesPerSecond);
+		}
+		return this;
+	}
+
+	/**
+	 * @Title: configMirrorResolver
+	 * @Description: 设置镜像地址(例如另一个CDN)。显示图片时主地址超过p95首字节时间没有响应，同时请求镜像，
+	 *               先下载完的使用；对冲统计通过getHedgePolicy获取
+	 * @param @param mirrorResolver 为空不对冲
+	 * @param @return
+	 * @return ImageLogic
+	 * @throws
+	 */
+	public ImageLogic configMirrorResolver(MirrorResolver mirrorResolver) {
+		if (mConfig.downloader instanceof ImageSimpleHttpDownloader) {
+			((ImageSimpleHttpDownloader) mConfig.downloader)
+					.setMirrorResolver(mirrorResolver);
+		}
+		return this;
+	}
+
+	// 对冲请求的统计(对冲比例，镜像胜出次数)，不是默认下载类返回null
+	public HedgePolicy getHedgePolicy() {
+		if (mConfig.downloader instanceof ImageSimpleHttpDownloader) {
+			return ((ImageSimpleHttpDownloader) mConfig.downloader)
+					.getHedgePolicy();
+		}
+		return null;
+	}
+
+	/**
+	 * @Title: warmupConnections
+	 * @Description: 在下载线程中预先建立到常用图片主机的连接，每个主机传一个地址即可
+	 * @param @param urls
+	 * @param @return
+	 * @return ImageLogic
+	 * @throws
+	 */
+	public ImageLogic warmupConnections(final String... urls) {
+		if (!(mConfig.downloader instanceof ImageSimpleHttpDownloader)
+				|| urls == null) {
+			return this;
+		}
+		final ImageSimpleHttpDownloader downloader = (ImageSimpleHttpDownloader) mConfig.downloader;
+		ImageAsyncTask.NET_THREAD_EXECUTOR.execute(new Runnable() {
+			@Override
+			public void run() {
+				for (String url : urls) {
+					downloader.warmup(url);
+				}
+			}
+		});
+		return this;
+	}
+
+	/**
+	 * @Title: configDiskEvictionPolicy
+	 * @Description: 设置磁盘缓存淘汰策略，默认LRU，可选LFU，GDSF，分段FIFO或者自己实现的策略
+	 * @param @param policy
+	 * @param @return
+	 * @return ImageLogic
+	 * @throws
+	 */
+	public ImageLogic configDiskEvictionPolicy(DiskEvictionPolicy policy) {
+		mConfig.diskEvictionPolicy = policy;
+		if (mImageCache != null) {
+			mImageCache.setDiskEvictionPolicy(policy);
+		}
+		return this;
+	}
+
+	/**
+	 * @Title: configWebpTranscode
+	 * @Description: 设置是否在空闲的时候把长时间没有使用的磁盘缓存文件转码成WebP，节省磁盘空间(4.0以上有效)
+	 * @param @param enabled
+	 * @param @return
+	 * @return ImageLogic
+	 * @throws
+	 */
+	public ImageLogic configWebpTranscode(boolean enabled) {
+		mConfig.webpTranscodeEnabled = enabled;
+		if (mImageCache != null) {
+			mImageCache.setWebpTranscodeEnabled(enabled);
+		}
+		return this;
+	}
+
+	/**
+	 * @Title: configImagePack
+	 * @Description: 设置assets中随应用发布的只读图片包(由ImagePackBuilder生成)，包中的图片不再走磁盘缓存和网络
+	 * @param @param assetName 图片包在assets中的文件名，建议不压缩以便内存映射
+	 * @param @return
+	 * @return ImageLogic
+	 * @throws
+	 */
+	public ImageLogic configImagePack(String assetName) {
+		ImagePackCache imagePack = null;
+		try {
+			imagePack = ImagePackCache.openAsset(mContext.getAssets(),
+					assetName);
+		} catch (IOException e) {
+			Log.e(TAG, "图片包加载失败:" + e.getMessage());
+		}
+		return configImagePack(imagePack);
+	}
+
+	/**
+	 * @Title: configImagePack
+	 * @Description: 设置随应用发布的只读图片包
+	 * @param @param imagePack 为空不使用图片包
+	 * @param @return
+	 * @return ImageLogic
+	 * @throws
+	 */
+	public ImageLogic configImagePack(ImagePackCache imagePack) {
+		mConfig.imagePack = imagePack;
+		if (mImageCache != null) {
+			mImageCache.setImagePack(imagePack);
+		}
+		return this;
+	}
+
 	// 配置磁盘缓存路径
 	private ImageLogic configDiskCachePath(String strPath) {
 		if (!TextUtils.isEmpty(strPath)) {
@@ -246,6 +499,13 @@ public class ImageLogic extends BaseImageLogic {
 	// 图片逻辑对象初始化
 	private ImageLogic init() {
 		mConfig.init();
+		if (mConfig.negativeCache == null) {
+			mConfig.negativeCache = new NegativeResultCache(
+					NegativeResultCache.DEFAULT_MAX_ENTRIES,
+					TextUtils.isEmpty(mConfig.cachePath) ? null : new File(
+							mConfig.cachePath + ".negative"));
+		}
+		mConfig.bitmapProcess.setNegativeCache(mConfig.negativeCache);
 		ImageCache.ImageCacheParams imageCacheParams = new ImageCache.ImageCacheParams(
 				mConfig.cachePath);
 		if (mConfig.memCacheSizePercent > 0.05
@@ -265,6 +525,9 @@ public class ImageLogic extends BaseImageLogic {
 		if (mConfig.diskCacheSize > 1024 * 1024 * 5) {
 			imageCacheParams.setDiskCacheSize(mConfig.diskCacheSize);
 		}
+		imageCacheParams.setEvictionPolicy(mConfig.diskEvictionPolicy);
+		imageCacheParams.webpTranscodeEnabled = mConfig.webpTranscodeEnabled;
+		imageCacheParams.imagePack = mConfig.imagePack;
 		// 初始化缓存对象
 		mImageCache = new ImageCache(imageCacheParams);
 		// 初始化磁盘缓存对象
@@ -354,6 +617,7 @@ public class ImageLogic extends BaseImageLogic {
 		imageview.initView(width, height);
 		Log.d(TAG, "doDisplay-width:" + width);
 		Log.d(TAG, "doDisplay_height:" + height);
+		uri = rewriteUrl(uri, width, height);
 
 		prepareDisplayTaskFor(imageview, uri);
 		Log.d(TAG, "doDisplay:" + uri);
@@ -370,23 +634,130 @@ public class ImageLogic extends BaseImageLogic {
 			if (bitmapFinishCallback != null)
 				bitmapFinishCallback.showSuccess();
 		} else if (checkImageTask(uri, imageview)) {
+			if (mConfig.negativeCache != null
+					&& mConfig.negativeCache.isFailed(uri)) {
+				// 最近加载失败的地址直接显示失败图片，不再创建任务
+				Log.d(TAG, "地址最近加载失败:" + uri);
+				mConfig.displayer.loadFailDisplay(imageview,
+						displayConfig.getLoadingBitmap());
+				if (bitmapFinishCallback != null) {
+					bitmapFinishCallback.showError();
+				}
+				return;
+			}
 			Log.d(TAG, "默认图片加载成功:" + uri);
+			if (joinInFlightTask(imageview, uri, displayConfig,
+					bitmapFinishCallback)) {
+				return;
+			}
 
-			BitmapLoadAndDisplayTask task = new BitmapLoadAndDisplayTask(
+			BitmapLoadAndDisplayTask task = new BitmapLoadAndDisplayTask(uri,
 					imageview, displayConfig, bitmapFinishCallback, true);
 			DefaultDrawable defaultDrawable = new DefaultDrawable(mResources,
 					displayConfig.getLoadingBitmap(), task);
 
 			imageview.setImageDrawable(defaultDrawable);
 			if (!mExitTasksEarly) {
+				registerInFlightTask(task);
 				task.execute(uri);
 			}
 		}
 	}
 
-	// 下载配置图片
+	// 按imageView的大小改写图片地址，图片包中的图片和本地图片不改写
+	private String rewriteUrl(String uri, int width, int height) {
+		final ImageUrlRewriter rewriter = mConfig.urlRewriter;
+		if (rewriter == null || LocalImageLoader.isLocalUri(uri)
+				|| (mConfig.imagePack != null && mConfig.imagePack
+						.contains(uri))) {
+			return uri;
+		}
+		String rewritten = rewriter.rewrite(uri, width, height);
+		return rewritten != null ? rewritten : uri;
+	}
+
+	/**
+	 * @Title: setPriority
+	 * @Description: 修改imageView正在加载的图片的优先级。列表滑动时可以把刚滑出屏幕的imageView设为
+	 *               PRIORITY_NEAR_VISIBLE，同一优先级后显示的先加载
+	 * @param @param imageView
+	 * @param @param priority PriorityLifoExecutor.PRIORITY_VISIBLE/PRIORITY_NEAR_VISIBLE/PRIORITY_PREFETCH
+	 * @return boolean false imageView没有正在加载的图片
+	 * @throws
+	 */
+	public boolean setPriority(ImageView imageView, int priority) {
+		if (imageView == null) {
+			return false;
+		}
+		return updateTaskPriority(new ImageViewImpl(imageView), priority);
+	}
+
+	// 下载配置图片，在网络线程池中按预加载优先级执行
 	public void downloadImage(String url) {
-		new DownloadImageTask(url, mConfig.defaultDisplayConfig).execute();
+		DownloadImageTask task = new DownloadImageTask(url,
+				mConfig.defaultDisplayConfig);
+		task.setPriority(PriorityLifoExecutor.PRIORITY_PREFETCH);
+		task.executeOnExecutor(ImageAsyncTask.NET_THREAD_EXECUTOR);
+	}
+
+	/**
+	 * @Title: prefetch
+	 * @Description: 批量预加载图片到磁盘缓存或者内存缓存，可以设置字节数和时间预算，返回的句柄可以取消
+	 * @param @param urls 图片地址，按顺序加载，重复的只加载一次
+	 * @param @param options 为空的时候按默认配置下载到磁盘缓存
+	 * @return PrefetchRequest
+	 * @throws
+	 */
+	public PrefetchRequest prefetch(Collection<String> urls,
+			PrefetchOptions options) {
+		if (options == null) {
+			options = new PrefetchOptions();
+		}
+		final ImageDisplayConfig config = getDisplayConfig();
+		final int width = options.getBitmapWidth();
+		final int height = options.getBitmapHeight();
+		if (width > 0 && height > 0) {
+			config.setBitmapWidth(width);
+			config.setBitmapHeight(height);
+		}
+		final LinkedHashSet<String> targets = new LinkedHashSet<String>();
+		if (urls != null) {
+			for (String url : urls) {
+				if (!TextUtils.isEmpty(url)) {
+					targets.add(width > 0 && height > 0 ? rewriteUrl(url,
+							width, height) : url);
+				}
+			}
+		}
+		final PrefetchRequest request = new PrefetchRequest(targets.size(),
+				options);
+		// 同一优先级后提交的先执行，倒序提交使前面的图片先加载
+		final List<String> ordered = new ArrayList<String>(targets);
+		for (int i = ordered.size() - 1; i >= 0; i--) {
+			PrefetchTask task = new PrefetchTask(ordered.get(i), config,
+					options.getTier(), request);
+			task.setPriority(options.getPriority());
+			request.addTask(task);
+			task.executeOnExecutor(ImageAsyncTask.NET_THREAD_EXECUTOR);
+		}
+		return request;
+	}
+
+	/**
+	 * @Title: refreshImage
+	 * @Description: 在下载线程中刷新磁盘缓存的图片(例如头像列表定时刷新)。图片没有变化服务端只返回304，
+	 *               变化了重新下载并清除内存缓存，下次显示使用新的图片
+	 * @param @param url 图片地址
+	 * @param @param maxAgeMs 距离上次校验不到这个时间的图片不刷新
+	 * @return void
+	 * @throws
+	 */
+	public void refreshImage(String url, long maxAgeMs) {
+		if (TextUtils.isEmpty(url)) {
+			return;
+		}
+		new RefreshImageTask(url, maxAgeMs).executeOnExecutor(
+				ImageAsyncTask.NET_THREAD_EXECUTOR, url);
 	}
 
 	// 默认显示配置
@@ -409,6 +780,9 @@ public class ImageLogic extends BaseImageLogic {
 		if (mConfig.bitmapProcess != null && diskCache != null) {
 			mConfig.bitmapProcess.initHttpDiskCache(diskCache);
 		}
+		if (mConfig.negativeCache != null) {
+			mConfig.negativeCache.load();
+		}
 	}
 
 	// 清空缓存
@@ -418,6 +792,13 @@ public class ImageLogic extends BaseImageLogic {
 		}
 	}
 
+	// 保存磁盘缓存索引
+	private void flushCache() {
+		if (mImageCache != null) {
+			mImageCache.flush();
+		}
+	}
+
 	// 整理缓存
 	private void trimMemoryCache() {
 		if (mImageCache != null) {
@@ -435,14 +816,39 @@ public class ImageLogic extends BaseImageLogic {
 		}
 	}
 
+	// 磁盘缓存中检测到的损坏文件个数
+	public int getDiskCorruptCount() {
+		if (mImageCache != null) {
+			return mImageCache.getDiskCorruptCount();
+		}
+		return 0;
+	}
+
 	// 下载图片
 	public Bitmap processBitmap(String uri, ImageDisplayConfig config) {
+		return processBitmap(uri, config, null);
+	}
+
+	// 下载图片，渐进式JPEG下载过程中回调预览图
+	@Override
+	protected Bitmap processBitmap(String uri, ImageDisplayConfig config,
+			PreviewListener previewListener) {
 		if (mConfig != null && mConfig.bitmapProcess != null) {
-			return mConfig.bitmapProcess.processBitmap(uri, config);
+			return mConfig.bitmapProcess.processBitmap(uri, config,
+					mConfig.progressiveDisplay ? previewListener : null);
 		}
 		return null;
 	}
 
+	// 下载失败后重试的等待时间
+	@Override
+	protected long getRetryDelay(String uri, int attempt) {
+		if (mConfig != null && mConfig.bitmapProcess != null) {
+			return mConfig.bitmapProcess.getRetryDelay(uri, attempt);
+		}
+		return -1;
+	}
+
 	// 下载图片
 	private boolean downloadImage(String uri, ImageDisplayConfig config) {
 		if (mConfig != null && mConfig.bitmapProcess != null) {
@@ -496,6 +902,7 @@ public class ImageLogic extends BaseImageLogic {
 	 */
 	public void onLowMemory() {
 		Log.d(TAG, "onLowMemory-内存不够");
+		ByteArrayPool.getDefault().clear();
 		trimCache();
 	}
 
@@ -569,9 +976,32 @@ public class ImageLogic extends BaseImageLogic {
 				break;
 			case MESSAGE_CLOSE:
 				clearMemoryCache();
+				flushCache();
+				break;
+			}
+		}
+	}
+
+	// 下载图片到磁盘缓存，失败的时候按退避时间重试
+	private boolean downloadWithRetry(String url, ImageDisplayConfig config) {
+		boolean result = downloadImage(url, config);
+		int attempt = 1;
+		while (!result && attempt < MAX_DOWNLOAD_ATTEMPTS) {
+			long delay = getRetryDelay(url, attempt);
+			if (delay < 0) {
+				Log.d(TAG, "主机熔断,不再下载配置图片地址:" + url);
+				break;
+			}
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
 				break;
 			}
+			Log.d(TAG, "下载失败,重新下载配置图片地址:" + url);
+			result = downloadImage(url, config);
+			attempt++;
 		}
+		return result;
 	}
 
 	private class DownloadImageTask extends
@@ -584,25 +1014,21 @@ public class ImageLogic extends BaseImageLogic {
 			this.displayConfig = config;
 		}
 
+		@Override
+		protected String getHost() {
+			return HostCircuitBreaker.hostOf(url);
+		}
+
 		@Override
 		protected Boolean doInBackground(Object... params) {
 			if (url == null || url.equals("")) {
 				return false;
 			}
-			boolean result = downloadImage(url, displayConfig);
-			String path = ImageUtils.getDiskCacheFilePath(mContext, url);
 			Log.d(TAG, "下载配置图片地址:" + url);
-			if (!result) {
-				Log.d(TAG, "下载失败,重新下载配置图片地址:" + url);
-				result = downloadImage(url, displayConfig);
-				if (!result) {
-					Log.d(TAG, "下载失败,重新下载配置图片地址:" + url);
-					result = downloadImage(url, displayConfig);
-				} else {
-					Log.d(TAG, "下载成功，文件路径:" + path);
-				}
-			} else {
-				Log.d(TAG, "下载成功，文件路径:" + path);
+			boolean result = downloadWithRetry(url, displayConfig);
+			if (result) {
+				Log.d(TAG, "下载成功，文件路径:"
+						+ ImageUtils.getDiskCacheFilePath(mContext, url));
 			}
 			return true;
 		}
@@ -614,6 +1040,119 @@ public class ImageLogic extends BaseImageLogic {
 
 	}
 
+	// 批量预加载中一张图片的异步任务
+	private class PrefetchTask extends ImageAsyncTask<Object, Void, Integer> {
+		private final String url;
+		private final ImageDisplayConfig displayConfig;
+		private final int tier;
+		private final PrefetchRequest request;
+
+		public PrefetchTask(String url, ImageDisplayConfig config, int tier,
+				PrefetchRequest request) {
+			this.url = url;
+			this.displayConfig = config;
+			this.tier = tier;
+			this.request = request;
+		}
+
+		@Override
+		protected String getHost() {
+			return HostCircuitBreaker.hostOf(url);
+		}
+
+		// 取消或者超出预算以后，排队的任务直接丢弃
+		@Override
+		protected boolean isObsolete() {
+			return request.isExhausted();
+		}
+
+		@Override
+		protected Integer doInBackground(Object... params) {
+			if (request.isExhausted()) {
+				return PrefetchRequest.RESULT_SKIPPED;
+			}
+			if (mImageCache == null) {
+				Log.e(TAG, "mImageCache==null");
+				return PrefetchRequest.RESULT_FAILED;
+			}
+			if (tier == PrefetchOptions.TIER_MEMORY
+					&& mImageCache.getDrawableFromMemCache(url) != null) {
+				return PrefetchRequest.RESULT_SUCCEEDED;
+			}
+			final boolean local = mConfig.localLoader != null
+					&& LocalImageLoader.isLocalUri(url);
+			if (!local && mImageCache.getDiskCacheSize(url) < 0) {
+				Log.d(TAG, "预加载图片地址:" + url);
+				if (!downloadWithRetry(url, displayConfig)) {
+					return PrefetchRequest.RESULT_FAILED;
+				}
+				request.addDownloadedBytes(mImageCache.getDiskCacheSize(url));
+			}
+			if (tier == PrefetchOptions.TIER_MEMORY) {
+				final boolean neverCalculate = mConfig.bitmapProcess != null
+						&& mConfig.bitmapProcess.isNeverCalculate();
+				final int width = neverCalculate ? 0 : displayConfig
+						.getBitmapWidth();
+				final int height = neverCalculate ? 0 : displayConfig
+						.getBitmapHeight();
+				Bitmap bitmap = null;
+				if (local) {
+					// 本地图片已经在本地，只需要解码
+					bitmap = mConfig.localLoader.loadBitmap(url, width, height);
+				} else {
+					bitmap = mImageCache.getBitmapFromDiskCache(url, width,
+							height);
+				}
+				if (bitmap == null) {
+					return PrefetchRequest.RESULT_FAILED;
+				}
+				mImageCache.addDrawableToMemoryCache(new CacheableDrawable(
+						url, mResources, bitmap), url);
+			}
+			return PrefetchRequest.RESULT_SUCCEEDED;
+		}
+
+		@Override
+		protected void onPostExecute(Integer result) {
+			request.onTaskFinished(this, result);
+		}
+
+		@Override
+		protected void onCancelled(Integer result) {
+			request.onTaskFinished(this, result);
+		}
+	}
+
+	// 刷新图片的异步任务
+	private class RefreshImageTask extends
+			ImageAsyncTask<Object, Void, Integer> {
+		private final String url;
+		private final long maxAgeMs;
+
+		public RefreshImageTask(String url, long maxAgeMs) {
+			this.url = url;
+			this.maxAgeMs = maxAgeMs;
+		}
+
+		@Override
+		protected Integer doInBackground(Object... params) {
+			if (mConfig == null || mConfig.bitmapProcess == null) {
+				return RevalidatingImageDownloader.RESULT_FAILED;
+			}
+			return mConfig.bitmapProcess.revalidateImage(url, maxAgeMs);
+		}
+
+		@Override
+		protected void onPostExecute(Integer result) {
+			if (result != null
+					&& result == RevalidatingImageDownloader.RESULT_MODIFIED
+					&& mImageCache != null) {
+				Log.d(TAG, "图片已更新:" + url);
+				mImageCache.evictDrawableFromMemCache(url);
+			}
+		}
+	}
+
 	/**
 	 * 图片下载完成的回调方法
 	 * 
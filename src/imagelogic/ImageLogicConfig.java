@@ -1,11 +1,16 @@
 package imagelogic;
 
+import imagelogic.disk.DiskEvictionPolicy;
+import imagelogic.disk.ImagePackCache;
 import imagelogic.display.ImageDisplayConfig;
 import imagelogic.display.ImageDisplayer;
 import imagelogic.display.ImageSimpleDisplayer;
 import imagelogic.download.ImageDownloader;
 import imagelogic.download.ImageProcess;
 import imagelogic.download.ImageSimpleHttpDownloader;
+import imagelogic.download.ImageUrlRewriter;
+import imagelogic.download.LocalImageLoader;
+import imagelogic.download.NegativeResultCache;
 import android.content.Context;
 import android.util.DisplayMetrics;
 
@@ -25,6 +30,13 @@ public class ImageLogicConfig {
 	public float memCacheSizePercent;// 缓存百分比，android系统分配给每个APK内存的大小
 	public int memCacheSize;// 内存缓存大小
 	public int diskCacheSize;// 磁盘缓存大小
+	public DiskEvictionPolicy diskEvictionPolicy;// 磁盘缓存淘汰策略
+	public boolean webpTranscodeEnabled;// 磁盘缓存冷文件是否转码成WebP
+	public ImagePackCache imagePack;// 随应用发布的只读图片包
+	public ImageUrlRewriter urlRewriter;// 按imageView大小改写图片地址
+	public boolean progressiveDisplay = true;// 渐进式JPEG是否边下载边显示
+	public NegativeResultCache negativeCache;// 加载失败的地址
+	public LocalImageLoader localLoader;// 本地图片(file/content/asset/res)加载
 	public int mDisplayWidth, mDisplayHeight;
 
 	public ImageLogicConfig(Context context) {
@@ -43,6 +55,7 @@ public class ImageLogicConfig {
 		int defaultHeight = (int) Math.floor(mDisplayHeight / 5);
 		defaultDisplayConfig.setBitmapHeight(defaultHeight);
 		defaultDisplayConfig.setBitmapWidth(defaultWidth);
+		localLoader = new LocalImageLoader(context);
 	}
 
 	public void init() {
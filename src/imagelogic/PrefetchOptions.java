@@ -0,0 +1,77 @@
+package imagelogic;
+
+import imagelogic.listener.PrefetchListener;
+import imagelogic.threads.PriorityLifoExecutor;
+
+/**
+ * 批量预加载配置类
+ *
+ */
+public class PrefetchOptions {
+	public static final int TIER_DISK = 0;// 只下载到磁盘缓存
+	public static final int TIER_MEMORY = 1;// 下载以后解码放入内存缓存
+
+	private int tier = TIER_DISK;// 预加载到哪一级缓存
+	private int bitmapWidth;// 图片宽，0使用默认显示配置
+	private int bitmapHeight;// 图片高，0使用默认显示配置
+	private int priority = PriorityLifoExecutor.PRIORITY_PREFETCH;// 下载优先级
+	private long maxBytes;// 最多下载的字节数，0不限制
+	private long maxTimeMs;// 最长预加载时间，0不限制
+	private PrefetchListener listener;// 进度和完成回调
+
+	public int getTier() {
+		return tier;
+	}
+
+	public void setTier(int tier) {
+		this.tier = tier;
+	}
+
+	public int getBitmapWidth() {
+		return bitmapWidth;
+	}
+
+	public void setBitmapWidth(int bitmapWidth) {
+		this.bitmapWidth = bitmapWidth;
+	}
+
+	public int getBitmapHeight() {
+		return bitmapHeight;
+	}
+
+	public void setBitmapHeight(int bitmapHeight) {
+		this.bitmapHeight = bitmapHeight;
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+
+	public void setPriority(int priority) {
+		this.priority = priority;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public long getMaxTimeMs() {
+		return maxTimeMs;
+	}
+
+	public void setMaxTimeMs(long maxTimeMs) {
+		this.maxTimeMs = maxTimeMs;
+	}
+
+	public PrefetchListener getListener() {
+		return listener;
+	}
+
+	public void setListener(PrefetchListener listener) {
+		this.listener = listener;
+	}
+}
@@ -0,0 +1,173 @@
+package imagelogic;
+
+import imagelogic.listener.PrefetchListener;
+import imagelogic.threads.ImageAsyncTask;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * 批量预加载的句柄，可以查询进度和取消。
+ * 超出字节数或者时间预算以后，还没有开始的图片不再下载；正在下载的图片下载完成，所以下载的字节数可能略微超出预算。
+ *
+ */
+public class PrefetchRequest {
+	static final int RESULT_SUCCEEDED = 0;// 图片已经在目标缓存中
+	static final int RESULT_FAILED = 1;// 下载或者解码失败
+	static final int RESULT_SKIPPED = 2;// 取消或者超出预算，没有下载
+
+	private static final long PROGRESS_INTERVAL = 200;// 进度回调的最小间隔，毫秒
+
+	private final int mTotal;// 图片总数
+	private final long mMaxBytes;// 字节数预算，0不限制
+	private final long mDeadline;// 时间预算的截止时间，0不限制
+	private final PrefetchListener mListener;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+	private final List<ImageAsyncTask<?, ?, ?>> mTasks = new ArrayList<ImageAsyncTask<?, ?, ?>>();// 提交的任务
+	private final AtomicLong mDownloadedBytes = new AtomicLong();// 已经下载的字节数
+	private volatile boolean mCancelled;// 是否已经取消
+
+	// 以下字段只在主线程访问
+	private int mSucceeded;
+	private int mFailed;
+	private int mSkipped;
+	private boolean mProgressPosted;// 是否已经有等待执行的进度回调
+
+	// 合并以后的进度回调
+	private final Runnable mProgressRunnable = new Runnable() {
+		@Override
+		public void run() {
+			mProgressPosted = false;
+			if (!isDone()) {
+				mListener.onProgress(PrefetchRequest.this, getFinishedCount(),
+						mTotal);
+			}
+		}
+	};
+
+	PrefetchRequest(int total, PrefetchOptions options) {
+		mTotal = total;
+		mMaxBytes = options.getMaxBytes();
+		mDeadline = options.getMaxTimeMs() > 0 ? SystemClock.uptimeMillis()
+				+ options.getMaxTimeMs() : 0;
+		mListener = options.getListener();
+		if (total == 0 && mListener != null) {
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					mListener.onComplete(PrefetchRequest.this);
+				}
+			});
+		}
+	}
+
+	/**
+	 * @Title: cancel
+	 * @Description: 取消预加载，还没有开始的图片不再下载，正在下载的图片完成以后回调onComplete
+	 * @return void
+	 * @throws
+	 */
+	public void cancel() {
+		mCancelled = true;
+		synchronized (mTasks) {
+			for (ImageAsyncTask<?, ?, ?> task : mTasks) {
+				task.cancel(false);
+			}
+			mTasks.clear();
+		}
+	}
+
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	// 所有图片都已经结束，只在主线程调用
+	public boolean isDone() {
+		return getFinishedCount() == mTotal;
+	}
+
+	public int getTotalCount() {
+		return mTotal;
+	}
+
+	public int getSucceededCount() {
+		return mSucceeded;
+	}
+
+	public int getFailedCount() {
+		return mFailed;
+	}
+
+	public int getSkippedCount() {
+		return mSkipped;
+	}
+
+	// 已经下载的字节数，不包括原来已经在磁盘缓存中的图片
+	public long getDownloadedBytes() {
+		return mDownloadedBytes.get();
+	}
+
+	private int getFinishedCount() {
+		return mSucceeded + mFailed + mSkipped;
+	}
+
+	// 记录提交的任务，取消的时候一起取消
+	void addTask(ImageAsyncTask<?, ?, ?> task) {
+		synchronized (mTasks) {
+			if (mCancelled) {
+				task.cancel(false);
+			} else {
+				mTasks.add(task);
+			}
+		}
+	}
+
+	// 已经取消或者超出预算，还没有开始的图片不再下载
+	boolean isExhausted() {
+		if (mCancelled) {
+			return true;
+		}
+		if (mMaxBytes > 0 && mDownloadedBytes.get() >= mMaxBytes) {
+			return true;
+		}
+		return mDeadline > 0 && SystemClock.uptimeMillis() >= mDeadline;
+	}
+
+	void addDownloadedBytes(long bytes) {
+		if (bytes > 0) {
+			mDownloadedBytes.addAndGet(bytes);
+		}
+	}
+
+	// 一张图片结束，在主线程调用，进度按PROGRESS_INTERVAL合并回调
+	void onTaskFinished(ImageAsyncTask<?, ?, ?> task, Integer result) {
+		synchronized (mTasks) {
+			mTasks.remove(task);
+		}
+		if (result == null || result == RESULT_SKIPPED) {
+			mSkipped++;
+		} else if (result == RESULT_SUCCEEDED) {
+			mSucceeded++;
+		} else {
+			mFailed++;
+		}
+		if (mListener == null) {
+			return;
+		}
+		if (isDone()) {
+			mHandler.removeCallbacks(mProgressRunnable);
+			mProgressPosted = false;
+			mListener.onProgress(this, mTotal, mTotal);
+			mListener.onComplete(this);
+		} else if (!mProgressPosted) {
+			mProgressPosted = true;
+			mHandler.postDelayed(mProgressRunnable, PROGRESS_INTERVAL);
+		}
+	}
+}
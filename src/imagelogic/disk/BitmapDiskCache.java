@@ -1,9 +1,15 @@
 package imagelogic.disk;
 
+import imagelogic.utils.ByteArrayPool;
+import imagelogic.utils.CacheKey;
+import imagelogic.utils.ImageDecoder;
+
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
@@ -15,6 +21,8 @@ public class BitmapDiskCache extends DiskBasedCache {
 	public static final Bitmap.CompressFormat DEFAULT_COMPRESS_FORMAT = Bitmap.CompressFormat.PNG;
 	private Bitmap.CompressFormat compressFormat = DEFAULT_COMPRESS_FORMAT;
 	private int compressQuality = DEFAULT_COMPRESS_QUALITY;
+	private volatile WebpTranscoder mWebpTranscoder;// WebP转码，为空不转码
+	private volatile boolean mHasLegacyEntries;// 是否还有MD5文件名的旧缓存文件
 
 	public BitmapDiskCache(File rootDirectory) {
 		super(rootDirectory);
@@ -24,20 +32,85 @@ public class BitmapDiskCache extends DiskBasedCache {
 		super(rootDirectory, maxCacheSizeInBytes);
 	}
 
+	/**
+	 * 设置WebP转码，冷文件在磁盘维护线程中转码，为空关闭转码
+	 */
+	public void setWebpTranscoder(WebpTranscoder transcoder) {
+		mWebpTranscoder = transcoder;
+	}
+
+	public WebpTranscoder getWebpTranscoder() {
+		return mWebpTranscoder;
+	}
+
+	@Override
+	public synchronized void initialize() {
+		super.initialize();
+		mHasLegacyEntries = countLegacyEntries() > 0;
+	}
+
+	/**
+	 * 旧版本的缓存文件用图片地址的MD5命名，没法反推出地址，所以在使用的时候迁移到新的文件名。
+	 * 旧文件都迁移或者淘汰以后不再计算MD5
+	 */
+	public void migrateLegacyEntry(CacheKey key) {
+		if (!mHasLegacyEntries) {
+			return;
+		}
+		String legacyKey = key.getLegacyFileName();
+		if (getHeader(legacyKey) != null
+				&& rename(legacyKey, key.getFileName())) {
+			Log.d(TAG, "迁移旧的缓存文件:" + legacyKey);
+		}
+	}
+
+	// 删除图片地址对应的缓存文件，包括没有迁移的旧文件
+	public void remove(CacheKey key) {
+		remove(key.getFileName());
+		if (mHasLegacyEntries) {
+			remove(key.getLegacyFileName());
+		}
+	}
+
+	private int countLegacyEntries() {
+		int count = 0;
+		for (CacheHeader entry : getEntries()) {
+			if (CacheKey.isLegacyFileName(entry.key)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	protected void onMaintenance() {
+		if (mHasLegacyEntries) {
+			mHasLegacyEntries = countLegacyEntries() > 0;
+		}
+		WebpTranscoder transcoder = mWebpTranscoder;
+		if (transcoder != null) {
+			transcoder.transcodeColdEntries(this);
+		}
+	}
+
 	public boolean put(String key, Bitmap bitmap, boolean isJpg) {
 		File file = getFileForKey(key);
 		FileOutputStream fos = null;
 		ByteArrayOutputStream bos = null;
 		try {
 			fos = new FileOutputStream(file);
+			CheckedOutputStream cos = new CheckedOutputStream(fos, new CRC32());
 			if (isJpg) {
-				bitmap.compress(CompressFormat.JPEG, compressQuality, fos);
+				bitmap.compress(CompressFormat.JPEG, compressQuality, cos);
 			} else {
-				bitmap.compress(CompressFormat.PNG, compressQuality, fos);
+				bitmap.compress(CompressFormat.PNG, compressQuality, cos);
 			}
+			cos.flush();
 
 			int size = (int) file.length();
-			CacheHeader e = new CacheHeader(key, size);
+			CacheHeader e = createHeader(key, size, bitmap,
+					isJpg ? CompressFormat.JPEG : CompressFormat.PNG);
+			e.crc = cos.getChecksum().getValue();
 			pruneIfNeeded(size);
 			putEntry(key, e);
 			return true;
@@ -47,11 +120,14 @@ public class BitmapDiskCache extends DiskBasedCache {
 				bitmap.compress(compressFormat, compressQuality, bos);
 				bos.flush();
 				int size = (int) bos.size();
-				CacheHeader entry = new CacheHeader(key, size);
+				byte[] data = bos.toByteArray();
+				CacheHeader entry = createHeader(key, size, bitmap,
+						compressFormat);
+				entry.crc = checksum(data, 0, size);
 				pruneIfNeeded(size);
 				putEntry(key, entry);
 				fos = new FileOutputStream(file);
-				fos.write(bos.toByteArray());
+				fos.write(data);
 				return true;
 			} catch (Exception e2) {
 			} finally {
@@ -87,13 +163,86 @@ public class BitmapDiskCache extends DiskBasedCache {
 	}
 
 	public Bitmap get(String key) {
-		byte[] data = getData(key);
+		return get(key, 0, 0);
+	}
+
+	/**
+	 * 获取图片，根据索引中记录的宽高和格式计算压缩比，不需要再解析一次图片边界
+	 * 
+	 * @param key
+	 * @param reqWidth
+	 *            需要的宽，小于等于0不压缩
+	 * @param reqHeight
+	 *            需要的高，小于等于0不压缩
+	 */
+	public Bitmap get(String key, int reqWidth, int reqHeight) {
+		CacheHeader header = getHeader(key);
+		ByteArrayPool.Buffer data = getPooledData(key,
+				ByteArrayPool.getDefault());
 		if (data != null) {
-			final Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0,
-					data.length);
-			Log.d(TAG, "磁盘缓存获取图片数据ok");
-			return bitmap;
+			try {
+				Bitmap bitmap = decode(data.data, data.length, header,
+						reqWidth, reqHeight);
+				Log.d(TAG, "磁盘缓存获取图片数据ok");
+				return bitmap;
+			} finally {
+				data.release();
+			}
 		}
 		return null;
 	}
+
+	/**
+	 * @Title: decode
+	 * @Description: 解码缓存的图片数据，有宽高信息的时候不用再解码一次边界
+	 * @param @param data 图片数据
+	 * @param @param header 图片信息，可以为null
+	 * @param @param reqWidth 需要的宽，小于等于0解码原图
+	 * @param @param reqHeight 需要的高，小于等于0解码原图
+	 * @return Bitmap
+	 */
+	public static Bitmap decode(byte[] data, CacheHeader header,
+			int reqWidth, int reqHeight) {
+		return decode(data, data.length, header, reqWidth, reqHeight);
+	}
+
+	// 同上，数据只占数组的前length个字节(从池中借出的数组)
+	public static Bitmap decode(byte[] data, int length, CacheHeader header,
+			int reqWidth, int reqHeight) {
+		if (reqWidth <= 0 || reqHeight <= 0) {
+			return ImageDecoder.decodeByteArray(data, length, null);
+		} else if (header != null && header.hasBounds()) {
+			return ImageDecoder.decodeSampledBitmapFromBytes(data, length,
+					reqWidth, reqHeight, header.width, header.height,
+					header.mimeType);
+		} else {
+			return ImageDecoder.decodeSampledBitmapFromBytes(data, length,
+					reqWidth, reqHeight);
+		}
+	}
+
+	/**
+	 * 读取下载文件的图片边界，只解析文件头，不解码像素
+	 */
+	@Override
+	protected CacheHeader createHeader(String key, File file) {
+		CacheHeader header = super.createHeader(key, file);
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+		header.width = options.outWidth;
+		header.height = options.outHeight;
+		header.mimeType = options.outMimeType;
+		return header;
+	}
+
+	private static CacheHeader createHeader(String key, long size,
+			Bitmap bitmap, CompressFormat format) {
+		CacheHeader header = new CacheHeader(key, size);
+		header.width = bitmap.getWidth();
+		header.height = bitmap.getHeight();
+		header.mimeType = format == CompressFormat.JPEG ? ImageDecoder.MIME_JPEG
+				: ImageDecoder.MIME_PNG;
+		return header;
+	}
 }
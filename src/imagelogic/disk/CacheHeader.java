@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package imagelogic.disk;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Handles holding onto the cache headers for an entry. The headers are
+ * serialized to the index file, so the metadata of an entry is known
+ * without touching its data.
+ * 
+ * Does not depend on android, so the eviction policies and
+ * {@link DiskCacheSimulator} also build on a plain JVM.
+ */
+public class CacheHeader {
+	/**
+	 * The size of the data identified by this CacheHeader.
+	 */
+	public long size;
+
+	/** The key that identifies the cache entry. */
+	public String key;
+
+	/** Width of the image, 0 if unknown. */
+	public int width;
+
+	/** Height of the image, 0 if unknown. */
+	public int height;
+
+	/** Mime type of the image, for example "image/jpeg", null if unknown. */
+	public String mimeType;
+
+	/** ETag for cache coherence. */
+	public String etag;
+
+	/** Last-Modified header of the server response. */
+	public String lastModified;
+
+	/** Time the entry was created, in milliseconds. */
+	public long createTime;
+
+	/**
+	 * Time the server last confirmed the data, in milliseconds. Starts
+	 * at the creation time and is bumped by a 304 on revalidation.
+	 */
+	public long validatedTime;
+
+	/** Time the entry was last read, in milliseconds. */
+	public long lastAccessTime;
+
+	/** Number of times the entry was read. */
+	public int hitCount;
+
+	/** CRC32 of the data, {@link #NO_CHECKSUM} if unknown. */
+	public long crc = NO_CHECKSUM;
+
+	public static final long NO_CHECKSUM = -1;
+
+	public CacheHeader(String key, long length) {
+		this.key = key;
+		this.size = length;
+		this.createTime = System.currentTimeMillis();
+		this.validatedTime = createTime;
+		this.lastAccessTime = createTime;
+	}
+
+	/**
+	 * Whether the dimensions of the image are known.
+	 */
+	public boolean hasBounds() {
+		return width > 0 && height > 0;
+	}
+
+	/**
+	 * Whether the checksum of the data is known.
+	 */
+	public boolean hasChecksum() {
+		return crc != NO_CHECKSUM;
+	}
+
+	/**
+	 * Reads the header off of an InputStream and returns a CacheHeader
+	 * object.
+	 * 
+	 * @param is
+	 *            The InputStream to read from.
+	 * @throws IOException
+	 */
+	public static CacheHeader readHeader(InputStream is)
+			throws IOException {
+		CacheHeader entry = new CacheHeader(readString(is), 0);
+		entry.size = readLong(is);
+		entry.width = readInt(is);
+		entry.height = readInt(is);
+		entry.mimeType = readNullableString(is);
+		entry.etag = readNullableString(is);
+		entry.lastModified = readNullableString(is);
+		entry.createTime = readLong(is);
+		entry.crc = readLong(is);
+		entry.lastAccessTime = readLong(is);
+		entry.hitCount = readInt(is);
+		entry.validatedTime = readLong(is);
+		return entry;
+	}
+
+	/**
+	 * Writes the contents of this CacheHeader to the specified
+	 * OutputStream.
+	 */
+	public void writeHeader(OutputStream os) throws IOException {
+		writeString(os, key);
+		writeLong(os, size);
+		writeInt(os, width);
+		writeInt(os, height);
+		writeNullableString(os, mimeType);
+		writeNullableString(os, etag);
+		writeNullableString(os, lastModified);
+		writeLong(os, createTime);
+		writeLong(os, crc);
+		writeLong(os, lastAccessTime);
+		writeInt(os, hitCount);
+		writeLong(os, validatedTime);
+	}
+
+	/**
+	 * Simple wrapper around {@link InputStream#read()} that throws EOFException
+	 * instead of returning -1.
+	 */
+	private static int read(InputStream is) throws IOException {
+		int b = is.read();
+		if (b == -1) {
+			throw new EOFException();
+		}
+		return b;
+	}
+
+	static void writeInt(OutputStream os, int n) throws IOException {
+		os.write((n >> 0) & 0xff);
+		os.write((n >> 8) & 0xff);
+		os.write((n >> 16) & 0xff);
+		os.write((n >> 24) & 0xff);
+	}
+
+	static int readInt(InputStream is) throws IOException {
+		int n = 0;
+		n |= (read(is) << 0);
+		n |= (read(is) << 8);
+		n |= (read(is) << 16);
+		n |= (read(is) << 24);
+		return n;
+	}
+
+	static void writeLong(OutputStream os, long n) throws IOException {
+		os.write((byte) (n >>> 0));
+		os.write((byte) (n >>> 8));
+		os.write((byte) (n >>> 16));
+		os.write((byte) (n >>> 24));
+		os.write((byte) (n >>> 32));
+		os.write((byte) (n >>> 40));
+		os.write((byte) (n >>> 48));
+		os.write((byte) (n >>> 56));
+	}
+
+	static long readLong(InputStream is) throws IOException {
+		long n = 0;
+		n |= ((read(is) & 0xFFL) << 0);
+		n |= ((read(is) & 0xFFL) << 8);
+		n |= ((read(is) & 0xFFL) << 16);
+		n |= ((read(is) & 0xFFL) << 24);
+		n |= ((read(is) & 0xFFL) << 32);
+		n |= ((read(is) & 0xFFL) << 40);
+		n |= ((read(is) & 0xFFL) << 48);
+		n |= ((read(is) & 0xFFL) << 56);
+		return n;
+	}
+
+	static void writeString(OutputStream os, String s) throws IOException {
+		byte[] b = s.getBytes("UTF-8");
+		writeLong(os, b.length);
+		os.write(b, 0, b.length);
+	}
+
+	static String readString(InputStream is) throws IOException {
+		int n = (int) readLong(is);
+		byte[] b = new byte[n];
+		int pos = 0;
+		int count;
+		while (pos < n && (count = is.read(b, pos, n - pos)) != -1) {
+			pos += count;
+		}
+		if (pos != n) {
+			throw new EOFException();
+		}
+		return new String(b, "UTF-8");
+	}
+
+	static void writeNullableString(OutputStream os, String s)
+			throws IOException {
+		os.write(s == null ? 0 : 1);
+		if (s != null) {
+			writeString(os, s);
+		}
+	}
+
+	static String readNullableString(InputStream is) throws IOException {
+		return read(is) == 0 ? null : readString(is);
+	}
+}
@@ -16,6 +16,10 @@
 
 package imagelogic.disk;
 
+import imagelogic.utils.ByteArrayPool;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -23,10 +27,26 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
+import android.os.Process;
 import android.util.Log;
 
 /**
@@ -43,6 +63,12 @@ public class DiskBasedCache {
 	private final Map<String, CacheHeader> mEntries = new LinkedHashMap<String, CacheHeader>(
 			16, .75f, true);
 
+	/**
+	 * The same entries without access ordering, for lookups that must not
+	 * make an entry look recently used.
+	 */
+	private final Map<String, CacheHeader> mHeaders = new HashMap<String, CacheHeader>();
+
 	/** Total amount of space currently used by the cache in bytes. */
 	private long mTotalSize = 0;
 
@@ -55,11 +81,98 @@ public class DiskBasedCache {
 	/** Default maximum disk usage in bytes. */
 	private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
 
-	/** High water mark percentage for the cache */
+	/** Low water mark percentage the maintenance worker prunes down to. */
 	private static final float HYSTERESIS_FACTOR = 0.9f;
 
+	/**
+	 * Percentage of the maximum size above which a put prunes inline instead
+	 * of waiting for the maintenance worker.
+	 */
+	private static final float HARD_LIMIT_FACTOR = 1.5f;
+
+	/** Number of entries evicted per lock hold by the maintenance worker. */
+	private static final int PRUNE_BATCH_SIZE = 32;
+
+	/** Delay before scheduled maintenance runs, so bursts are batched. */
+	private static final long MAINTENANCE_DELAY_MS = 1000;
+
+	/** Worker pruning the caches and writing their indexes off the caller. */
+	private static final ScheduledExecutorService MAINTENANCE_EXECUTOR = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				private final AtomicInteger mCount = new AtomicInteger(1);
+
+				public Thread newThread(final Runnable r) {
+					return new Thread(new Runnable() {
+						public void run() {
+							Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+							r.run();
+						}
+					}, "Disk Maintenance Thread #" + mCount.getAndIncrement());
+				}
+			});
+
+	/** Whether a maintenance run is already scheduled. */
+	private boolean mMaintenanceScheduled = false;
+
+	/** Suffix of the temporary file used by {@link #replaceData}. */
+	private static final String TRANSCODE_SUFFIX = ".transcode";
+
+	/** Suffix of the file holding the validator of a kept partial download. */
+	private static final String PARTIAL_SUFFIX = ".partial";
+
+	/** Partial downloads older than this are deleted on initialize. */
+	private static final long PARTIAL_MAX_AGE_MS = 24 * 60 * 60 * 1000L;
+
+	/** Serializes writers of the index file. */
+	private final Object mIndexWriteLock = new Object();
+
 	private boolean mDiskCacheStarting = true;
 
+	/** Name of the index file holding the serialized CacheHeaders. */
+	private static final String INDEX_FILE_NAME = "imagelogic.index";
+
+	/** Temporary name used while the index is being rewritten. */
+	private static final String INDEX_FILE_TMP_NAME = "imagelogic.index.tmp";
+
+	/** Magic number for current version of cache index format. */
+	private static final int INDEX_MAGIC = 0x20140605;
+
+	/** Number of entry changes after which the index is flushed to disk. */
+	private static final int INDEX_FLUSH_OPS = 16;
+
+	/** Number of entry changes not yet written to the index. */
+	private int mIndexDirtyOps = 0;
+
+	/** Number of reads after which the access times are flushed. */
+	private static final int ACCESS_FLUSH_OPS = 64;
+
+	/** Max time unflushed access times are kept in memory, in ms. */
+	private static final long ACCESS_FLUSH_INTERVAL_MS = 60 * 1000;
+
+	/** Number of reads whose access time is not yet written to the index. */
+	private int mPendingAccessOps = 0;
+
+	/** Time the index was last written, in milliseconds. */
+	private long mLastIndexFlushTime = 0;
+
+	/** Suffix of temporary download files. */
+	private static final String TEMP_SUFFIX = ".temp";
+
+	/** Sequence making the temp file of every writer unique. */
+	private final AtomicInteger mTempSequence = new AtomicInteger();
+
+	/**
+	 * Keys whose resumable temp file is held by a writer, see
+	 * {@link #lockPartial}. Guarded by itself.
+	 */
+	private final Set<String> mPartialWriters = new HashSet<String>();
+
+	/** Number of corrupt entries detected and removed since start. */
+	private int mCorruptCount = 0;
+
+	/** Decides which entries are removed first when the cache is full. */
+	private DiskEvictionPolicy mEvictionPolicy = new LruEvictionPolicy();
+
 	/**
 	 * Constructs an instance of the DiskBasedCache at the specified directory.
 	 * 
@@ -94,8 +207,14 @@ public class DiskBasedCache {
 				file.delete();
 			}
 		}
+		for (CacheHeader entry : mEntries.values()) {
+			mEvictionPolicy.onEntryRemoved(entry, false);
+		}
 		mEntries.clear();
+		mHeaders.clear();
 		mTotalSize = 0;
+		mIndexDirtyOps = 0;
+		mPendingAccessOps = 0;
 		mDiskCacheStarting = false;
 		Log.d(TAG, "Cache cleared.");
 	}
@@ -105,7 +224,35 @@ public class DiskBasedCache {
 	 * otherwise.
 	 */
 	public byte[] getData(String key) {
-		CacheHeader entry = mEntries.get(key);
+		return getData(key, true);
+	}
+
+	/**
+	 * Returns the cache bytes with the specified key if it exists, null
+	 * otherwise. Background readers pass false for 'recordAccess' so that
+	 * their reads do not make the entry look recently used.
+	 */
+	protected byte[] getData(String key, boolean recordAccess) {
+		ByteArrayPool.Buffer data = readData(key, recordAccess, null);
+		return data != null ? data.data : null;
+	}
+
+	/**
+	 * Returns the cache bytes with the specified key in an array borrowed
+	 * from 'pool', or null. The caller must release the buffer once the data
+	 * has been decoded; only the first 'length' bytes are valid.
+	 */
+	public ByteArrayPool.Buffer getPooledData(String key, ByteArrayPool pool) {
+		return readData(key, true, pool);
+	}
+
+	/**
+	 * Reads the cache bytes with the specified key into a new array of the
+	 * exact size, or into an array borrowed from 'pool' when it is not null.
+	 */
+	private ByteArrayPool.Buffer readData(String key, boolean recordAccess,
+			ByteArrayPool pool) {
+		CacheHeader entry = recordAccess ? getHeader(key) : peekHeader(key);
 		// if the entry does not exist and disk not init complete or size is 0,
 		// return.
 		if ((entry == null && !mDiskCacheStarting)
@@ -116,22 +263,46 @@ public class DiskBasedCache {
 		if (!file.exists() || file.length() == 0) {
 			return null;
 		}
+		// a truncated or grown file is detected without reading it.
+		if (entry != null && entry.size != file.length()) {
+			quarantine(key, "size " + file.length() + " expected "
+					+ entry.size);
+			return null;
+		}
 		CountingInputStream cis = null;
+		ByteArrayPool.Buffer data = null;
 		try {
-			cis = new CountingInputStream(new FileInputStream(file));
-			byte[] data = streamToBytes(cis,
-					(int) (file.length() - cis.bytesRead));
-			return data;
+			CheckedInputStream checked = new CheckedInputStream(
+					new FileInputStream(file), new CRC32());
+			cis = new CountingInputStream(checked);
+			data = streamToBytes(cis, (int) (file.length() - cis.bytesRead),
+					pool);
+			// the checksum is updated while the bytes are read, no second
+			// pass over the data is needed.
+			if (entry != null && entry.hasChecksum()
+					&& checked.getChecksum().getValue() != entry.crc) {
+				quarantine(key, "crc mismatch");
+				return null;
+			}
+			if (entry != null && recordAccess) {
+				onAccess(entry);
+			}
+			ByteArrayPool.Buffer result = data;
+			data = null;
+			return result;
 		} catch (IOException e) {
 			Log.d(TAG, file.getAbsolutePath() + ": " + e.toString());
 			remove(key);
 			return null;
 		} finally {
+			// a buffer that is not handed out goes straight back to the pool.
+			if (data != null) {
+				data.release();
+			}
 			if (cis != null) {
 				try {
 					cis.close();
-				} catch (IOException ioe) {
-					return null;
+				} catch (IOException ignored) {
 				}
 			}
 		}
@@ -140,6 +311,9 @@ public class DiskBasedCache {
 	/**
 	 * Initializes the DiskBasedCache by scanning for all files currently in the
 	 * specified root directory. Creates the root directory if necessary.
+	 * Metadata of entries found in the index file is restored, other files
+	 * only get their size. Entries are inserted in order of their last
+	 * access time, so the LRU order of the previous run is kept.
 	 */
 	public synchronized void initialize() {
 		if (!mRootDirectory.exists()) {
@@ -148,36 +322,49 @@ public class DiskBasedCache {
 						"Unable to create cache dir %s"
 								+ mRootDirectory.getAbsolutePath());
 			}
+			mDiskCacheStarting = false;
 			return;
 		}
 		File[] files = mRootDirectory.listFiles();
 		if (files == null) {
+			mDiskCacheStarting = false;
 			return;
 		}
+		Map<String, CacheHeader> indexed = readIndex();
+		List<CacheHeader> entries = new ArrayList<CacheHeader>(files.length);
 		for (File file : files) {
-			FileInputStream fis = null;
+			if (!isEntryFile(file)) {
+				deleteIfStalePartial(file);
+				continue;
+			}
 			try {
-				CacheHeader entry = new CacheHeader();
-				entry.key = file.getName();
-				entry.size = file.length();
+				CacheHeader entry = indexed.get(file.getName());
+				if (entry != null && entry.size != file.length()) {
+					mCorruptCount++;
+					throw new RuntimeException("truncated file "
+							+ file.getName());
+				}
+				if (entry == null) {
+					// not in the index, the file time is the best guess.
+					entry = new CacheHeader(file.getName(), file.length());
+					entry.lastAccessTime = file.lastModified();
+				}
 				if (entry.size == 0) {
 					throw new RuntimeException("no size file");
 				}
-				putEntry(entry.key, entry);
+				entries.add(entry);
 			} catch (Exception e) {
 				e.printStackTrace();
 				if (file != null) {
 					file.delete();
 				}
-			} finally {
-				try {
-					if (fis != null) {
-						fis.close();
-					}
-				} catch (IOException ignored) {
-				}
 			}
 		}
+		Collections.sort(entries, ACCESS_ORDER);
+		for (CacheHeader entry : entries) {
+			putEntry(entry.key, entry);
+		}
+		mLastIndexFlushTime = System.currentTimeMillis();
 		mDiskCacheStarting = false;
 	}
 
@@ -194,17 +381,26 @@ public class DiskBasedCache {
 	}
 
 	public boolean put(String key, byte[] data) {
+		return put(key, data, new CacheHeader(key, data.length));
+	}
+
+	/**
+	 * Stores the data together with the metadata of the given header.
+	 */
+	public boolean put(String key, byte[] data, CacheHeader e) {
 		int size = data.length;
 		pruneIfNeeded(size);
 		File file = getFileForKey(key);
 		try {
 			FileOutputStream fos = new FileOutputStream(file);
-			CacheHeader e = new CacheHeader(key, size);
+			e.key = key;
+			e.size = size;
+			e.crc = checksum(data, 0, size);
 			fos.write(data);
 			fos.close();
 			putEntry(key, e);
 			return true;
-		} catch (IOException e) {
+		} catch (IOException ioe) {
 		}
 		boolean deleted = file.delete();
 		if (!deleted) {
@@ -229,27 +425,77 @@ public class DiskBasedCache {
 
 	}
 
-	public OutputStream getTempOutputStream(String key) throws Exception {
-		File file = null;
+	/**
+	 * Returns a stream writing to a temp file of its own, so concurrent
+	 * writers of the same key never share a file. The checksum and the
+	 * validators of the written bytes travel with the stream and are stored
+	 * with the entry on {@link #commit(OutputStream)}.
+	 */
+	public OutputStream getTempOutputStream(final String key) throws Exception {
+		File file = getFileForKey(key + "." + mTempSequence.incrementAndGet()
+				+ TEMP_SUFFIX);
 		try {
-			file = getFileForKey(key + ".temp");
-			FileOutputStream fos = new FileOutputStream(file);
-			return fos;
+			return new TempOutputStream(key, file, false,
+					new FileOutputStream(file), new CRC32());
 		} catch (Exception e) {
-			boolean deleted = file.delete();
-			if (!deleted) {
-				Log.d(TAG, "Could not clean up file " + file.getAbsolutePath());
-			}
+			file.delete();
 			throw e;
 		}
+	}
+
+	/**
+	 * Claims the resumable temp file of a key. Only one writer at a time may
+	 * resume or keep a partial download; others should download to their own
+	 * temp file with {@link #getTempOutputStream(String)}.
+	 * 
+	 * @return false if another writer holds the partial file
+	 */
+	public boolean lockPartial(String key) {
+		synchronized (mPartialWriters) {
+			return mPartialWriters.add(key);
+		}
+	}
 
+	/** Releases the claim taken by {@link #lockPartial}. */
+	public void unlockPartial(String key) {
+		synchronized (mPartialWriters) {
+			mPartialWriters.remove(key);
+		}
 	}
 
-	public void delTempFile(String key) throws Exception {
+	/**
+	 * Opens the resumable temp file of a key for writing. The caller must
+	 * hold {@link #lockPartial} for the key.
+	 * 
+	 * @param append
+	 *            true to continue a partial download kept by
+	 *            {@link #keepPartial}. The bytes already on disk are run
+	 *            through the checksum so the committed crc covers the
+	 *            whole file.
+	 */
+	public OutputStream getTempOutputStream(final String key, boolean append)
+			throws Exception {
 		File file = null;
 		try {
-			file = getFileForKey(key + ".temp");
-			file.delete();
+			file = getFileForKey(key + TEMP_SUFFIX);
+			CRC32 crc = new CRC32();
+			if (append && file.exists()) {
+				InputStream is = new CheckedInputStream(new FileInputStream(
+						file), crc);
+				try {
+					byte[] buffer = new byte[8 * 1024];
+					while (is.read(buffer) != -1) {
+						// only feeding the checksum
+					}
+				} finally {
+					is.close();
+				}
+			} else {
+				append = false;
+			}
+			getFileForKey(key + PARTIAL_SUFFIX).delete();
+			FileOutputStream fos = new FileOutputStream(file, append);
+			return new TempOutputStream(key, file, true, fos, crc);
 		} catch (Exception e) {
 			boolean deleted = file.delete();
 			if (!deleted) {
@@ -260,20 +506,129 @@ public class DiskBasedCache {
 
 	}
 
-	public void commit(String key) {
-		File file = null;
+	/**
+	 * Deletes the temp file written by a stream from
+	 * {@link #getTempOutputStream}. The stream should be closed first.
+	 */
+	public void delTempFile(OutputStream out) {
+		TempOutputStream temp = (TempOutputStream) out;
+		if (!temp.mFile.delete() && temp.mFile.exists()) {
+			Log.d(TAG, "Could not clean up file " + temp.mFile.getAbsolutePath());
+		}
+		if (temp.mPartial) {
+			getFileForKey(temp.mKey + PARTIAL_SUFFIX).delete();
+		}
+	}
+
+	/**
+	 * Keeps the temporary file of a failed download so the next attempt can
+	 * resume it with a range request. The validator (strong ETag or
+	 * Last-Modified) is what the server must still match for the bytes
+	 * on disk to be reused. The caller must hold {@link #lockPartial} for the
+	 * key.
+	 */
+	public void keepPartial(String key, String validator) {
+		File file = getFileForKey(key + TEMP_SUFFIX);
+		if (validator == null || file.length() == 0) {
+			file.delete();
+			getFileForKey(key + PARTIAL_SUFFIX).delete();
+			return;
+		}
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(getFileForKey(key + PARTIAL_SUFFIX));
+			CacheHeader.writeString(fos, validator);
+		} catch (IOException e) {
+			file.delete();
+			Log.d(TAG, "Could not keep partial download " + key);
+		} finally {
+			if (fos != null) {
+				try {
+					fos.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of bytes of a kept partial download, or 0 when
+	 * there is nothing to resume.
+	 */
+	public long getPartialLength(String key) {
+		if (!getFileForKey(key + PARTIAL_SUFFIX).exists()) {
+			return 0;
+		}
+		return getFileForKey(key + TEMP_SUFFIX).length();
+	}
+
+	/**
+	 * Returns the validator stored by {@link #keepPartial}, or null.
+	 */
+	public String getPartialValidator(String key) {
+		File file = getFileForKey(key + PARTIAL_SUFFIX);
+		if (!file.exists()) {
+			return null;
+		}
+		FileInputStream fis = null;
+		try {
+			fis = new FileInputStream(file);
+			return CacheHeader.readString(fis);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (fis != null) {
+				try {
+					fis.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+	}
+
+	/** Deletes temporary download files nobody resumed for a day. */
+	private void deleteIfStalePartial(File file) {
+		String name = file.getName();
+		if ((name.endsWith(TEMP_SUFFIX) || name.endsWith(PARTIAL_SUFFIX))
+				&& System.currentTimeMillis() - file.lastModified() > PARTIAL_MAX_AGE_MS) {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Moves the temp file written by a stream from
+	 * {@link #getTempOutputStream} into the cache, with the checksum and
+	 * validators recorded by that stream. The stream should be closed first.
+	 * When several writers commit the same key the last one wins.
+	 */
+	public void commit(OutputStream out) {
+		TempOutputStream temp = (TempOutputStream) out;
+		final String key = temp.mKey;
+		File file = temp.mFile;
 		try {
-			file = getFileForKey(key + ".temp");
 			if (file.length() == 0) {
 				file.delete();
 				return;
 			}
-			File newfile = getFileForKey(key);
-			file.renameTo(newfile);
-			long size = file.length();
-			pruneIfNeeded((int) size);
-			CacheHeader e = new CacheHeader(key, size);
-			putEntry(key, e);
+			// the header is read from the temp file, which is still private
+			CacheHeader e = createHeader(key, file);
+			e.crc = temp.getChecksum().getValue();
+			if (temp.mValidators != null) {
+				e.etag = temp.mValidators[0];
+				e.lastModified = temp.mValidators[1];
+			}
+			synchronized (this) {
+				// the rename and the entry must not interleave with another
+				// writer of the same key, or the crc would describe its file
+				if (!file.renameTo(getFileForKey(key))) {
+					throw new IOException("Could not rename " + file.getName());
+				}
+				if (temp.mPartial) {
+					getFileForKey(key + PARTIAL_SUFFIX).delete();
+				}
+				pruneIfNeeded((int) e.size);
+				putEntry(key, e);
+			}
 		} catch (Exception e) {
 			if (file != null) {
 				boolean deleted = file.delete();
@@ -285,12 +640,39 @@ public class DiskBasedCache {
 		}
 	}
 
+	/**
+	 * Moves an entry to a new key, keeping its metadata. Used to migrate
+	 * files written under an older key scheme.
+	 * 
+	 * @return true if the entry now lives under newKey
+	 */
+	public synchronized boolean rename(String oldKey, String newKey) {
+		CacheHeader entry = mEntries.get(oldKey);
+		if (entry == null) {
+			return false;
+		}
+		if (mEntries.containsKey(newKey)) {
+			remove(oldKey);
+			return true;
+		}
+		if (!getFileForKey(oldKey).renameTo(getFileForKey(newKey))) {
+			Log.d(TAG, "Could not rename cache entry " + oldKey + " to "
+					+ newKey);
+			return false;
+		}
+		removeEntry(oldKey);
+		entry.key = newKey;
+		putEntry(newKey, entry);
+		return true;
+	}
+
 	/**
 	 * Removes the specified key from the cache if it exists.
 	 */
 	public synchronized void remove(String key) {
 		boolean deleted = getFileForKey(key).delete();
 		removeEntry(key);
+		onIndexChanged();
 		if (!deleted) {
 			Log.d(TAG, "Could not delete cache entry for key=" + key
 					+ ", filename=" + getFilenameForKey(key));
@@ -321,30 +703,25 @@ public class DiskBasedCache {
 	}
 
 	/**
-	 * Prunes the cache to fit the amount of bytes specified.
+	 * Prunes the cache inline if adding the amount of bytes specified would
+	 * grossly exceed the maximum size. Normal pruning is left to the
+	 * maintenance worker, so puts do not delete files on the caller thread.
 	 * 
 	 * @param neededSpace
 	 *            The amount of bytes we are trying to fit into the cache.
 	 */
 	protected synchronized void pruneIfNeeded(int neededSpace) {
-		if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes) {
+		if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes
+				* HARD_LIMIT_FACTOR) {
+			// the maintenance worker prunes once the entry has been added.
 			return;
 		}
-		Log.d(TAG, "Pruning old cache entries." + (mTotalSize / 1024));
+		Log.d(TAG, "Pruning old cache entries inline." + (mTotalSize / 1024));
 
-		Iterator<Map.Entry<String, CacheHeader>> iterator = mEntries.entrySet()
-				.iterator();
-		while (iterator.hasNext()) {
-			Map.Entry<String, CacheHeader> entry = iterator.next();
-			CacheHeader e = entry.getValue();
-			boolean deleted = getFileForKey(e.key).delete();
-			if (deleted) {
-				mTotalSize -= e.size;
-			} else {
-				Log.d(TAG, "Could not delete cache entry for key=" + e.key
-						+ ", filename=" + e.key);
-			}
-			iterator.remove();
+		List<CacheHeader> victims = mEvictionPolicy
+				.evictionOrder(new ArrayList<CacheHeader>(mEntries.values()));
+		for (CacheHeader e : victims) {
+			evict(e);
 			if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes
 					* HYSTERESIS_FACTOR) {
 				break;
@@ -352,6 +729,23 @@ public class DiskBasedCache {
 		}
 	}
 
+	/**
+	 * Deletes the file of an entry chosen by the eviction policy.
+	 */
+	private void evict(CacheHeader e) {
+		boolean deleted = getFileForKey(e.key).delete();
+		if (deleted) {
+			mTotalSize -= e.size;
+		} else {
+			Log.d(TAG, "Could not delete cache entry for key=" + e.key
+					+ ", filename=" + e.key);
+		}
+		mEntries.remove(e.key);
+		mHeaders.remove(e.key);
+		mEvictionPolicy.onEntryRemoved(e, true);
+		mIndexDirtyOps++;
+	}
+
 	/**
 	 * Puts the entry with the specified key into the cache.
 	 * 
@@ -366,8 +760,338 @@ public class DiskBasedCache {
 		} else {
 			CacheHeader oldEntry = mEntries.get(key);
 			mTotalSize += (entry.size - oldEntry.size);
+			mEvictionPolicy.onEntryRemoved(oldEntry, false);
 		}
 		mEntries.put(key, entry);
+		mHeaders.put(key, entry);
+		mEvictionPolicy.onEntryAdded(entry);
+		onIndexChanged();
+		if (mTotalSize >= mMaxCacheSizeInBytes) {
+			scheduleMaintenance();
+		}
+	}
+
+	/**
+	 * Sets the policy deciding which entries are evicted first. Entries
+	 * already in the cache are handed to the new policy in LRU order.
+	 */
+	public synchronized void setEvictionPolicy(DiskEvictionPolicy policy) {
+		if (policy == null) {
+			policy = new LruEvictionPolicy();
+		}
+		mEvictionPolicy = policy;
+		for (CacheHeader entry : mEntries.values()) {
+			policy.onEntryAdded(entry);
+		}
+	}
+
+	/**
+	 * Removes a corrupt entry so that it is fetched again from the network.
+	 */
+	private synchronized void quarantine(String key, String reason) {
+		Log.d(TAG, "Corrupt cache entry for key=" + key + ", " + reason);
+		mCorruptCount++;
+		remove(key);
+	}
+
+	/**
+	 * Returns the number of corrupt entries detected since the cache was
+	 * created.
+	 */
+	public synchronized int getCorruptCount() {
+		return mCorruptCount;
+	}
+
+	/**
+	 * Computes the checksum stored with an entry.
+	 */
+	public static long checksum(byte[] data, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(data, offset, length);
+		return crc.getValue();
+	}
+
+	/**
+	 * Returns the header of the entry identified by 'key' without changing
+	 * its position in the access order, or null.
+	 */
+	private synchronized CacheHeader peekHeader(String key) {
+		return mHeaders.get(key);
+	}
+
+	/**
+	 * Returns the header of the entry identified by 'key', or null.
+	 */
+	public synchronized CacheHeader getHeader(String key) {
+		return mEntries.get(key);
+	}
+
+	/**
+	 * Records that the server confirmed the cached data is still current,
+	 * for example with a 304 Not Modified.
+	 */
+	public synchronized void markValidated(String key) {
+		CacheHeader entry = mEntries.get(key);
+		if (entry != null) {
+			entry.validatedTime = System.currentTimeMillis();
+			onIndexChanged();
+		}
+	}
+
+	/**
+	 * Creates the header for a file which has just been committed to the
+	 * cache. Subclasses may fill in the metadata they know how to read.
+	 */
+	protected CacheHeader createHeader(String key, File file) {
+		return new CacheHeader(key, file.length());
+	}
+
+	/**
+	 * Records a read of the entry. Access times are only kept in memory and
+	 * written with the index in batches.
+	 */
+	private synchronized void onAccess(CacheHeader entry) {
+		long now = System.currentTimeMillis();
+		entry.lastAccessTime = now;
+		entry.hitCount++;
+		mEvictionPolicy.onEntryAccessed(entry);
+		mPendingAccessOps++;
+		if (mPendingAccessOps >= ACCESS_FLUSH_OPS
+				|| now - mLastIndexFlushTime >= ACCESS_FLUSH_INTERVAL_MS) {
+			scheduleMaintenance();
+		}
+	}
+
+	/**
+	 * Writes the index to disk if enough entries changed since the last
+	 * flush.
+	 */
+	private void onIndexChanged() {
+		if (++mIndexDirtyOps >= INDEX_FLUSH_OPS) {
+			scheduleMaintenance();
+		}
+	}
+
+	/**
+	 * Schedules a maintenance run on the background worker unless one is
+	 * already pending.
+	 */
+	private synchronized void scheduleMaintenance() {
+		if (mMaintenanceScheduled || mDiskCacheStarting) {
+			return;
+		}
+		mMaintenanceScheduled = true;
+		MAINTENANCE_EXECUTOR.schedule(new Runnable() {
+			public void run() {
+				runMaintenance();
+			}
+		}, MAINTENANCE_DELAY_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Prunes the cache down to the low water mark and writes the index. The
+	 * lock is released between batches so readers are not blocked for the
+	 * whole prune. The eviction order is computed once per run; entries
+	 * removed or replaced between batches are skipped.
+	 */
+	private void runMaintenance() {
+		synchronized (this) {
+			mMaintenanceScheduled = false;
+		}
+		long lowWaterMark = (long) (mMaxCacheSizeInBytes * HYSTERESIS_FACTOR);
+		boolean pruned = false;
+		Iterator<CacheHeader> victims = null;
+		while (true) {
+			synchronized (this) {
+				if (mTotalSize < mMaxCacheSizeInBytes && !pruned
+						|| mTotalSize < lowWaterMark || mEntries.isEmpty()) {
+					break;
+				}
+				if (!pruned) {
+					Log.d(TAG, "Pruning old cache entries."
+							+ (mTotalSize / 1024));
+					pruned = true;
+				}
+				if (victims == null || !victims.hasNext()) {
+					// only entries added since the order was computed are left.
+					victims = mEvictionPolicy.evictionOrder(
+							new ArrayList<CacheHeader>(mEntries.values()))
+							.iterator();
+				}
+				int count = 0;
+				while (victims.hasNext()) {
+					CacheHeader e = victims.next();
+					if (mHeaders.get(e.key) != e) {
+						continue;
+					}
+					evict(e);
+					if (mTotalSize < lowWaterMark
+							|| ++count >= PRUNE_BATCH_SIZE) {
+						break;
+					}
+				}
+			}
+		}
+		onMaintenance();
+		flushIndex();
+	}
+
+	/**
+	 * Called on the maintenance worker after pruning. Subclasses may do
+	 * additional background work on the entries here.
+	 */
+	protected void onMaintenance() {
+	}
+
+	/**
+	 * Returns the headers of all entries, least recently used first.
+	 */
+	protected synchronized List<CacheHeader> getEntries() {
+		return new ArrayList<CacheHeader>(mEntries.values());
+	}
+
+	/**
+	 * Atomically replaces the data of an entry, for example with a smaller
+	 * encoding of the same image. The data is written to a temporary file
+	 * which is renamed over the entry, and the header is updated in place so
+	 * the entry keeps its position in the eviction order. Nothing is changed
+	 * if the entry was removed or replaced since 'expected' was read.
+	 * 
+	 * @return true if the entry was replaced.
+	 */
+	protected boolean replaceData(CacheHeader expected, byte[] data,
+			String mimeType) {
+		File tmp = getFileForKey(expected.key + TRANSCODE_SUFFIX);
+		try {
+			FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				fos.write(data);
+			} finally {
+				fos.close();
+			}
+		} catch (IOException e) {
+			Log.d(TAG, "Could not write " + tmp.getAbsolutePath() + ": " + e);
+			tmp.delete();
+			return false;
+		}
+		synchronized (this) {
+			// the unordered index keeps the access order untouched.
+			if (mHeaders.get(expected.key) != expected
+					|| !tmp.renameTo(getFileForKey(expected.key))) {
+				tmp.delete();
+				return false;
+			}
+			mTotalSize += data.length - expected.size;
+			expected.size = data.length;
+			expected.crc = checksum(data, 0, data.length);
+			expected.mimeType = mimeType;
+			onIndexChanged();
+			return true;
+		}
+	}
+
+	/**
+	 * Writes the headers of all entries to the index file, least recently
+	 * used first. The index is
+	 * written to a temporary file first and then renamed, so a crash never
+	 * leaves a half written index behind.
+	 */
+	public void flushIndex() {
+		byte[] index;
+		synchronized (this) {
+			if ((mIndexDirtyOps == 0 && mPendingAccessOps == 0)
+					|| mDiskCacheStarting) {
+				return;
+			}
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(
+					mEntries.size() * 128 + 8);
+			try {
+				CacheHeader.writeInt(bos, INDEX_MAGIC);
+				CacheHeader.writeInt(bos, mEntries.size());
+				for (CacheHeader e : mEntries.values()) {
+					e.writeHeader(bos);
+				}
+			} catch (IOException e) {
+				return;
+			}
+			index = bos.toByteArray();
+			mIndexDirtyOps = 0;
+			mPendingAccessOps = 0;
+			mLastIndexFlushTime = System.currentTimeMillis();
+		}
+		// the file is written outside the cache lock.
+		synchronized (mIndexWriteLock) {
+			File tmp = new File(mRootDirectory, INDEX_FILE_TMP_NAME);
+			OutputStream os = null;
+			try {
+				os = new FileOutputStream(tmp);
+				os.write(index);
+				os.close();
+				os = null;
+				if (!tmp.renameTo(new File(mRootDirectory, INDEX_FILE_NAME))) {
+					throw new IOException("rename index failed");
+				}
+			} catch (IOException e) {
+				Log.d(TAG, "Could not write index: " + e.toString());
+				tmp.delete();
+				synchronized (this) {
+					mIndexDirtyOps++;
+				}
+			} finally {
+				if (os != null) {
+					try {
+						os.close();
+					} catch (IOException ignored) {
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the index file. Returns an empty map if there is no usable index.
+	 */
+	private Map<String, CacheHeader> readIndex() {
+		Map<String, CacheHeader> headers = new HashMap<String, CacheHeader>();
+		File file = new File(mRootDirectory, INDEX_FILE_NAME);
+		if (!file.exists()) {
+			return headers;
+		}
+		InputStream is = null;
+		try {
+			is = new BufferedInputStream(new FileInputStream(file));
+			if (CacheHeader.readInt(is) != INDEX_MAGIC) {
+				throw new IOException("index magic mismatch");
+			}
+			int count = CacheHeader.readInt(is);
+			for (int i = 0; i < count; i++) {
+				CacheHeader e = CacheHeader.readHeader(is);
+				headers.put(e.key, e);
+			}
+		} catch (IOException e) {
+			Log.d(TAG, "Could not read index: " + e.toString());
+			file.delete();
+		} finally {
+			if (is != null) {
+				try {
+					is.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+		return headers;
+	}
+
+	/**
+	 * Whether the file is a cache entry, i.e. not the index or a download
+	 * still in progress.
+	 */
+	private static boolean isEntryFile(File file) {
+		String name = file.getName();
+		return file.isFile() && !name.equals(INDEX_FILE_NAME)
+				&& !name.equals(INDEX_FILE_TMP_NAME)
+				&& !name.endsWith(TEMP_SUFFIX) && !name.endsWith(PARTIAL_SUFFIX)
+				&& !name.endsWith(TRANSCODE_SUFFIX);
 	}
 
 	/**
@@ -378,15 +1102,18 @@ public class DiskBasedCache {
 		if (entry != null) {
 			mTotalSize -= entry.size;
 			mEntries.remove(key);
+			mHeaders.remove(key);
+			mEvictionPolicy.onEntryRemoved(entry, false);
 		}
 	}
 
 	/**
-	 * Reads the contents of an InputStream into a byte[].
-	 * */
-	private static byte[] streamToBytes(InputStream in, int length)
-			throws IOException {
-		byte[] bytes = new byte[length];
+	 * Reads the contents of an InputStream into an array borrowed from
+	 * 'pool', or into a new array of the exact size when 'pool' is null.
+	 */
+	private static ByteArrayPool.Buffer streamToBytes(InputStream in,
+			int length, ByteArrayPool pool) throws IOException {
+		byte[] bytes = pool != null ? pool.getBuf(length) : new byte[length];
 		int count;
 		int pos = 0;
 		while (pos < length
@@ -394,35 +1121,51 @@ public class DiskBasedCache {
 			pos += count;
 		}
 		if (pos != length) {
+			if (pool != null) {
+				pool.returnBuf(bytes);
+			}
 			throw new IOException("Expected " + length + " bytes, read " + pos
 					+ " bytes");
 		}
-		return bytes;
+		return new ByteArrayPool.Buffer(pool, bytes, length);
 	}
 
+
 	/**
-	 * Handles holding onto the cache headers for an entry.
+	 * Temp file stream which records the checksum of the written bytes and
+	 * the validators of the response, to be applied on commit.
 	 */
-	protected static class CacheHeader {
-		/**
-		 * The size of the data identified by this CacheHeader. (This is not
-		 * serialized to disk.
-		 */
-		public long size;
+	private static class TempOutputStream extends CheckedOutputStream
+			implements ValidatorSink {
+		private final String mKey;
+		private final File mFile;
+		/** Whether this is the resumable temp file of the key. */
+		private final boolean mPartial;
+		private volatile String[] mValidators;
 
-		/** The key that identifies the cache entry. */
-		public String key;
-
-		private CacheHeader() {
+		TempOutputStream(String key, File file, boolean partial,
+				OutputStream out, CRC32 crc) {
+			super(out, crc);
+			mKey = key;
+			mFile = file;
+			mPartial = partial;
 		}
 
-		public CacheHeader(String key, long length) {
-			this.key = key;
-			this.size = length;
+		@Override
+		public void setValidators(String etag, String lastModified) {
+			mValidators = new String[] { etag, lastModified };
 		}
-
 	}
 
+	/** Orders entries from least to most recently used. */
+	private static final Comparator<CacheHeader> ACCESS_ORDER = new Comparator<CacheHeader>() {
+		@Override
+		public int compare(CacheHeader lhs, CacheHeader rhs) {
+			return lhs.lastAccessTime < rhs.lastAccessTime ? -1
+					: (lhs.lastAccessTime == rhs.lastAccessTime ? 0 : 1);
+		}
+	};
+
 	private static class CountingInputStream extends FilterInputStream {
 		private int bytesRead = 0;
 
@@ -0,0 +1,154 @@
+package imagelogic.disk;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 磁盘缓存淘汰策略模拟器，回放访问记录，比较不同策略的命中率。
+ * 不依赖android，可以直接在电脑上运行：
+ * 
+ * <pre>
+ * java imagelogic.disk.DiskCacheSimulator trace.txt 20971520
+ * </pre>
+ * 
+ * 访问记录每行一次请求，格式为"key 文件大小"，#开头的行忽略。
+ * 
+ */
+public class DiskCacheSimulator {
+
+	// 和DiskBasedCache一致，每次淘汰到最大容量的90%
+	private static final float HYSTERESIS_FACTOR = 0.9f;
+
+	private final long mMaxSize;
+	private final DiskEvictionPolicy mPolicy;
+	private final Map<String, CacheHeader> mEntries = new LinkedHashMap<String, CacheHeader>(
+			16, .75f, true);
+	private long mTotalSize;
+	private long mClock;
+
+	private long mRequests;
+	private long mHits;
+	private long mRequestBytes;
+	private long mHitBytes;
+
+	public DiskCacheSimulator(long maxSize, DiskEvictionPolicy policy) {
+		mMaxSize = maxSize;
+		mPolicy = policy;
+	}
+
+	/**
+	 * @Title: access
+	 * @Description: 模拟一次请求，没有命中的时候写入缓存
+	 * @param @param key
+	 * @param @param size 文件大小
+	 * @return boolean 是否命中
+	 * @throws
+	 */
+	public boolean access(String key, long size) {
+		mClock++;
+		mRequests++;
+		mRequestBytes += size;
+		CacheHeader entry = mEntries.get(key);
+		if (entry != null) {
+			mHits++;
+			mHitBytes += size;
+			entry.lastAccessTime = mClock;
+			entry.hitCount++;
+			mPolicy.onEntryAccessed(entry);
+			return true;
+		}
+		if (size >= mMaxSize) {
+			return false;
+		}
+		prune(size);
+		entry = new CacheHeader(key, size);
+		entry.createTime = mClock;
+		entry.lastAccessTime = mClock;
+		mEntries.put(key, entry);
+		mTotalSize += size;
+		mPolicy.onEntryAdded(entry);
+		return false;
+	}
+
+	private void prune(long neededSpace) {
+		if (mTotalSize + neededSpace < mMaxSize) {
+			return;
+		}
+		List<CacheHeader> victims = mPolicy
+				.evictionOrder(new ArrayList<CacheHeader>(mEntries.values()));
+		for (CacheHeader e : victims) {
+			mEntries.remove(e.key);
+			mTotalSize -= e.size;
+			mPolicy.onEntryRemoved(e, true);
+			if (mTotalSize + neededSpace < mMaxSize * HYSTERESIS_FACTOR) {
+				break;
+			}
+		}
+	}
+
+	// 请求命中率
+	public double getHitRatio() {
+		return mRequests == 0 ? 0 : (double) mHits / mRequests;
+	}
+
+	// 字节命中率
+	public double getByteHitRatio() {
+		return mRequestBytes == 0 ? 0 : (double) mHitBytes / mRequestBytes;
+	}
+
+	/**
+	 * @Title: replay
+	 * @Description: 回放访问记录文件
+	 * @param @param tracePath 访问记录文件路径
+	 * @param @param maxSize 缓存大小
+	 * @param @param policy 淘汰策略
+	 * @return DiskCacheSimulator 回放结束的模拟器
+	 * @throws IOException
+	 */
+	public static DiskCacheSimulator replay(String tracePath, long maxSize,
+			DiskEvictionPolicy policy) throws IOException {
+		DiskCacheSimulator simulator = new DiskCacheSimulator(maxSize, policy);
+		BufferedReader reader = new BufferedReader(new FileReader(tracePath));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\\s+");
+				if (fields.length < 2) {
+					continue;
+				}
+				simulator.access(fields[0], Long.parseLong(fields[1]));
+			}
+		} finally {
+			reader.close();
+		}
+		return simulator;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("usage: DiskCacheSimulator <trace> <maxSizeBytes>");
+			System.exit(1);
+		}
+		String trace = args[0];
+		long maxSize = Long.parseLong(args[1]);
+		String[] names = { "LRU", "LFU", "GDSF", "SegmentedFIFO" };
+		DiskEvictionPolicy[] policies = { new LruEvictionPolicy(),
+				new LfuEvictionPolicy(), new GdsfEvictionPolicy(),
+				new SegmentedFifoEvictionPolicy() };
+		System.out.println("policy\thitRatio\tbyteHitRatio");
+		for (int i = 0; i < policies.length; i++) {
+			DiskCacheSimulator simulator = replay(trace, maxSize, policies[i]);
+			System.out.println(String.format("%s\t%.4f\t%.4f", names[i],
+					simulator.getHitRatio(), simulator.getByteHitRatio()));
+		}
+	}
+}
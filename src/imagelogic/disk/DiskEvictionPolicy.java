@@ -0,0 +1,47 @@
+package imagelogic.disk;
+
+import java.util.List;
+
+/**
+ * 磁盘缓存淘汰策略接口，磁盘缓存满的时候决定先删除哪些文件
+ * 
+ */
+public interface DiskEvictionPolicy {
+
+	/**
+	 * @Title: onEntryAdded
+	 * @Description: 添加缓存文件的回调
+	 * @param @param entry 缓存文件信息
+	 * @return void
+	 * @throws
+	 */
+	public void onEntryAdded(CacheHeader entry);
+
+	/**
+	 * @Title: onEntryAccessed
+	 * @Description: 读取缓存文件的回调，entry中的访问时间和次数已经更新
+	 * @param @param entry 缓存文件信息
+	 * @return void
+	 * @throws
+	 */
+	public void onEntryAccessed(CacheHeader entry);
+
+	/**
+	 * @Title: onEntryRemoved
+	 * @Description: 删除缓存文件的回调
+	 * @param @param entry 缓存文件信息
+	 * @param @param evicted true 因为空间不足被淘汰 false 被删除或替换
+	 * @return void
+	 * @throws
+	 */
+	public void onEntryRemoved(CacheHeader entry, boolean evicted);
+
+	/**
+	 * @Title: evictionOrder
+	 * @Description: 缓存文件的淘汰顺序
+	 * @param @param entries 所有缓存文件，按最近最少使用的顺序排列
+	 * @return List<CacheHeader> 按淘汰先后排序的缓存文件
+	 * @throws
+	 */
+	public List<CacheHeader> evictionOrder(List<CacheHeader> entries);
+}
@@ -0,0 +1,83 @@
+package imagelogic.disk;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Greedy-Dual-Size-Frequency淘汰策略。
+ * 每个文件的优先级为 L + 读取次数 * 重新下载代价 / 文件大小，优先级最低的先删除，
+ * L为最后一个被淘汰文件的优先级，让长时间没有读取的文件逐渐老化。
+ * 一张大图不会再挤掉大量的小图。
+ * 
+ */
+public class GdsfEvictionPolicy implements DiskEvictionPolicy {
+
+	// 默认每次请求的额外代价，相当于下载16KB数据
+	public static final long DEFAULT_REQUEST_COST_BYTES = 16 * 1024;
+
+	// 每次请求的额外代价(连接，首包延迟)，单位字节
+	private final long mRequestCostBytes;
+
+	// 老化值
+	private double mInflation = 0;
+
+	// 文件对应的优先级
+	private final Map<String, Double> mPriorities = new HashMap<String, Double>();
+
+	private final Comparator<CacheHeader> mPriorityOrder = new Comparator<CacheHeader>() {
+		@Override
+		public int compare(CacheHeader lhs, CacheHeader rhs) {
+			return Double.compare(priorityOf(lhs), priorityOf(rhs));
+		}
+	};
+
+	public GdsfEvictionPolicy() {
+		this(DEFAULT_REQUEST_COST_BYTES);
+	}
+
+	/**
+	 * @param requestCostBytes
+	 *            每次请求的额外代价，单位字节，越大越倾向保留小文件
+	 */
+	public GdsfEvictionPolicy(long requestCostBytes) {
+		mRequestCostBytes = requestCostBytes;
+	}
+
+	@Override
+	public void onEntryAdded(CacheHeader entry) {
+		mPriorities.put(entry.key, computePriority(entry));
+	}
+
+	@Override
+	public void onEntryAccessed(CacheHeader entry) {
+		mPriorities.put(entry.key, computePriority(entry));
+	}
+
+	@Override
+	public void onEntryRemoved(CacheHeader entry, boolean evicted) {
+		Double priority = mPriorities.remove(entry.key);
+		if (evicted && priority != null && priority > mInflation) {
+			mInflation = priority;
+		}
+	}
+
+	@Override
+	public List<CacheHeader> evictionOrder(List<CacheHeader> entries) {
+		Collections.sort(entries, mPriorityOrder);
+		return entries;
+	}
+
+	private double computePriority(CacheHeader entry) {
+		long size = Math.max(entry.size, 1);
+		double cost = (double) (mRequestCostBytes + size) / size;
+		return mInflation + (entry.hitCount + 1) * cost;
+	}
+
+	private double priorityOf(CacheHeader entry) {
+		Double priority = mPriorities.get(entry.key);
+		return priority != null ? priority : computePriority(entry);
+	}
+}
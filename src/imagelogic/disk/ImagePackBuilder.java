@@ -0,0 +1,244 @@
+package imagelogic.disk;
+
+import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 图片包生成工具，编译的时候在普通JVM上运行，生成{@link ImagePackCache}读取的图片包，放到assets中随应用发布。
+ * 不依赖android的类。
+ * 
+ * <pre>
+ * java imagelogic.disk.ImagePackBuilder manifest.txt images.pack
+ * </pre>
+ * 
+ * manifest每行一张图片：图片地址和本地文件路径，用空白分隔，相对路径相对于manifest所在目录，#开头的行是注释。
+ * 图片地址必须和应用中请求的地址完全一致。
+ * 
+ */
+public class ImagePackBuilder {
+
+	/** 包文件标识，{@link ImagePackCache}读取的时候检查 */
+	static final int PACK_MAGIC = 0x494d5047;
+
+	/** 包文件版本 */
+	static final int PACK_VERSION = 1;
+
+	// 图片地址
+	private final List<String> mUrls = new ArrayList<String>();
+
+	// 图片数据
+	private final List<byte[]> mImages = new ArrayList<byte[]>();
+
+	/**
+	 * @Title: add
+	 * @Description: 添加一张图片，地址重复的时候后添加的无效
+	 * @param @param url 图片地址
+	 * @param @param data 图片文件内容
+	 * @return ImagePackBuilder
+	 */
+	public ImagePackBuilder add(String url, byte[] data) {
+		if (url == null || data == null) {
+			throw new IllegalArgumentException("url and data must not be null");
+		}
+		if (!mUrls.contains(url)) {
+			mUrls.add(url);
+			mImages.add(data);
+		}
+		return this;
+	}
+
+	/**
+	 * @Title: add
+	 * @Description: 添加一张图片文件
+	 * @param @param url 图片地址
+	 * @param @param file 图片文件
+	 * @return ImagePackBuilder
+	 * @throws IOException
+	 */
+	public ImagePackBuilder add(String url, File file) throws IOException {
+		if (file.length() > Integer.MAX_VALUE) {
+			throw new IOException("image too large: " + file);
+		}
+		byte[] data = new byte[(int) file.length()];
+		InputStream is = new FileInputStream(file);
+		try {
+			int count = 0;
+			int rc;
+			while (count < data.length
+					&& (rc = is.read(data, count, data.length - count)) != -1) {
+				count += rc;
+			}
+			if (count != data.length) {
+				throw new IOException("short read: " + file);
+			}
+		} finally {
+			is.close();
+		}
+		return add(url, data);
+	}
+
+	/**
+	 * @Title: write
+	 * @Description: 写入图片包文件。索引在前，图片数据依次拼接在后
+	 * @param @param file 输出文件
+	 * @return void
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		List<byte[]> urls = new ArrayList<byte[]>(mUrls.size());
+		List<byte[]> mimeTypes = new ArrayList<byte[]>(mUrls.size());
+		long indexSize = 12;
+		for (int i = 0; i < mUrls.size(); i++) {
+			byte[] url = mUrls.get(i).getBytes("UTF-8");
+			String mimeType = sniffMimeType(mImages.get(i));
+			byte[] mime = (mimeType != null ? mimeType : "").getBytes("UTF-8");
+			urls.add(url);
+			mimeTypes.add(mime);
+			indexSize += 4 + url.length + 16 + 4 + mime.length;
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)));
+		try {
+			out.writeInt(PACK_MAGIC);
+			out.writeInt(PACK_VERSION);
+			out.writeInt(mUrls.size());
+			long offset = indexSize;
+			for (int i = 0; i < mUrls.size(); i++) {
+				byte[] data = mImages.get(i);
+				if (offset + data.length > Integer.MAX_VALUE) {
+					throw new IOException("image pack too large");
+				}
+				int[] bounds = sniffBounds(data);
+				out.writeInt(urls.get(i).length);
+				out.write(urls.get(i));
+				out.writeInt((int) offset);
+				out.writeInt(data.length);
+				out.writeInt(bounds != null ? bounds[0] : 0);
+				out.writeInt(bounds != null ? bounds[1] : 0);
+				out.writeInt(mimeTypes.get(i).length);
+				out.write(mimeTypes.get(i));
+				offset += data.length;
+			}
+			for (byte[] data : mImages) {
+				out.write(data);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	// 根据文件头判断图片格式
+	static String sniffMimeType(byte[] data) {
+		if (data.length >= 3 && (data[0] & 0xff) == 0xff
+				&& (data[1] & 0xff) == 0xd8 && (data[2] & 0xff) == 0xff) {
+			return "image/jpeg";
+		}
+		if (data.length >= 8 && (data[0] & 0xff) == 0x89 && data[1] == 'P'
+				&& data[2] == 'N' && data[3] == 'G') {
+			return "image/png";
+		}
+		if (data.length >= 6 && data[0] == 'G' && data[1] == 'I'
+				&& data[2] == 'F') {
+			return "image/gif";
+		}
+		if (data.length >= 12 && data[0] == 'R' && data[1] == 'I'
+				&& data[8] == 'W' && data[9] == 'E' && data[10] == 'B'
+				&& data[11] == 'P') {
+			return "image/webp";
+		}
+		return null;
+	}
+
+	// 根据文件头读取图片宽高，不认识的格式返回null，运行时再解码边界
+	static int[] sniffBounds(byte[] data) {
+		String mimeType = sniffMimeType(data);
+		if ("image/png".equals(mimeType) && data.length >= 24) {
+			return new int[] { readBigEndianInt(data, 16),
+					readBigEndianInt(data, 20) };
+		}
+		if ("image/gif".equals(mimeType) && data.length >= 10) {
+			return new int[] { (data[6] & 0xff) | (data[7] & 0xff) << 8,
+					(data[8] & 0xff) | (data[9] & 0xff) << 8 };
+		}
+		if ("image/jpeg".equals(mimeType)) {
+			int pos = 2;
+			while (pos + 9 < data.length) {
+				if ((data[pos] & 0xff) != 0xff) {
+					return null;
+				}
+				int marker = data[pos + 1] & 0xff;
+				if (marker == 0xff) {
+					// 填充字节
+					pos++;
+					continue;
+				}
+				int length = (data[pos + 2] & 0xff) << 8 | (data[pos + 3] & 0xff);
+				// SOF0-SOF15，除去DHT(0xc4)，JPG(0xc8)，DAC(0xcc)
+				if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4
+						&& marker != 0xc8 && marker != 0xcc) {
+					int height = (data[pos + 5] & 0xff) << 8
+							| (data[pos + 6] & 0xff);
+					int width = (data[pos + 7] & 0xff) << 8
+							| (data[pos + 8] & 0xff);
+					return new int[] { width, height };
+				}
+				pos += 2 + length;
+			}
+		}
+		return null;
+	}
+
+	private static int readBigEndianInt(byte[] data, int pos) {
+		return (data[pos] & 0xff) << 24 | (data[pos + 1] & 0xff) << 16
+				| (data[pos + 2] & 0xff) << 8 | (data[pos + 3] & 0xff);
+	}
+
+	/**
+	 * @Title: main
+	 * @Description: 命令行入口，参数为manifest文件和输出的图片包文件
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("usage: ImagePackBuilder <manifest> <out.pack>");
+			System.exit(1);
+		}
+		File manifest = new File(args[0]);
+		File baseDir = manifest.getAbsoluteFile().getParentFile();
+		ImagePackBuilder builder = new ImagePackBuilder();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(manifest), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] parts = line.split("\\s+", 2);
+				if (parts.length != 2) {
+					throw new IOException("bad manifest line: " + line);
+				}
+				File image = new File(parts[1]);
+				if (!image.isAbsolute()) {
+					image = new File(baseDir, parts[1]);
+				}
+				builder.add(parts[0], image);
+			}
+		} finally {
+			reader.close();
+		}
+		builder.write(new File(args[1]));
+		System.out.println("packed " + builder.mUrls.size() + " images into "
+				+ args[1]);
+	}
+}
@@ -0,0 +1,198 @@
+package imagelogic.disk;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.util.Log;
+
+/**
+ * 只读的图片包缓存，随应用发布的常用图片(分类图标，引导页图片)打成一个包，
+ * 先于磁盘缓存和网络查询，第一次启动也不需要下载。
+ * 包由{@link ImagePackBuilder}生成，文件内容为索引加上依次拼接的图片数据，打开的时候只读取索引，
+ * 图片数据通过内存映射读取。
+ * 
+ */
+public class ImagePackCache {
+	private static final String TAG = "ImagePackCache";
+
+	// 图片数据，内存映射或者整个读入内存
+	private final ByteBuffer mBuffer;
+
+	// 图片地址对应的索引
+	private final Map<String, PackEntry> mEntries;
+
+	private ImagePackCache(ByteBuffer buffer) throws IOException {
+		mBuffer = buffer;
+		mEntries = readIndex(buffer.duplicate());
+		Log.d(TAG, "图片包加载ok，图片个数:" + mEntries.size());
+	}
+
+	/**
+	 * @Title: open
+	 * @Description: 打开图片包文件，使用内存映射
+	 * @param @param file 图片包文件
+	 * @return ImagePackCache
+	 * @throws IOException
+	 */
+	public static ImagePackCache open(File file) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			FileChannel channel = fis.getChannel();
+			return new ImagePackCache(channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			fis.close();
+		}
+	}
+
+	/**
+	 * @Title: openAsset
+	 * @Description: 打开assets中的图片包。没有压缩的asset使用内存映射，
+	 *               压缩的asset整个读入内存(建议在aapt中设置不压缩.pack文件)
+	 * @param @param assets
+	 * @param @param assetName asset文件名
+	 * @return ImagePackCache
+	 * @throws IOException
+	 */
+	public static ImagePackCache openAsset(AssetManager assets,
+			String assetName) throws IOException {
+		AssetFileDescriptor afd = null;
+		try {
+			afd = assets.openFd(assetName);
+		} catch (IOException e) {
+			// 压缩的asset不能获取文件描述符
+			afd = null;
+		}
+		if (afd != null) {
+			FileInputStream fis = afd.createInputStream();
+			try {
+				FileChannel channel = fis.getChannel();
+				return new ImagePackCache(channel.map(
+						FileChannel.MapMode.READ_ONLY, afd.getStartOffset(),
+						afd.getLength()));
+			} finally {
+				fis.close();
+				afd.close();
+			}
+		}
+		InputStream is = assets.open(assetName);
+		try {
+			return new ImagePackCache(ByteBuffer.wrap(readFully(is)));
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * @Title: contains
+	 * @Description: 图片包中是否有这个地址的图片
+	 */
+	public boolean contains(String url) {
+		return mEntries.containsKey(url);
+	}
+
+	/**
+	 * @Title: getHeader
+	 * @Description: 获取图片信息(大小，宽高，格式)
+	 * @param @param url 图片地址
+	 * @return CacheHeader 没有返回null
+	 */
+	public CacheHeader getHeader(String url) {
+		PackEntry entry = mEntries.get(url);
+		return entry != null ? entry.header : null;
+	}
+
+	/**
+	 * @Title: getData
+	 * @Description: 获取图片数据
+	 * @param @param url 图片地址
+	 * @return byte[] 没有返回null
+	 */
+	public byte[] getData(String url) {
+		PackEntry entry = mEntries.get(url);
+		if (entry == null) {
+			return null;
+		}
+		byte[] data = new byte[(int) entry.header.size];
+		ByteBuffer buffer = mBuffer.duplicate();
+		buffer.position(entry.offset);
+		buffer.get(data);
+		return data;
+	}
+
+	// 图片个数
+	public int size() {
+		return mEntries.size();
+	}
+
+	private static Map<String, PackEntry> readIndex(ByteBuffer buffer)
+			throws IOException {
+		try {
+			if (buffer.getInt() != ImagePackBuilder.PACK_MAGIC) {
+				throw new IOException("not an image pack");
+			}
+			if (buffer.getInt() != ImagePackBuilder.PACK_VERSION) {
+				throw new IOException("unsupported image pack version");
+			}
+			int count = buffer.getInt();
+			Map<String, PackEntry> entries = new HashMap<String, PackEntry>(
+					count * 2);
+			for (int i = 0; i < count; i++) {
+				String url = readString(buffer);
+				PackEntry entry = new PackEntry();
+				entry.offset = buffer.getInt();
+				entry.header = new CacheHeader(url, buffer.getInt());
+				entry.header.width = buffer.getInt();
+				entry.header.height = buffer.getInt();
+				String mimeType = readString(buffer);
+				entry.header.mimeType = mimeType.length() > 0 ? mimeType
+						: null;
+				if (entry.offset < 0
+						|| entry.offset + entry.header.size > buffer.limit()) {
+					throw new IOException("bad image pack entry " + url);
+				}
+				entries.put(url, entry);
+			}
+			return entries;
+		} catch (RuntimeException e) {
+			// BufferUnderflowException等
+			throw new IOException("bad image pack: " + e);
+		}
+	}
+
+	private static String readString(ByteBuffer buffer) throws IOException {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static byte[] readFully(InputStream is) throws IOException {
+		byte[] bytes = new byte[Math.max(is.available(), 8 * 1024)];
+		int count = 0;
+		int rc;
+		while ((rc = is.read(bytes, count, bytes.length - count)) != -1) {
+			count += rc;
+			if (count == bytes.length) {
+				byte[] larger = new byte[bytes.length * 2];
+				System.arraycopy(bytes, 0, larger, 0, count);
+				bytes = larger;
+			}
+		}
+		byte[] result = new byte[count];
+		System.arraycopy(bytes, 0, result, 0, count);
+		return result;
+	}
+
+	private static class PackEntry {
+		int offset;
+		CacheHeader header;
+	}
+}
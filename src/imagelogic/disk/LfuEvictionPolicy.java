@@ -0,0 +1,39 @@
+package imagelogic.disk;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 最不经常使用淘汰策略，读取次数最少的文件先删除，次数相同的按最近最少使用删除
+ * 
+ */
+public class LfuEvictionPolicy implements DiskEvictionPolicy {
+
+	private static final Comparator<CacheHeader> HIT_ORDER = new Comparator<CacheHeader>() {
+		@Override
+		public int compare(CacheHeader lhs, CacheHeader rhs) {
+			return lhs.hitCount < rhs.hitCount ? -1
+					: (lhs.hitCount == rhs.hitCount ? 0 : 1);
+		}
+	};
+
+	@Override
+	public void onEntryAdded(CacheHeader entry) {
+	}
+
+	@Override
+	public void onEntryAccessed(CacheHeader entry) {
+	}
+
+	@Override
+	public void onEntryRemoved(CacheHeader entry, boolean evicted) {
+	}
+
+	@Override
+	public List<CacheHeader> evictionOrder(List<CacheHeader> entries) {
+		// 排序是稳定的，次数相同的保持最近最少使用的顺序
+		Collections.sort(entries, HIT_ORDER);
+		return entries;
+	}
+}
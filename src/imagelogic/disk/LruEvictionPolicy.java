@@ -0,0 +1,28 @@
+package imagelogic.disk;
+
+import java.util.List;
+
+/**
+ * 最近最少使用淘汰策略，磁盘缓存的默认策略
+ * 
+ */
+public class LruEvictionPolicy implements DiskEvictionPolicy {
+
+	@Override
+	public void onEntryAdded(CacheHeader entry) {
+	}
+
+	@Override
+	public void onEntryAccessed(CacheHeader entry) {
+	}
+
+	@Override
+	public void onEntryRemoved(CacheHeader entry, boolean evicted) {
+	}
+
+	@Override
+	public List<CacheHeader> evictionOrder(List<CacheHeader> entries) {
+		// 磁盘缓存已经按访问顺序排列
+		return entries;
+	}
+}
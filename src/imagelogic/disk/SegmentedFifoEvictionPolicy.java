@@ -0,0 +1,52 @@
+package imagelogic.disk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 分段先进先出淘汰策略。
+ * 没有被读取过的文件在试用段，读取过的文件在保护段，先按写入顺序删除试用段的文件，
+ * 试用段删完以后再按写入顺序删除保护段的文件。只看一次的图片不会挤掉经常显示的图片。
+ * 
+ */
+public class SegmentedFifoEvictionPolicy implements DiskEvictionPolicy {
+
+	private static final Comparator<CacheHeader> CREATE_ORDER = new Comparator<CacheHeader>() {
+		@Override
+		public int compare(CacheHeader lhs, CacheHeader rhs) {
+			return lhs.createTime < rhs.createTime ? -1
+					: (lhs.createTime == rhs.createTime ? 0 : 1);
+		}
+	};
+
+	@Override
+	public void onEntryAdded(CacheHeader entry) {
+	}
+
+	@Override
+	public void onEntryAccessed(CacheHeader entry) {
+	}
+
+	@Override
+	public void onEntryRemoved(CacheHeader entry, boolean evicted) {
+	}
+
+	@Override
+	public List<CacheHeader> evictionOrder(List<CacheHeader> entries) {
+		List<CacheHeader> probation = new ArrayList<CacheHeader>();
+		List<CacheHeader> protect = new ArrayList<CacheHeader>();
+		for (CacheHeader entry : entries) {
+			if (entry.hitCount > 0) {
+				protect.add(entry);
+			} else {
+				probation.add(entry);
+			}
+		}
+		Collections.sort(probation, CREATE_ORDER);
+		Collections.sort(protect, CREATE_ORDER);
+		probation.addAll(protect);
+		return probation;
+	}
+}
@@ -0,0 +1,18 @@
+package imagelogic.disk;
+
+/**
+ * 接收服务端响应校验值的输出流。下载类把数据写入磁盘缓存的临时文件之前，
+ * 把响应头中的ETag和Last-Modified交给这个接口，提交的时候和文件一起保存，刷新图片的时候用于条件请求。
+ * 
+ */
+public interface ValidatorSink {
+
+	/**
+	 * @Title: setValidators
+	 * @Description: 设置响应的校验值
+	 * @param @param etag ETag响应头，没有为null
+	 * @param @param lastModified Last-Modified响应头，没有为null
+	 * @return void
+	 */
+	void setValidators(String etag, String lastModified);
+}
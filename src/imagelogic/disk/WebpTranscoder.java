@@ -0,0 +1,186 @@
+package imagelogic.disk;
+
+import imagelogic.utils.ImageDecoder;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * 磁盘缓存WebP转码，在磁盘维护线程空闲的时候把长时间没有读取的文件重新压缩成WebP，节省磁盘空间。
+ * jpeg照片使用有损压缩，其他格式(图标，图形)使用最高质量压缩。
+ * 需要android 4.0以上。
+ * 
+ */
+@TargetApi(14)
+public class WebpTranscoder {
+	private static final String TAG = "WebpTranscoder";
+
+	public static final String MIME_WEBP = "image/webp";
+
+	// 默认多长时间没有读取的文件才转码，1天
+	public static final long DEFAULT_COLD_AGE_MS = 24 * 60 * 60 * 1000L;
+
+	// 有损压缩质量
+	private static final int LOSSY_QUALITY = 75;
+
+	// 图形使用最高质量
+	private static final int LOSSLESS_QUALITY = 100;
+
+	// 每次维护最多转码的文件个数
+	private static final int MAX_ENTRIES_PER_RUN = 4;
+
+	// 超过这个像素数的图片不转码，防止内存溢出
+	private static final int MAX_PIXELS = 2048 * 2048;
+
+	// 转码后至少要小10%才替换
+	private static final float MIN_SAVING_RATIO = 0.1f;
+
+	private final long mColdAgeMs;
+
+	// 已经尝试过的缓存项，转码失败或者不够小的不再重复解码；按对象记录，同一个key重新下载以后会再尝试
+	// 缓存项删除以后自动释放。只在磁盘维护线程访问
+	private final Map<CacheHeader, Boolean> mAttempted = new WeakHashMap<CacheHeader, Boolean>();
+
+	// 统计
+	private int mTranscodedCount;
+	private int mSkippedCount;
+	private long mBytesSaved;
+	private long mOriginalDecodeMs;
+	private long mWebpDecodeMs;
+
+	public WebpTranscoder() {
+		this(DEFAULT_COLD_AGE_MS);
+	}
+
+	/**
+	 * @param coldAgeMs
+	 *            多长时间没有读取的文件才转码
+	 */
+	public WebpTranscoder(long coldAgeMs) {
+		mColdAgeMs = coldAgeMs;
+	}
+
+	/**
+	 * @Title: transcodeColdEntries
+	 * @Description: 转码一批冷文件，在磁盘维护线程调用
+	 * @param @param cache
+	 * @return void
+	 * @throws
+	 */
+	void transcodeColdEntries(BitmapDiskCache cache) {
+		long now = System.currentTimeMillis();
+		List<CacheHeader> entries = cache.getEntries();
+		int count = 0;
+		for (CacheHeader entry : entries) {
+			if (count >= MAX_ENTRIES_PER_RUN) {
+				break;
+			}
+			if (now - entry.lastAccessTime < mColdAgeMs) {
+				// 按最近最少使用排序，后面的都是热文件
+				break;
+			}
+			if (MIME_WEBP.equals(entry.mimeType)
+					|| (entry.hasBounds() && (long) entry.width
+							* entry.height > MAX_PIXELS)
+					|| mAttempted.containsKey(entry)) {
+				continue;
+			}
+			// 只有真正解码过的文件计入每次的个数
+			if (transcode(cache, entry)) {
+				count++;
+			}
+		}
+	}
+
+	// 返回false表示文件已经不在缓存中，没有解码
+	private boolean transcode(BitmapDiskCache cache, CacheHeader entry) {
+		// 不记录访问，转码不应该让文件变热
+		byte[] data = cache.getData(entry.key, false);
+		if (data == null) {
+			return false;
+		}
+		mAttempted.put(entry, Boolean.TRUE);
+		Bitmap bitmap = null;
+		Bitmap check = null;
+		try {
+			long start = SystemClock.elapsedRealtime();
+			bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+			long originalDecodeMs = SystemClock.elapsedRealtime() - start;
+			if (bitmap == null) {
+				return true;
+			}
+			boolean lossy = ImageDecoder.MIME_JPEG.equals(entry.mimeType);
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length);
+			bitmap.compress(CompressFormat.WEBP, lossy ? LOSSY_QUALITY
+					: LOSSLESS_QUALITY, bos);
+			byte[] webp = bos.toByteArray();
+			if (webp.length > data.length * (1 - MIN_SAVING_RATIO)) {
+				synchronized (this) {
+					mSkippedCount++;
+				}
+				return true;
+			}
+			start = SystemClock.elapsedRealtime();
+			check = BitmapFactory.decodeByteArray(webp, 0, webp.length);
+			long webpDecodeMs = SystemClock.elapsedRealtime() - start;
+			if (check == null) {
+				return true;
+			}
+			if (cache.replaceData(entry, webp, MIME_WEBP)) {
+				synchronized (this) {
+					mTranscodedCount++;
+					mBytesSaved += data.length - webp.length;
+					mOriginalDecodeMs += originalDecodeMs;
+					mWebpDecodeMs += webpDecodeMs;
+				}
+				Log.d(TAG, entry.key + " " + data.length + " -> " + webp.length);
+			}
+		} catch (OutOfMemoryError e) {
+			Log.w(TAG, "transcode out of memory: " + entry.key);
+		} finally {
+			if (bitmap != null) {
+				bitmap.recycle();
+			}
+			if (check != null) {
+				check.recycle();
+			}
+		}
+		return true;
+	}
+
+	// 转码的文件个数
+	public synchronized int getTranscodedCount() {
+		return mTranscodedCount;
+	}
+
+	// 转码后不够小而放弃的文件个数
+	public synchronized int getSkippedCount() {
+		return mSkippedCount;
+	}
+
+	// 节省的磁盘空间，单位字节
+	public synchronized long getBytesSaved() {
+		return mBytesSaved;
+	}
+
+	// 转码文件的解码时间变化(WebP解码时间-原格式解码时间)，单位毫秒，正数表示解码变慢
+	public synchronized long getDecodeTimeDeltaMs() {
+		return mWebpDecodeMs - mOriginalDecodeMs;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "transcoded=" + mTranscodedCount + ", skipped=" + mSkippedCount
+				+ ", bytesSaved=" + mBytesSaved + ", decodeMs="
+				+ mOriginalDecodeMs + "->" + mWebpDecodeMs;
+	}
+}
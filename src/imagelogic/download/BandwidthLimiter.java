@@ -0,0 +1,57 @@
+package imagelogic.download;
+
+import java.io.InterruptedIOException;
+
+/**
+ * 令牌桶限速。
+ * 令牌按固定速率生成，最多积攒一秒的量；读取数据先扣令牌，不够的时候等待，多个下载线程共用一个限速。
+ * 
+ */
+public class BandwidthLimiter {
+
+	private final long mBytesPerSecond;// 每秒字节数
+	private final long mBurst;// 最多积攒的令牌
+	private double mTokens;// 当前令牌，可以为负(欠下的等待时间)
+	private long mLastRefill;// 上次生成令牌的时间
+
+	public BandwidthLimiter(long bytesPerSecond) {
+		if (bytesPerSecond <= 0) {
+			throw new IllegalArgumentException("bytesPerSecond must be > 0");
+		}
+		mBytesPerSecond = bytesPerSecond;
+		mBurst = bytesPerSecond;
+		mTokens = mBurst;
+		mLastRefill = System.nanoTime();
+	}
+
+	public long getBytesPerSecond() {
+		return mBytesPerSecond;
+	}
+
+	/**
+	 * @Title: acquire
+	 * @Description: 扣除已经读取的字节数，令牌不够的时候等待
+	 * @param @param bytes
+	 * @return void
+	 * @throws InterruptedIOException 等待的时候线程被中断
+	 */
+	public void acquire(int bytes) throws InterruptedIOException {
+		long waitMs;
+		synchronized (this) {
+			long now = System.nanoTime();
+			mTokens = Math.min(mBurst, mTokens + (now - mLastRefill)
+					* mBytesPerSecond / 1e9);
+			mLastRefill = now;
+			mTokens -= bytes;
+			waitMs = mTokens < 0 ? (long) (-mTokens * 1000 / mBytesPerSecond)
+					: 0;
+		}
+		if (waitMs > 0) {
+			try {
+				Thread.sleep(waitMs);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package imagelogic.download;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+/**
+ * 按宽度分档改写图片地址。
+ * imageView的宽度向上取到最近的一档，同一档的imageView使用同一个地址，CDN和本地缓存都可以命中。
+ * 模板中可以使用{url}(原图地址)，{encodedUrl}(URL编码后的原图地址)和{width}(分档后的宽度)，例如
+ * "http://cdn.example.com/fetch/w_{width}/{encodedUrl}"。
+ * 
+ */
+public class BucketedUrlRewriter implements ImageUrlRewriter {
+
+	// 默认的宽度分档
+	public static final int[] DEFAULT_WIDTHS = { 120, 240, 360, 480, 720,
+			1080 };
+
+	private final String mTemplate;// 地址模板
+
+	private final int[] mWidths;// 从小到大的宽度分档
+
+	public BucketedUrlRewriter(String template) {
+		this(template, DEFAULT_WIDTHS);
+	}
+
+	/**
+	 * Description:构造方法
+	 * 
+	 * @param template
+	 *            地址模板
+	 * @param widths
+	 *            从小到大的宽度分档
+	 */
+	public BucketedUrlRewriter(String template, int... widths) {
+		if (template == null || widths == null || widths.length == 0) {
+			throw new IllegalArgumentException("template and widths required");
+		}
+		for (int i = 1; i < widths.length; i++) {
+			if (widths[i] <= widths[i - 1]) {
+				throw new IllegalArgumentException("widths must be ascending");
+			}
+		}
+		mTemplate = template;
+		mWidths = widths.clone();
+	}
+
+	@Override
+	public String rewrite(String url, int width, int height) {
+		if (width <= 0 || !shouldRewrite(url)) {
+			return url;
+		}
+		return buildUrl(url, bucketWidth(width));
+	}
+
+	/**
+	 * @Title: bucketWidth
+	 * @Description: 向上取到最近的一档，超过最大的一档时使用最大的一档
+	 * @param @param width
+	 * @return int
+	 * @throws
+	 */
+	public int bucketWidth(int width) {
+		for (int bucket : mWidths) {
+			if (width <= bucket) {
+				return bucket;
+			}
+		}
+		return mWidths[mWidths.length - 1];
+	}
+
+	// 是否改写这个地址，默认只改写http和https地址
+	protected boolean shouldRewrite(String url) {
+		return url != null
+				&& (url.startsWith("http://") || url.startsWith("https://"));
+	}
+
+	// 按模板生成地址
+	protected String buildUrl(String url, int width) {
+		String result = mTemplate.replace("{width}", String.valueOf(width));
+		if (result.contains("{encodedUrl}")) {
+			try {
+				result = result.replace("{encodedUrl}",
+						URLEncoder.encode(url, "UTF-8"));
+			} catch (UnsupportedEncodingException e) {
+				return url;
+			}
+		}
+		return result.replace("{url}", url);
+	}
+}
@@ -0,0 +1,129 @@
+package imagelogic.download;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 对冲请求的等待时间和统计。
+ * 按主机记录最近的首字节时间(发出请求到收到响应头)，主地址超过p95还没有响应的时候对冲请求镜像地址；
+ * 样本不够的时候使用默认等待时间。统计对冲的比例和镜像胜出的次数，用于调整CDN配置。
+ *
+ */
+public class HedgePolicy {
+	public static final long DEFAULT_DELAY_MS = 1000;// 样本不够时的等待时间
+	private static final long MIN_DELAY_MS = 50;// 最短等待时间
+	private static final long MAX_DELAY_MS = 10 * 1000;// 最长等待时间，和读取超时一样
+	private static final int MAX_SAMPLES = 100;// 每个主机保留的样本数
+	private static final int MIN_SAMPLES = 20;// 计算p95需要的最少样本数
+	private static final float PERCENTILE = 0.95f;
+
+	// 以下字段由this保护
+	private final Map<String, Samples> mHosts = new HashMap<String, Samples>();
+	private long mRequests;// 有镜像的请求数
+	private long mHedged;// 发出对冲请求的请求数
+	private long mMirrorWins;// 镜像先下载完的请求数
+	private long mFailovers;// 主地址失败后改用镜像的次数
+
+	// 一个主机最近的首字节时间，环形缓冲区
+	private static class Samples {
+		final long[] values = new long[MAX_SAMPLES];
+		int count;
+		int next;
+	}
+
+	/**
+	 * @Title: recordFirstByte
+	 * @Description: 记录一次请求的首字节时间
+	 * @param @param url
+	 * @param @param elapsedMs
+	 * @return void
+	 * @throws
+	 */
+	public synchronized void recordFirstByte(String url, long elapsedMs) {
+		final String host = HostCircuitBreaker.hostOf(url);
+		if (host == null) {
+			return;
+		}
+		Samples samples = mHosts.get(host);
+		if (samples == null) {
+			samples = new Samples();
+			mHosts.put(host, samples);
+		}
+		samples.values[samples.next] = elapsedMs;
+		samples.next = (samples.next + 1) % MAX_SAMPLES;
+		if (samples.count < MAX_SAMPLES) {
+			samples.count++;
+		}
+	}
+
+	/**
+	 * @Title: getHedgeDelay
+	 * @Description: 主地址等待多久没有响应就对冲请求镜像地址
+	 * @param @param url 主地址
+	 * @return long 毫秒，主机的p95首字节时间，样本不够返回DEFAULT_DELAY_MS
+	 * @throws
+	 */
+	public synchronized long getHedgeDelay(String url) {
+		final String host = HostCircuitBreaker.hostOf(url);
+		final Samples samples = host != null ? mHosts.get(host) : null;
+		if (samples == null || samples.count < MIN_SAMPLES) {
+			return DEFAULT_DELAY_MS;
+		}
+		long[] sorted = new long[samples.count];
+		System.arraycopy(samples.values, 0, sorted, 0, samples.count);
+		Arrays.sort(sorted);
+		long p95 = sorted[Math.min(sorted.length - 1,
+				(int) (sorted.length * PERCENTILE))];
+		return Math.max(MIN_DELAY_MS, Math.min(MAX_DELAY_MS, p95));
+	}
+
+	synchronized void onRequest() {
+		mRequests++;
+	}
+
+	synchronized void onHedge() {
+		mHedged++;
+	}
+
+	synchronized void onFailover() {
+		mFailovers++;
+	}
+
+	synchronized void onMirrorWin() {
+		mMirrorWins++;
+	}
+
+	// 有镜像的请求数
+	public synchronized long getRequestCount() {
+		return mRequests;
+	}
+
+	// 发出对冲请求的请求数
+	public synchronized long getHedgedCount() {
+		return mHedged;
+	}
+
+	// 镜像先下载完的请求数，包括主地址失败后改用镜像成功的
+	public synchronized long getMirrorWinCount() {
+		return mMirrorWins;
+	}
+
+	// 主地址失败后改用镜像的次数
+	public synchronized long getFailoverCount() {
+		return mFailovers;
+	}
+
+	// 对冲比例，正常应该在5%左右
+	public synchronized float getHedgeRate() {
+		return mRequests > 0 ? (float) mHedged / mRequests : 0;
+	}
+
+	// 清空统计，首字节时间的样本保留
+	public synchronized void resetStats() {
+		mRequests = 0;
+		mHedged = 0;
+		mMirrorWins = 0;
+		mFailovers = 0;
+	}
+}
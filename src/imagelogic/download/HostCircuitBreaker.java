@@ -0,0 +1,210 @@
+package imagelogic.download;
+
+import imagelogic.utils.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 按主机统计下载失败，实现熔断和指数退避。
+ * 同一个主机连续失败达到阈值后熔断(open)，熔断期间的请求直接失败，显示默认图片；
+ * 熔断时间到了以后半开(half-open)，只放一个探测请求，成功则恢复，失败则加倍熔断时间。
+ * 熔断时间和重试间隔都是指数增长并带随机抖动，避免所有请求同时重试。
+ * 
+ */
+public class HostCircuitBreaker {
+	private static final String TAG = "HostCircuitBreaker";
+
+	public static final int DEFAULT_FAILURE_THRESHOLD = 3;// 连续失败几次熔断
+	public static final long DEFAULT_OPEN_MS = 5 * 1000;// 第一次熔断的时间
+	public static final long DEFAULT_MAX_OPEN_MS = 5 * 60 * 1000;// 最长熔断时间
+	public static final long DEFAULT_RETRY_BASE_MS = 500;// 第一次重试的间隔
+	private static final long MAX_RETRY_MS = 10 * 1000;// 最长重试间隔
+	private static final long PROBE_TIMEOUT_MS = 30 * 1000;// 探测请求没有结果时，超过这个时间再放一个
+
+	private final int mFailureThreshold;
+	private final long mOpenMs;
+	private final long mMaxOpenMs;
+	private final Map<String, HostState> mHosts = new HashMap<String, HostState>();
+	private static final Random sRandom = new Random();
+
+	// 主机状态，没有失败的主机不保存
+	private static class HostState {
+		int failures;// 连续失败次数
+		int trips;// 连续熔断次数，0没有熔断
+		long openUntil;// 熔断结束时间
+		long probeStart;// 半开状态下探测请求开始的时间，0没有探测请求
+	}
+
+	public HostCircuitBreaker() {
+		this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MS, DEFAULT_MAX_OPEN_MS);
+	}
+
+	/**
+	 * Description:构造方法
+	 * 
+	 * @param failureThreshold
+	 *            连续失败几次熔断
+	 * @param openMs
+	 *            第一次熔断的时间，之后每次加倍
+	 * @param maxOpenMs
+	 *            最长熔断时间
+	 */
+	public HostCircuitBreaker(int failureThreshold, long openMs, long maxOpenMs) {
+		mFailureThreshold = Math.max(1, failureThreshold);
+		mOpenMs = Math.max(1, openMs);
+		mMaxOpenMs = Math.max(mOpenMs, maxOpenMs);
+	}
+
+	/**
+	 * @Title: allowRequest
+	 * @Description: 请求前调用，熔断期间返回false；半开状态只允许一个探测请求。允许的请求结束后必须调用onSuccess或者onFailure
+	 * @param @param url
+	 * @return boolean
+	 * @throws
+	 */
+	public synchronized boolean allowRequest(String url) {
+		HostState state = mHosts.get(hostOf(url));
+		if (state == null || state.trips == 0) {
+			return true;
+		}
+		long now = System.currentTimeMillis();
+		if (now < state.openUntil) {
+			return false;
+		}
+		if (state.probeStart > 0 && now - state.probeStart < PROBE_TIMEOUT_MS) {
+			return false;
+		}
+		state.probeStart = now;
+		return true;
+	}
+
+	// 主机有响应，恢复正常
+	public synchronized void onSuccess(String url) {
+		HostState state = mHosts.remove(hostOf(url));
+		if (state != null && state.trips > 0) {
+			Log.d(TAG, "主机恢复:" + hostOf(url));
+		}
+	}
+
+	// 连接失败，超时或者5xx
+	public synchronized void onFailure(String url) {
+		String host = hostOf(url);
+		if (host == null) {
+			return;
+		}
+		HostState state = mHosts.get(host);
+		if (state == null) {
+			state = new HostState();
+			mHosts.put(host, state);
+		}
+		long now = System.currentTimeMillis();
+		if (state.trips > 0 && now < state.openUntil) {
+			// 熔断前发出的请求，不再延长熔断时间
+			return;
+		}
+		state.failures++;
+		state.probeStart = 0;
+		if (state.trips > 0 || state.failures >= mFailureThreshold) {
+			state.trips++;
+			long openMs = jitter(backoff(mOpenMs, state.trips - 1, mMaxOpenMs));
+			state.openUntil = now + openMs;
+			Log.e(TAG, "主机熔断:" + host + " " + openMs + "ms");
+		}
+	}
+
+	/**
+	 * @Title: isOpen
+	 * @Description: 主机是否在熔断期间
+	 * @param @param url
+	 * @return boolean
+	 * @throws
+	 */
+	public synchronized boolean isOpen(String url) {
+		HostState state = mHosts.get(hostOf(url));
+		return state != null && state.trips > 0
+				&& System.currentTimeMillis() < state.openUntil;
+	}
+
+	/**
+	 * @Title: getRetryDelay
+	 * @Description: 第attempt次失败后等待多久再重试
+	 * @param @param url
+	 * @param @param attempt 已经失败的次数，从1开始
+	 * @return long 毫秒，主机熔断的时候返回-1，不再重试
+	 * @throws
+	 */
+	public long getRetryDelay(String url, int attempt) {
+		if (isOpen(url)) {
+			return -1;
+		}
+		return getBackoffDelay(attempt);
+	}
+
+	/**
+	 * @Title: getBackoffDelay
+	 * @Description: 不区分主机的重试间隔，指数增长带随机抖动
+	 * @param @param attempt 已经失败的次数，从1开始
+	 * @return long 毫秒
+	 * @throws
+	 */
+	public static long getBackoffDelay(int attempt) {
+		return jitter(backoff(DEFAULT_RETRY_BASE_MS, attempt - 1, MAX_RETRY_MS));
+	}
+
+	// 清除所有主机的状态，例如网络切换以后
+	public synchronized void reset() {
+		mHosts.clear();
+	}
+
+	// base * 2^exponent，不超过max
+	private static long backoff(long base, int exponent, long max) {
+		if (exponent <= 0) {
+			return Math.min(base, max);
+		}
+		if (exponent >= 30 || base > (max >> exponent)) {
+			return max;
+		}
+		return base << exponent;
+	}
+
+	// 在[delay/2, delay]之间随机
+	private static long jitter(long delay) {
+		long half = delay / 2;
+		synchronized (sRandom) {
+			return half + (long) (sRandom.nextDouble() * (delay - half + 1));
+		}
+	}
+
+	/**
+	 * @Title: hostOf
+	 * @Description: 取地址中的主机和端口，小写
+	 * @param @param url
+	 * @return String 不是网络地址返回null
+	 * @throws
+	 */
+	public static String hostOf(String url) {
+		if (url == null) {
+			return null;
+		}
+		int start = url.indexOf("://");
+		if (start < 0) {
+			return null;
+		}
+		start += 3;
+		int end = start;
+		while (end < url.length()) {
+			char c = url.charAt(end);
+			if (c == '/' || c == '?' || c == '#') {
+				break;
+			}
+			end++;
+		}
+		int at = url.lastIndexOf('@', end - 1);
+		if (at >= start) {
+			start = at + 1;
+		}
+		return end > start ? url.substring(start, end).toLowerCase() : null;
+	}
+}
@@ -0,0 +1,62 @@
+package imagelogic.download;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按主机配置镜像的MirrorResolver。
+ * 例如addMirror("img.a.com", "img.b.com")以后，http://img.a.com/x.jpg的镜像地址是http://img.b.com/x.jpg。
+ * 
+ */
+public class HostMirrorResolver implements MirrorResolver {
+
+	// 主机和镜像主机，主机都是小写
+	private final Map<String, List<String>> mMirrors = new HashMap<String, List<String>>();
+
+	/**
+	 * @Title: addMirror
+	 * @Description: 添加镜像主机，可以带端口，同一个主机的多个镜像按添加顺序尝试
+	 * @param @param host 主机
+	 * @param @param mirrorHost 镜像主机
+	 * @return HostMirrorResolver
+	 * @throws
+	 */
+	public synchronized HostMirrorResolver addMirror(String host,
+			String mirrorHost) {
+		final String key = host.toLowerCase();
+		List<String> mirrors = mMirrors.get(key);
+		if (mirrors == null) {
+			mirrors = new ArrayList<String>();
+			mMirrors.put(key, mirrors);
+		}
+		mirrors.add(mirrorHost);
+		return this;
+	}
+
+	@Override
+	public synchronized String[] getMirrors(String url) {
+		final String host = HostCircuitBreaker.hostOf(url);
+		final List<String> mirrors = host != null ? mMirrors.get(host) : null;
+		if (mirrors == null || mirrors.isEmpty()) {
+			return null;
+		}
+		// 主机在地址中的位置，跳过用户信息，和hostOf一致
+		int start = url.indexOf("://") + 3;
+		int end = start;
+		while (end < url.length() && "/?#".indexOf(url.charAt(end)) < 0) {
+			end++;
+		}
+		int at = url.lastIndexOf('@', end - 1);
+		if (at >= start) {
+			start = at + 1;
+		}
+		final String[] result = new String[mirrors.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = url.substring(0, start) + mirrors.get(i)
+					+ url.substring(end);
+		}
+		return result;
+	}
+}
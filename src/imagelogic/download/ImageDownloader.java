@@ -29,4 +29,15 @@ public interface ImageDownloader {
 	 * @throws
 	 */
 	public byte[] downloadBytesByUrl(String urlString);
+
+	/**
+	 * @Title: downloadBytesByUrl
+	 * @Description: 从服务端获取图片数据，读到的数据同时写入teeStream(例如磁盘缓存的临时文件)，
+	 *               每个字节只从网络读取一次
+	 * @param @param urlString 图片地址
+	 * @param @param teeStream 同时写入的输出流，可以为空，成功失败都不会关闭
+	 * @return 字节数组
+	 * @throws
+	 */
+	public byte[] downloadBytesByUrl(String urlString, OutputStream teeStream);
 }
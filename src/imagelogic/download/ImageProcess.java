@@ -1,11 +1,14 @@
 package imagelogic.download;
 
 import imagelogic.disk.BitmapDiskCache;
+import imagelogic.disk.CacheHeader;
 import imagelogic.display.ImageDisplayConfig;
+import imagelogic.utils.ByteArrayPool;
+import imagelogic.utils.CacheKey;
 import imagelogic.utils.ImageDecoder;
-import imagelogic.utils.ImageUtils;
 import imagelogic.utils.Log;
 
+import java.io.IOException;
 import java.io.OutputStream;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -29,6 +32,8 @@ public class ImageProcess {
 
 	private AtomicBoolean mInitDiskCache = new AtomicBoolean(false);
 
+	private volatile NegativeResultCache mNegativeCache;// 加载失败的地址
+
 	/**
 	 * Description:构造方法
 	 * 
@@ -51,6 +56,32 @@ public class ImageProcess {
 		this.neverCalculate = neverCalculate;
 	}
 
+	/**
+	 * @Title: setNegativeCache
+	 * @Description: 设置加载失败的地址缓存，失败的地址在有效期内不再请求
+	 * @param @param negativeCache 为空不缓存
+	 * @return void
+	 * @throws
+	 */
+	public void setNegativeCache(NegativeResultCache negativeCache) {
+		mNegativeCache = negativeCache;
+	}
+
+	public NegativeResultCache getNegativeCache() {
+		return mNegativeCache;
+	}
+
+	/**
+	 * @Title: isNeverCalculate
+	 * @Description: 是否不处理图片
+	 * @param @return
+	 * @return boolean
+	 * @throws
+	 */
+	public boolean isNeverCalculate() {
+		return neverCalculate;
+	}
+
 	/**
 	 * @Title: processBitmap
 	 * @Description: 处理bitmap
@@ -61,21 +92,195 @@ public class ImageProcess {
 	 * @throws
 	 */
 	public Bitmap processBitmap(String url, ImageDisplayConfig config) {
+		return processBitmap(url, config, null);
+	}
+
+	/**
+	 * @Title: processBitmap
+	 * @Description: 处理bitmap，渐进式JPEG每下载完一遍扫描回调一张预览图
+	 * @param @param url
+	 * @param @param config
+	 * @param @param previewListener 预览回调，为空不预览
+	 * @param @return
+	 * @return Bitmap
+	 * @throws
+	 */
+	public Bitmap processBitmap(String url, ImageDisplayConfig config,
+			ProgressiveJpegOutputStream.PreviewListener previewListener) {
 		Log.d(TAG, "processBitmap下载地址:" + url);
-		byte[] bytes = null;
-		bytes = downloader.downloadBytesByUrl(url);
+		if (isHostUnavailable(url) || isKnownFailure(url)) {
+			return null;
+		}
+		final String key = CacheKey.of(url).getFileName();
+		OutputStream out = null;
+		if (mDiskCache != null) {
+			try {
+				out = mDiskCache.getTempOutputStream(key);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		OutputStream tee = out;
+		if (previewListener != null) {
+			tee = new ProgressiveJpegOutputStream(out,
+					config.getBitmapWidth(), config.getBitmapHeight(),
+					previewListener);
+		}
+		// 下载的数据同时写入磁盘缓存的临时文件，不需要再压缩bitmap写入磁盘
+		final ByteArrayPool.Buffer buffer = downloadBytes(url, tee);
 		Bitmap bitmap = null;
-		if (bytes != null) {
-			if (neverCalculate) {
-				bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
-			} else {
-				bitmap = ImageDecoder.decodeSampledBitmapFromBytes(bytes,
-						config.getBitmapWidth(), config.getBitmapHeight());
+		boolean undecodable = false;
+		if (buffer != null) {
+			try {
+				if (neverCalculate) {
+					bitmap = ImageDecoder.decodeByteArray(buffer.data,
+							buffer.length, null);
+				} else {
+					bitmap = ImageDecoder.decodeSampledBitmapFromBytes(
+							buffer.data, buffer.length,
+							config.getBitmapWidth(), config.getBitmapHeight());
+				}
+				undecodable = bitmap == null
+						&& isUndecodable(buffer.data, buffer.length);
+			} finally {
+				// 解码以后bitmap不再引用数组，可以还回池中
+				buffer.release();
 			}
 		}
+		if (out != null) {
+			finishTempFile(out, bitmap != null);
+		}
+		if (undecodable) {
+			recordFailure(url, NegativeResultCache.STATUS_UNDECODABLE);
+		} else {
+			recordResult(url, bitmap != null);
+		}
 		return bitmap;
 	}
 
+	/**
+	 * @Title: getRetryDelay
+	 * @Description: 下载失败后等待多久再重试，指数退避带随机抖动
+	 * @param @param url
+	 * @param @param attempt 已经失败的次数，从1开始
+	 * @return long 毫秒，主机熔断或者地址已经确定失败的时候返回-1，不再重试
+	 * @throws
+	 */
+	public long getRetryDelay(String url, int attempt) {
+		final NegativeResultCache negativeCache = mNegativeCache;
+		if (negativeCache != null && negativeCache.isFailed(url)) {
+			// 404或者不能解码，重试也不会成功
+			return -1;
+		}
+		final HostCircuitBreaker breaker = getHostBreaker();
+		if (breaker != null) {
+			return breaker.getRetryDelay(url, attempt);
+		}
+		return HostCircuitBreaker.getBackoffDelay(attempt);
+	}
+
+	// 主机熔断期间直接失败，不再打开临时文件；有镜像的图片可以从镜像下载
+	private boolean isHostUnavailable(String url) {
+		final HostCircuitBreaker breaker = getHostBreaker();
+		if (breaker != null && breaker.isOpen(url) && !hasMirrors(url)) {
+			Log.d(TAG, "主机熔断，直接失败:" + url);
+			return true;
+		}
+		return false;
+	}
+
+	// 地址最近加载失败，在有效期内直接失败
+	private boolean isKnownFailure(String url) {
+		final NegativeResultCache negativeCache = mNegativeCache;
+		if (negativeCache != null && negativeCache.isFailed(url)) {
+			Log.d(TAG, "地址最近加载失败，直接失败:" + url);
+			return true;
+		}
+		return false;
+	}
+
+	// 记录下载结果，失败的时候按响应码缓存
+	private void recordResult(String url, boolean success) {
+		final NegativeResultCache negativeCache = mNegativeCache;
+		if (negativeCache == null) {
+			return;
+		}
+		if (success) {
+			negativeCache.remove(url);
+		} else if (downloader instanceof ImageSimpleHttpDownloader) {
+			recordFailure(url, ((ImageSimpleHttpDownloader) downloader)
+					.getLastResponseCode());
+		}
+	}
+
+	private void recordFailure(String url, int status) {
+		final NegativeResultCache negativeCache = mNegativeCache;
+		if (negativeCache != null) {
+			negativeCache.put(url, status);
+		}
+	}
+
+	// 下载图片数据，默认的下载类借用池中的数组，其他下载类包装一下返回的数组
+	private ByteArrayPool.Buffer downloadBytes(String url, OutputStream tee) {
+		if (downloader instanceof ImageSimpleHttpDownloader) {
+			return ((ImageSimpleHttpDownloader) downloader)
+					.downloadPooledBytesByUrl(url, tee,
+							ByteArrayPool.getDefault());
+		}
+		if (downloader instanceof NioImageDownloader) {
+			return ((NioImageDownloader) downloader).downloadPooledBytesByUrl(
+					url, tee);
+		}
+		final byte[] bytes = downloader.downloadBytesByUrl(url, tee);
+		return bytes != null ? new ByteArrayPool.Buffer(null, bytes,
+				bytes.length) : null;
+	}
+
+	// 下载到的数据连图片大小都解析不出来，不是图片(例如返回了网页)
+	private static boolean isUndecodable(byte[] bytes, int length) {
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(bytes, 0, length, options);
+		return options.outWidth <= 0 || options.outHeight <= 0;
+	}
+
+	// 图片是否有镜像地址
+	private boolean hasMirrors(String url) {
+		return downloader instanceof ImageSimpleHttpDownloader
+				&& ((ImageSimpleHttpDownloader) downloader).hasMirrors(url);
+	}
+
+	// 下载类的主机熔断，没有返回null
+	private HostCircuitBreaker getHostBreaker() {
+		if (downloader instanceof ImageSimpleHttpDownloader) {
+			return ((ImageSimpleHttpDownloader) downloader).getHostBreaker();
+		}
+		return null;
+	}
+
+	/**
+	 * @Title: finishTempFile
+	 * @Description: 关闭临时文件，图片可以解析的时候提交到磁盘缓存，否则删除
+	 * @param @param out 磁盘缓存的临时文件
+	 * @param @param success
+	 * @return boolean 是否提交到了磁盘缓存
+	 * @throws
+	 */
+	private boolean finishTempFile(OutputStream out, boolean success) {
+		try {
+			out.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			success = false;
+		}
+		if (success) {
+			mDiskCache.commit(out);
+		} else {
+			mDiskCache.delTempFile(out);
+		}
+		return success;
+	}
+
 	/**
 	 * @Title: downloadImage
 	 * @Description: 下载图片
@@ -87,28 +292,144 @@ public class ImageProcess {
 	 */
 	public boolean downloadImage(String url, ImageDisplayConfig config) {
 		Log.d(TAG, "downloadImage下载地址:" + url);
-		final String key = ImageUtils.CalcUrl2Md5(url);
+		final String key = CacheKey.of(url).getFileName();
 		boolean result = false;
 		OutputStream out = null;
 		if (mDiskCache == null) {
 			Log.e(TAG, "mDiskCache==null");
 			return false;
 		}
+		if (isHostUnavailable(url) || isKnownFailure(url)) {
+			return false;
+		}
+		// 同一张图片只有一个线程续传，其他线程各自写自己的临时文件
+		if (downloader instanceof ResumableImageDownloader
+				&& mDiskCache.lockPartial(key)) {
+			try {
+				result = downloadImageResumable(url, key);
+			} finally {
+				mDiskCache.unlockPartial(key);
+			}
+		} else {
+			try {
+				out = mDiskCache.getTempOutputStream(key);
+				result = finishTempFile(out,
+						downloader.downloadToLocalStreamByUrl(url, out));
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		recordResult(url, result);
+		return result;
+	}
+
+	/**
+	 * @Title: revalidateImage
+	 * @Description: 刷新磁盘缓存中的图片。有ETag或者Last-Modified的时候发送条件请求，
+	 *               图片没有变化只更新校验时间，变化了重新写入磁盘缓存；没有校验值的时候重新下载
+	 * @param @param url 图片地址
+	 * @param @param maxAgeMs 距离上次校验不到这个时间的图片认为没有变化，不发请求
+	 * @return int RevalidatingImageDownloader.RESULT_*
+	 * @throws
+	 */
+	public int revalidateImage(String url, long maxAgeMs) {
+		if (mDiskCache == null) {
+			Log.e(TAG, "mDiskCache==null");
+			return RevalidatingImageDownloader.RESULT_FAILED;
+		}
+		final String key = CacheKey.of(url).getFileName();
+		final CacheHeader header = mDiskCache.getHeader(key);
+		if (header != null
+				&& System.currentTimeMillis() - header.validatedTime < maxAgeMs) {
+			return RevalidatingImageDownloader.RESULT_NOT_MODIFIED;
+		}
+		if (header == null
+				|| (header.etag == null && header.lastModified == null)
+				|| !(downloader instanceof RevalidatingImageDownloader)) {
+			return downloadImage(url, null) ? RevalidatingImageDownloader.RESULT_MODIFIED
+					: RevalidatingImageDownloader.RESULT_FAILED;
+		}
+		int result = RevalidatingImageDownloader.RESULT_FAILED;
 		try {
-			out = mDiskCache.getTempOutputStream(key);
-			boolean success = downloader.downloadToLocalStreamByUrl(url, out);
-			if (success) {
-				mDiskCache.commit(key);
+			OutputStream out = mDiskCache.getTempOutputStream(key);
+			try {
+				result = ((RevalidatingImageDownloader) downloader)
+						.revalidate(url, header.etag, header.lastModified, out);
+			} finally {
+				out.close();
+			}
+			if (result == RevalidatingImageDownloader.RESULT_MODIFIED) {
+				mDiskCache.commit(out);
 			} else {
-				mDiskCache.delTempFile(key);
+				mDiskCache.delTempFile(out);
+				if (result == RevalidatingImageDownloader.RESULT_NOT_MODIFIED) {
+					mDiskCache.markValidated(key);
+				}
 			}
-			result = true;
 		} catch (Exception e) {
 			e.printStackTrace();
+			result = RevalidatingImageDownloader.RESULT_FAILED;
 		}
 		return result;
 	}
 
+	/**
+	 * @Title: downloadImageResumable
+	 * @Description: 断点续传下载图片，失败的时候保留已经下载的部分，下次重试接着下载。调用方持有lockPartial
+	 * @param @param url 图片地址
+	 * @param @param key 磁盘缓存key
+	 * @return boolean
+	 * @throws
+	 */
+	private boolean downloadImageResumable(String url, final String key) {
+		final long offset = mDiskCache.getPartialLength(key);
+		final String validator = offset > 0 ? mDiskCache
+				.getPartialValidator(key) : null;
+		final String[] responseValidator = { validator };
+		final OutputStream[] out = new OutputStream[1];
+		ResumableImageDownloader.PartialTarget target = new ResumableImageDownloader.PartialTarget() {
+			@Override
+			public long getOffset() {
+				return offset;
+			}
+
+			@Override
+			public String getValidator() {
+				return validator;
+			}
+
+			@Override
+			public OutputStream openStream(boolean resume, String validator)
+					throws IOException {
+				responseValidator[0] = validator;
+				try {
+					out[0] = mDiskCache.getTempOutputStream(key, resume);
+				} catch (IOException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new IOException(e.toString());
+				}
+				return out[0];
+			}
+		};
+		boolean success = ((ResumableImageDownloader) downloader)
+				.downloadToLocalStreamByUrl(url, target);
+		try {
+			if (out[0] != null) {
+				out[0].close();
+			}
+			if (success && out[0] != null) {
+				mDiskCache.commit(out[0]);
+			} else {
+				mDiskCache.keepPartial(key, responseValidator[0]);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			success = false;
+		}
+		return success;
+	}
+
 	/**
 	 * @Title: initHttpDiskCache
 	 * @Description: 初始化磁盘缓存
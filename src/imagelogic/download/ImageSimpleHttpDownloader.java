@@ -1,16 +1,32 @@
 package imagelogic.download;
 
+import imagelogic.disk.ValidatorSink;
+import imagelogic.exception.HostUnavailableException;
+import imagelogic.threads.PriorityLifoExecutor;
+import imagelogic.utils.ByteArrayPool;
 import imagelogic.utils.ImageUtils;
 import imagelogic.utils.Log;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.http.conn.ConnectTimeoutException;
 
@@ -20,45 +36,359 @@ import org.apache.http.conn.ConnectTimeoutException;
  * @author LeeFranker
  * 
  */
-public class ImageSimpleHttpDownloader implements ImageDownloader {
+public class ImageSimpleHttpDownloader implements ResumableImageDownloader,
+		RevalidatingImageDownloader {
 	private static final String TAG = "ImageDownloader";
 	private static final String USER_AGENT = "Mozilla/5.0 (X11; U; Linux i686; zh-CN; rv:1.9.1.2) Gecko/20090803 Fedora/3.5.2-2.fc11 Firefox/3.5.2";
 
-	private static final int IO_BUFFER_SIZE = 8 * 1024; // 8k
 	private static final int CONN_TIMEOUT = 15 * 1000; // 网络连接超时时间
 	private static final int READ_TIMEOUT = 10 * 1000; // 网络读取超时时间
+	private static final int COPY_BUFFER_SIZE = 32 * 1024; // 拷贝数据的缓冲区大小
+	private static final int MAX_DRAIN_BYTES = 64 * 1024; // 释放连接时最多读完的剩余数据，更多的直接断开
+
+	private volatile boolean mKeepAlive;// 是否复用keep-alive连接
+
+	private volatile HostCircuitBreaker mHostBreaker = new HostCircuitBreaker();// 主机熔断
+
+	private volatile BandwidthLimiter mPrefetchLimiter;// 预加载限速
+
+	private volatile MirrorResolver mMirrorResolver;// 镜像地址，为空不对冲
+
+	private final HedgePolicy mHedgePolicy = new HedgePolicy();// 对冲等待时间和统计
+
+	private static final int MAX_HEDGE_THREADS = 16;// 对冲下载的线程数上限
+	private static final int MAX_HEDGES_PER_HOST = 2;// 每个镜像主机同时进行的对冲请求数
+	private static final long MIN_BODY_STALL_MS = HedgePolicy.DEFAULT_DELAY_MS;// 收到响应头以后多久没有数据算停顿
+
+	// 对冲请求的下载线程，空闲一分钟退出，线程用完的时候不再对冲
+	private static final ThreadPoolExecutor sHedgeExecutor = new ThreadPoolExecutor(
+			0, MAX_HEDGE_THREADS, 60, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger mCount = new AtomicInteger(1);
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ImageLogic hedge #"
+							+ mCount.getAndIncrement());
+					thread.setDaemon(true);
+					thread.setPriority(Thread.NORM_PRIORITY - 1);
+					return thread;
+				}
+			});
+
+	// 每个镜像主机正在进行的对冲请求数，由自己保护
+	private static final Map<String, Integer> sHedgesInFlight = new HashMap<String, Integer>();
+
+	// 每个下载线程最后一次请求的响应码
+	private final ThreadLocal<Integer> mLastResponseCode = new ThreadLocal<Integer>();
+
+	// 每个下载线程复用一个拷贝缓冲区
+	private static final ThreadLocal<byte[]> sCopyBuffer = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[COPY_BUFFER_SIZE];
+		}
+	};
+
+	// 2.2以前HttpURLConnection复用连接有bug，默认只在2.2以上复用
+	public ImageSimpleHttpDownloader() {
+		this(ImageUtils.hasFroyo());
+	}
+
+	public ImageSimpleHttpDownloader(boolean keepAlive) {
+		setKeepAlive(keepAlive);
+	}
+
+	/**
+	 * @Title: setKeepAlive
+	 * @Description: 设置是否复用keep-alive连接。复用的时候请求结束读完剩余数据再关闭流，连接回到系统的连接池，
+	 *               下一个请求不用再建立TCP和TLS连接；不复用的时候直接断开。连接池的大小不在这里修改，见setMaxIdleConnections
+	 * @param @param keepAlive
+	 * @return void
+	 * @throws
+	 */
+	public void setKeepAlive(boolean keepAlive) {
+		mKeepAlive = keepAlive;
+	}
+
+	public boolean isKeepAlive() {
+		return mKeepAlive;
+	}
+
+	/**
+	 * @Title: setHostBreaker
+	 * @Description: 设置主机熔断，多个下载类可以共用一个
+	 * @param @param hostBreaker 为空不熔断
+	 * @return void
+	 * @throws
+	 */
+	public void setHostBreaker(HostCircuitBreaker hostBreaker) {
+		mHostBreaker = hostBreaker;
+	}
+
+	public HostCircuitBreaker getHostBreaker() {
+		return mHostBreaker;
+	}
+
+	/**
+	 * @Title: setPrefetchBandwidth
+	 * @Description: 设置预加载下载的总带宽(令牌桶)，前台显示的图片不限速
+	 * @param @param bytesPerSecond 每秒字节数，小于等于0不限速
+	 * @return void
+	 * @throws
+	 */
+	public void setPrefetchBandwidth(long bytesPerSecond) {
+		mPrefetchLimiter = bytesPerSecond > 0 ? new BandwidthLimiter(
+				bytesPerSecond) : null;
+	}
+
+	/**
+	 * @Title: setMirrorResolver
+	 * @Description: 设置镜像地址。有镜像的图片主地址超过p95首字节时间还没有响应的时候，同时请求下一个镜像，
+	 *               先下载完的使用，其他的断开；主地址失败的时候马上改用镜像
+	 * @param @param mirrorResolver 为空不对冲
+	 * @return void
+	 * @throws
+	 */
+	public void setMirrorResolver(MirrorResolver mirrorResolver) {
+		mMirrorResolver = mirrorResolver;
+	}
+
+	public MirrorResolver getMirrorResolver() {
+		return mMirrorResolver;
+	}
+
+	// 对冲等待时间和统计(对冲比例，镜像胜出次数)
+	public HedgePolicy getHedgePolicy() {
+		return mHedgePolicy;
+	}
+
+	/**
+	 * @Title: hasMirrors
+	 * @Description: 图片是否有镜像地址，有镜像的时候主地址的主机熔断也可以下载
+	 * @param @param urlString
+	 * @return boolean
+	 * @throws
+	 */
+	public boolean hasMirrors(String urlString) {
+		return getMirrors(urlString) != null;
+	}
+
+	private String[] getMirrors(String urlString) {
+		final MirrorResolver resolver = mMirrorResolver;
+		if (resolver == null) {
+			return null;
+		}
+		final String[] mirrors = resolver.getMirrors(urlString);
+		return mirrors != null && mirrors.length > 0 ? mirrors : null;
+	}
+
+	/**
+	 * @Title: getLastResponseCode
+	 * @Description: 当前线程最后一次请求的响应码，用于区分下载失败的原因
+	 * @return int 没有收到响应(连接失败，超时，主机熔断)返回-1
+	 * @throws
+	 */
+	public int getLastResponseCode() {
+		Integer code = mLastResponseCode.get();
+		return code != null ? code : -1;
+	}
+
+	/**
+	 * @Title: setMaxIdleConnections
+	 * @Description: 设置每个主机最多保留的空闲连接数。修改的是系统属性http.maxConnections，
+	 *               对整个进程的HttpURLConnection有效，包括应用自己的网络请求，所以只由应用显式调用，
+	 *               需要在第一次联网之前调用；不调用使用系统默认值
+	 * @param @param maxConnections
+	 * @return void
+	 * @throws
+	 */
+	public static void setMaxIdleConnections(int maxConnections) {
+		System.setProperty("http.maxConnections",
+				String.valueOf(Math.max(1, maxConnections)));
+	}
+
+	/**
+	 * @Title: warmup
+	 * @Description: 预先建立到主机的连接(HEAD请求)，连接放回连接池，第一张图片不用再等握手
+	 * @param @param urlString 主机上的任意地址
+	 * @return boolean 连接是否成功
+	 * @throws
+	 */
+	public boolean warmup(String urlString) {
+		if (!mKeepAlive) {
+			return false;
+		}
+		HttpURLConnection urlConnection = null;
+		boolean reusable = false;
+		try {
+			urlConnection = openConnection(urlString);
+			urlConnection.setRequestMethod("HEAD");
+			int code = getResponseCode(urlString, urlConnection);
+			Log.d(TAG, "预连接:" + urlString + " code:" + code);
+			reusable = true;
+			return true;
+		} catch (final Exception e) {
+			Log.e(TAG, "预连接失败:" + e.getMessage());
+		} finally {
+			releaseConnection(urlConnection, null, reusable);
+		}
+		return false;
+	}
+
+	// 创建连接，主机熔断的时候直接失败
+	private HttpURLConnection openConnection(String urlString)
+			throws IOException {
+		mLastResponseCode.set(-1);
+		final HostCircuitBreaker breaker = mHostBreaker;
+		if (breaker != null && !breaker.allowRequest(urlString)) {
+			throw new HostUnavailableException(
+					HostCircuitBreaker.hostOf(urlString));
+		}
+		final URL url = new URL(urlString);
+		HttpURLConnection urlConnection = (HttpURLConnection) url
+				.openConnection();
+		urlConnection.setConnectTimeout(CONN_TIMEOUT);
+		urlConnection.setReadTimeout(READ_TIMEOUT);
+		urlConnection.setDoOutput(false);
+		urlConnection.setDoInput(true);
+		urlConnection.setUseCaches(false);
+		urlConnection.addRequestProperty("User-Agent", USER_AGENT);
+		return urlConnection;
+	}
+
+	/**
+	 * @Title: getResponseCode
+	 * @Description: 获取响应码并记录主机状态，连接失败，超时和5xx算主机失败，其他响应说明主机正常
+	 * @param @param urlString
+	 * @param @param urlConnection
+	 * @return int
+	 * @throws IOException
+	 */
+	private int getResponseCode(String urlString,
+			HttpURLConnection urlConnection) throws IOException {
+		return getResponseCode(urlString, urlConnection, null);
+	}
+
+	// 对冲下载中被断开的连接不算主机失败
+	private int getResponseCode(String urlString,
+			HttpURLConnection urlConnection, HedgedDownload download)
+			throws IOException {
+		final HostCircuitBreaker breaker = mHostBreaker;
+		final long start = System.currentTimeMillis();
+		int code;
+		try {
+			code = urlConnection.getResponseCode();
+		} catch (IOException e) {
+			if (breaker != null
+					&& (download == null || !download.isFinished())) {
+				breaker.onFailure(urlString);
+			}
+			throw e;
+		}
+		mHedgePolicy.recordFirstByte(urlString, System.currentTimeMillis()
+				- start);
+		mLastResponseCode.set(code);
+		if (breaker != null) {
+			if (code >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+				breaker.onFailure(urlString);
+			} else {
+				breaker.onSuccess(urlString);
+			}
+		}
+		return code;
+	}
+
+	// 响应数据流，预加载任务有前台任务时让出带宽，并按设置限速
+	private InputStream openResponseStream(HttpURLConnection urlConnection)
+			throws IOException {
+		InputStream stream = urlConnection.getInputStream();
+		if (stream != null
+				&& PriorityLifoExecutor.getCurrentPriority() == PriorityLifoExecutor.PRIORITY_PREFETCH) {
+			return new ThrottledInputStream(stream, mPrefetchLimiter);
+		}
+		return stream;
+	}
+
+	/**
+	 * @Title: releaseConnection
+	 * @Description: 释放连接并关闭流。复用模式下响应完整的时候读完剩余数据，连接回到连接池；
+	 *               出错，超时，响应不完整，剩余数据太多或者不复用的时候直接断开连接
+	 * @param @param urlConnection
+	 * @param @param stream 响应数据流，为空的时候使用错误流(没有错误流使用响应流)
+	 * @param @param reusable 响应头已经收到，并且响应数据已经正常读到结尾或者不是200不需要读取
+	 * @return void
+	 * @throws
+	 */
+	private void releaseConnection(HttpURLConnection urlConnection,
+			InputStream stream, boolean reusable) {
+		if (urlConnection == null) {
+			return;
+		}
+		if (mKeepAlive && reusable) {
+			try {
+				if (stream == null) {
+					// 响应头已经收到，这里不会重新连接
+					stream = urlConnection.getErrorStream();
+					if (stream == null) {
+						stream = urlConnection.getInputStream();
+					}
+				}
+				if (stream == null || drain(stream)) {
+					if (stream != null) {
+						stream.close();
+					}
+					return;
+				}
+			} catch (final Exception e) {
+				Log.d(TAG, "释放连接失败:" + e.getMessage());
+			}
+		}
+		urlConnection.disconnect();
+	}
+
+	// 读完剩余的数据，超过MAX_DRAIN_BYTES返回false
+	private static boolean drain(InputStream stream) throws IOException {
+		byte[] buffer = sCopyBuffer.get();
+		int drained = 0;
+		int count;
+		while ((count = stream.read(buffer)) != -1) {
+			drained += count;
+			if (drained > MAX_DRAIN_BYTES) {
+				return false;
+			}
+		}
+		return true;
+	}
 
 	// 下载图片
 	public boolean downloadToLocalStreamByUrl(String urlString,
 			OutputStream outputStream) {
 		HttpURLConnection urlConnection = null;
-		BufferedOutputStream out = null;
-		FlushedInputStream in = null;
+		OutputStream out = null;
 		InputStream stream = null;
+		boolean reusable = false;
 		try {
 			Log.d(TAG, "请求地址:" + urlString);
-			final URL url = new URL(urlString);
-			urlConnection = (HttpURLConnection) url.openConnection();
-			urlConnection.setConnectTimeout(CONN_TIMEOUT);
-			urlConnection.setReadTimeout(READ_TIMEOUT);
-			urlConnection.setDoOutput(false);
-			urlConnection.setDoInput(true);
-			urlConnection.setUseCaches(false);
-			urlConnection.addRequestProperty("User-Agent", USER_AGENT);
-			int code = urlConnection.getResponseCode();
-			if (code == HttpURLConnection.HTTP_OK) {
-				stream = urlConnection.getInputStream();
-				if (stream != null) {
-					in = new FlushedInputStream(new BufferedInputStream(stream,
-							IO_BUFFER_SIZE));
-					out = new BufferedOutputStream(outputStream, IO_BUFFER_SIZE);
-					int b;
-					while ((b = in.read()) != -1) {
-						out.write(b);
-					}
-
-					return true;
+			urlConnection = openConnection(urlString);
+			int code = getResponseCode(urlString, urlConnection);
+			if (code != HttpURLConnection.HTTP_OK) {
+				reusable = true;
+				return false;
+			}
+			notifyValidators(outputStream, urlConnection);
+			stream = openResponseStream(urlConnection);
+			if (stream != null) {
+				out = outputStream;
+				final long contentLength = parseLong(urlConnection
+						.getHeaderField("Content-Length"));
+				long received = copyStream(stream, out);
+				if (contentLength >= 0 && received != contentLength) {
+					Log.e(TAG, "数据不完整:" + received + "/" + contentLength);
+					return false;
 				}
+				reusable = true;
+				return true;
 			}
 		} catch (final ConnectTimeoutException e) {
 			Log.e(TAG, "ConnectTimeoutException:" + e.getMessage());
@@ -67,18 +397,118 @@ public class ImageSimpleHttpDownloader implements ImageDownloader {
 		} catch (final Exception e) {
 			Log.e(TAG, "Exception:" + e.getMessage());
 		} finally {
-			if (urlConnection != null) {
-				urlConnection.disconnect();
-			}
+			releaseConnection(urlConnection, stream, reusable);
 			try {
 				if (out != null) {
 					out.close();
 				}
-				if (in != null) {
-					in.close();
+			} catch (final IOException e) {
+				Log.e(TAG, "IOException:" + e.getMessage());
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @Title: copyStream
+	 * @Description: 批量拷贝数据。目标是文件的时候用FileChannel.transferFrom直接写入文件，
+	 *               否则(例如带校验和的磁盘缓存临时文件)用线程复用的缓冲区整块读写
+	 * @param @param in
+	 * @param @param out
+	 * @return long 拷贝的字节数
+	 * @throws IOException
+	 */
+	static long copyStream(InputStream in, OutputStream out)
+			throws IOException {
+		long total = 0;
+		if (out instanceof FileOutputStream) {
+			FileChannel channel = ((FileOutputStream) out).getChannel();
+			ReadableByteChannel source = Channels.newChannel(in);
+			long position = channel.position();
+			long count;
+			// 阻塞的流只有在结束的时候才会返回0
+			while ((count = channel.transferFrom(source, position + total,
+					COPY_BUFFER_SIZE)) > 0) {
+				total += count;
+			}
+			channel.position(position + total);
+			return total;
+		}
+		byte[] buffer = sCopyBuffer.get();
+		int count;
+		while ((count = in.read(buffer)) != -1) {
+			out.write(buffer, 0, count);
+			total += count;
+		}
+		out.flush();
+		return total;
+	}
+
+	// 断点续传下载图片
+	@Override
+	public boolean downloadToLocalStreamByUrl(String urlString,
+			PartialTarget target) {
+		HttpURLConnection urlConnection = null;
+		OutputStream out = null;
+		InputStream stream = null;
+		boolean reusable = false;
+		try {
+			Log.d(TAG, "请求地址:" + urlString);
+			urlConnection = openConnection(urlString);
+			final long offset = target.getOffset();
+			final String validator = target.getValidator();
+			if (offset > 0 && validator != null) {
+				Log.d(TAG, "断点续传，已下载:" + offset);
+				// 续传的时候不能让服务端压缩，否则字节位置对不上
+				urlConnection.addRequestProperty("Accept-Encoding", "identity");
+				urlConnection.addRequestProperty("Range", "bytes=" + offset
+						+ "-");
+				urlConnection.addRequestProperty("If-Range", validator);
+			}
+			int code = getResponseCode(urlString, urlConnection);
+			boolean resume;
+			if (code == HttpURLConnection.HTTP_PARTIAL) {
+				resume = offset > 0
+						&& offset == parseContentRangeStart(urlConnection
+								.getHeaderField("Content-Range"));
+				if (!resume) {
+					// 返回的范围不对，丢掉已经下载的部分，没有读的数据可能很多，直接断开
+					target.openStream(false, null).close();
+					return false;
+				}
+			} else if (code == HttpURLConnection.HTTP_OK) {
+				// 第一次下载或者文件已经变了
+				resume = false;
+			} else {
+				reusable = true;
+				if (code == 416) {
+					// Requested Range Not Satisfiable，已经下载的部分不能用了
+					target.openStream(false, null).close();
 				}
-				if (stream != null) {
-					stream.close();
+				return false;
+			}
+			out = target.openStream(resume, getValidator(urlConnection));
+			notifyValidators(out, urlConnection);
+			stream = openResponseStream(urlConnection);
+			final long contentLength = parseLong(urlConnection
+					.getHeaderField("Content-Length"));
+			long received = copyStream(stream, out);
+			if (contentLength >= 0 && received != contentLength) {
+				// 连接中途断开，已经收到的部分留给下次续传
+				Log.e(TAG, "数据不完整:" + received + "/" + contentLength);
+				return false;
+			}
+			reusable = true;
+			return true;
+		} catch (final IOException e) {
+			Log.e(TAG, "IOException:" + e.getMessage());
+		} catch (final Exception e) {
+			Log.e(TAG, "Exception:" + e.getMessage());
+		} finally {
+			releaseConnection(urlConnection, stream, reusable);
+			try {
+				if (out != null) {
+					out.flush();
 				}
 			} catch (final IOException e) {
 				Log.e(TAG, "IOException:" + e.getMessage());
@@ -87,6 +517,101 @@ public class ImageSimpleHttpDownloader implements ImageDownloader {
 		return false;
 	}
 
+	// 条件请求图片
+	@Override
+	public int revalidate(String urlString, String etag, String lastModified,
+			OutputStream outputStream) {
+		HttpURLConnection urlConnection = null;
+		InputStream stream = null;
+		boolean reusable = false;
+		try {
+			Log.d(TAG, "刷新地址:" + urlString);
+			urlConnection = openConnection(urlString);
+			if (etag != null) {
+				urlConnection.addRequestProperty("If-None-Match", etag);
+			}
+			if (lastModified != null) {
+				urlConnection.addRequestProperty("If-Modified-Since",
+						lastModified);
+			}
+			int code = getResponseCode(urlString, urlConnection);
+			if (code != HttpURLConnection.HTTP_OK) {
+				reusable = true;
+				if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+					Log.d(TAG, "图片没有变化:" + urlString);
+					return RESULT_NOT_MODIFIED;
+				}
+				return RESULT_FAILED;
+			}
+			notifyValidators(outputStream, urlConnection);
+			stream = openResponseStream(urlConnection);
+			final long contentLength = parseLong(urlConnection
+					.getHeaderField("Content-Length"));
+			long received = copyStream(stream, outputStream);
+			if (contentLength >= 0 && received != contentLength) {
+				Log.e(TAG, "数据不完整:" + received + "/" + contentLength);
+				return RESULT_FAILED;
+			}
+			reusable = true;
+			return RESULT_MODIFIED;
+		} catch (final Exception e) {
+			Log.e(TAG, "Exception:" + e.getMessage());
+		} finally {
+			releaseConnection(urlConnection, stream, reusable);
+		}
+		return RESULT_FAILED;
+	}
+
+	// 把响应的校验值交给磁盘缓存的临时文件，和图片一起保存
+	private static void notifyValidators(OutputStream outputStream,
+			HttpURLConnection urlConnection) {
+		if (outputStream instanceof ValidatorSink) {
+			((ValidatorSink) outputStream).setValidators(
+					urlConnection.getHeaderField("ETag"),
+					urlConnection.getHeaderField("Last-Modified"));
+		}
+	}
+
+	/**
+	 * @Title: getValidator
+	 * @Description: 获取可以用于If-Range的校验值，只能用强ETag或者Last-Modified
+	 * @param @param urlConnection
+	 * @return String 没有返回null
+	 */
+	private static String getValidator(HttpURLConnection urlConnection) {
+		String etag = urlConnection.getHeaderField("ETag");
+		if (etag != null && !etag.startsWith("W/")) {
+			return etag;
+		}
+		return urlConnection.getHeaderField("Last-Modified");
+	}
+
+	// 解析响应头中的数字，没有或者解析失败返回-1
+	private static long parseLong(String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	// 解析Content-Range: bytes 100-199/200的起始位置，解析失败返回-1
+	private static long parseContentRangeStart(String contentRange) {
+		if (contentRange == null) {
+			return -1;
+		}
+		try {
+			int start = contentRange.indexOf(' ') + 1;
+			int end = contentRange.indexOf('-', start);
+			return Long.parseLong(contentRange.substring(start, end).trim());
+		} catch (RuntimeException e) {
+			return -1;
+		}
+	}
+
 	/**
 	 * @ClassName: FlushedInputStream
 	 * @Description: 重写filter为了防止android在网络比较慢的时候inputstream会中断的问题
@@ -120,27 +645,59 @@ public class ImageSimpleHttpDownloader implements ImageDownloader {
 
 	@Override
 	public byte[] downloadBytesByUrl(String urlString) {
+		return downloadBytesByUrl(urlString, null);
+	}
+
+	@Override
+	public byte[] downloadBytesByUrl(String urlString, OutputStream teeStream) {
+		ByteArrayPool.Buffer buffer = downloadPooledBytesByUrl(urlString,
+				teeStream, null);
+		return buffer != null ? buffer.data : null;
+	}
+
+	/**
+	 * @Title: downloadPooledBytesByUrl
+	 * @Description: 下载图片数据到池中借来的数组，按Content-Length分配，用完调用release还回池中
+	 * @param @param urlString
+	 * @param @param teeStream 下载的数据同时写入这个流，可以为null
+	 * @param @param pool 为null的时候返回刚好大小的新数组
+	 * @return ByteArrayPool.Buffer 失败返回null
+	 * @throws
+	 */
+	public ByteArrayPool.Buffer downloadPooledBytesByUrl(String urlString,
+			OutputStream teeStream, ByteArrayPool pool) {
+		// 预加载不对冲，在调用线程下载，受主机并发数，预加载并发数和限速的限制
+		final String[] mirrors = PriorityLifoExecutor.getCurrentPriority() != PriorityLifoExecutor.PRIORITY_PREFETCH ? getMirrors(urlString)
+				: null;
+		if (mirrors != null) {
+			return downloadHedged(urlString, mirrors, teeStream, pool);
+		}
+		return downloadPooledBytes(urlString, teeStream, pool);
+	}
+
+	// 不对冲，在调用线程下载
+	private ByteArrayPool.Buffer downloadPooledBytes(String urlString,
+			OutputStream teeStream, ByteArrayPool pool) {
 		HttpURLConnection urlConnection = null;
-		FlushedInputStream in = null;
 		InputStream stream = null;
+		boolean reusable = false;
 		try {
 			Log.d(TAG, "请求地址:" + urlString);
-			final URL url = new URL(urlString);
-			urlConnection = (HttpURLConnection) url.openConnection();
-			urlConnection.setConnectTimeout(CONN_TIMEOUT);
-			urlConnection.setReadTimeout(READ_TIMEOUT);
-			urlConnection.setDoOutput(false);
-			urlConnection.setDoInput(true);
-			urlConnection.setUseCaches(false);
-			urlConnection.addRequestProperty("User-Agent", USER_AGENT);
-			int code = urlConnection.getResponseCode();
-			if (code == HttpURLConnection.HTTP_OK) {
-				stream = urlConnection.getInputStream();
-				if (stream != null) {
-					in = new FlushedInputStream(new BufferedInputStream(stream,
-							IO_BUFFER_SIZE));
-					return ImageUtils.getBytes(in);
-				}
+			urlConnection = openConnection(urlString);
+			int code = getResponseCode(urlString, urlConnection);
+			if (code != HttpURLConnection.HTTP_OK) {
+				reusable = true;
+				return null;
+			}
+			notifyValidators(teeStream, urlConnection);
+			stream = openResponseStream(urlConnection);
+			if (stream != null) {
+				// 流由releaseConnection关闭，读到结尾以后连接才能复用
+				ByteArrayPool.Buffer buffer = ImageUtils.readPooledBytes(
+						new FlushedInputStream(stream),
+						urlConnection.getContentLength(), teeStream, pool);
+				reusable = true;
+				return buffer;
 			}
 
 		} catch (final IOException e) {
@@ -150,20 +707,326 @@ public class ImageSimpleHttpDownloader implements ImageDownloader {
 			Log.e(TAG, "Exception:" + e.getMessage());
 
 		} finally {
-			if (urlConnection != null) {
-				urlConnection.disconnect();
+			releaseConnection(urlConnection, stream, reusable);
+		}
+		return null;
+	}
+
+	/**
+	 * @Title: downloadHedged
+	 * @Description: 对冲下载。先请求主地址，超过对冲等待时间还没有收到响应头，或者收到以后数据停顿的时候请求下一个镜像，
+	 *               某个地址失败的时候马上请求下一个；先下载完的使用，其他的断开连接。
+	 *               对冲请求受镜像主机并发数限制，对冲线程用完的时候直接下载主地址
+	 * @param @param urlString 主地址
+	 * @param @param mirrors 镜像地址
+	 * @param @param teeStream 下载完成后数据写入这个流，可以为null
+	 * @param @param pool 为null的时候返回刚好大小的新数组
+	 * @return ByteArrayPool.Buffer 都失败返回null
+	 * @throws
+	 */
+	private ByteArrayPool.Buffer downloadHedged(String urlString,
+			String[] mirrors, OutputStream teeStream, ByteArrayPool pool) {
+		final String[] urls = new String[mirrors.length + 1];
+		urls[0] = urlString;
+		System.arraycopy(mirrors, 0, urls, 1, mirrors.length);
+		final HedgedDownload download = new HedgedDownload(urls, pool);
+		if (!download.startPrimary()) {
+			Log.d(TAG, "对冲线程已满，直接下载:" + urlString);
+			return downloadPooledBytes(urlString, teeStream, pool);
+		}
+		final ByteArrayPool.Buffer body = download.await(mHedgePolicy
+				.getHedgeDelay(urlString));
+		mLastResponseCode.set(download.responseCode);
+		if (body == null || teeStream == null) {
+			return body;
+		}
+		try {
+			if (teeStream instanceof ValidatorSink) {
+				((ValidatorSink) teeStream).setValidators(download.etag,
+						download.lastModified);
+			}
+			teeStream.write(body.data, 0, body.length);
+			return body;
+		} catch (IOException e) {
+			Log.e(TAG, "IOException:" + e.getMessage());
+			body.release();
+			return null;
+		}
+	}
+
+	// 占用镜像主机的一个对冲名额，已满返回false
+	private static boolean acquireHedge(String host) {
+		synchronized (sHedgesInFlight) {
+			Integer count = sHedgesInFlight.get(host);
+			int inFlight = count != null ? count : 0;
+			if (inFlight >= MAX_HEDGES_PER_HOST) {
+				return false;
 			}
+			sHedgesInFlight.put(host, inFlight + 1);
+			return true;
+		}
+	}
+
+	private static void releaseHedge(String host) {
+		synchronized (sHedgesInFlight) {
+			Integer count = sHedgesInFlight.get(host);
+			if (count == null || count <= 1) {
+				sHedgesInFlight.remove(host);
+			} else {
+				sHedgesInFlight.put(host, count - 1);
+			}
+		}
+	}
+
+	// 一次对冲下载，每个地址在对冲线程中下载，调用线程等待结果并决定什么时候请求下一个地址
+	private final class HedgedDownload {
+		private final String[] mUrls;
+		private final ByteArrayPool mPool;
+		private final HttpURLConnection[] mConnections;
+		private final String[] mHedgeHosts;// 占用了对冲名额的地址对应的主机
+		private volatile long mLastProgress;// 最后一次收到响应头或者数据的时间
+
+		// 以下字段由this保护
+		private int mStarted;// 已经开始的地址数
+		private int mFailed;// 已经失败的地址数
+		private boolean mResponded;// 是否有地址收到了2xx响应头，之后按数据停顿判断是否对冲
+		private boolean mFinished;// 是否已经结束
+		private ByteArrayPool.Buffer mBody;
+		private int mWinner = -1;// 先下载完的地址
+		int responseCode = -1;// 成功的响应码，都失败的时候是主地址的响应码
+		String etag;
+		String lastModified;
+
+		HedgedDownload(String[] urls, ByteArrayPool pool) {
+			mUrls = urls;
+			mPool = pool;
+			mConnections = new HttpURLConnection[urls.length];
+			mHedgeHosts = new String[urls.length];
+		}
+
+		// 在对冲线程中请求主地址，线程用完返回false
+		synchronized boolean startPrimary() {
+			mLastProgress = System.currentTimeMillis();
+			if (start(null)) {
+				return true;
+			}
+			mFinished = true;
+			return false;
+		}
+
+		// 等待下载结束，线程中断的时候断开所有连接
+		synchronized ByteArrayPool.Buffer await(long hedgeDelay) {
+			mHedgePolicy.onRequest();
+			// 对冲名额不够的时候过一个等待时间再试
+			long retryAt = 0;
+			boolean hedged = false;
+			while (mBody == null) {
+				final boolean allFailed = mFailed == mStarted;
+				if (allFailed && mStarted == mUrls.length) {
+					break;
+				}
+				final long now = System.currentTimeMillis();
+				final long stallAt = Math.max(retryAt, mLastProgress
+						+ (mResponded ? Math.max(hedgeDelay, MIN_BODY_STALL_MS)
+								: hedgeDelay));
+				if (mStarted < mUrls.length && (allFailed || now >= stallAt)) {
+					final String url = mUrls[mStarted];
+					String hedgeHost = null;
+					if (!allFailed) {
+						// 失败以后换镜像只是替换失败的请求，对冲是额外的请求，需要名额
+						hedgeHost = HostCircuitBreaker.hostOf(url);
+						if (hedgeHost == null || !acquireHedge(hedgeHost)) {
+							retryAt = now + hedgeDelay;
+							continue;
+						}
+					}
+					Log.d(TAG, "请求镜像地址:" + url);
+					if (!start(hedgeHost)) {
+						// 线程用完，这个地址算失败
+						mStarted++;
+						mFailed++;
+						continue;
+					}
+					if (allFailed) {
+						mHedgePolicy.onFailover();
+					} else if (!hedged) {
+						hedged = true;
+						mHedgePolicy.onHedge();
+					}
+					mLastProgress = now;
+					retryAt = 0;
+					continue;
+				}
+				try {
+					if (mStarted < mUrls.length) {
+						wait(stallAt - now);
+					} else {
+						wait();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			mFinished = true;
+			if (mWinner > 0) {
+				mHedgePolicy.onMirrorWin();
+			}
+			cancelOthers();
+			return mBody;
+		}
+
+		synchronized boolean isFinished() {
+			return mFinished;
+		}
+
+		// 在对冲线程中请求下一个地址，线程用完的时候释放对冲名额并返回false
+		private boolean start(String hedgeHost) {
+			final int index = mStarted;
+			mHedgeHosts[index] = hedgeHost;
+			try {
+				sHedgeExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						download(index);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				mHedgeHosts[index] = null;
+				if (hedgeHost != null) {
+					releaseHedge(hedgeHost);
+				}
+				return false;
+			}
+			mStarted++;
+			return true;
+		}
+
+		// 断开没有胜出的连接。正在读取数据的连接断开的时候可能要等读取返回，在对冲线程中断开，不阻塞调用线程
+		private void cancelOthers() {
+			final List<HttpURLConnection> losers = new ArrayList<HttpURLConnection>();
+			for (int i = 0; i < mConnections.length; i++) {
+				if (i != mWinner && mConnections[i] != null) {
+					losers.add(mConnections[i]);
+				}
+			}
+			if (losers.isEmpty()) {
+				return;
+			}
+			Runnable disconnect = new Runnable() {
+				@Override
+				public void run() {
+					for (HttpURLConnection connection : losers) {
+						connection.disconnect();
+					}
+				}
+			};
 			try {
-				if (in != null) {
-					in.close();
+				sHedgeExecutor.execute(disconnect);
+			} catch (RejectedExecutionException e) {
+				disconnect.run();
+			}
+		}
+
+		// 下载一个地址，在对冲线程中执行
+		private void download(int index) {
+			final String urlString = mUrls[index];
+			HttpURLConnection urlConnection = null;
+			InputStream stream = null;
+			ByteArrayPool.Buffer body = null;
+			int code = -1;
+			boolean reusable = false;
+			try {
+				urlConnection = openConnection(urlString);
+				if (!register(index, urlConnection)) {
+					return;
 				}
-				if (stream != null) {
-					stream.close();
+				code = getResponseCode(urlString, urlConnection, this);
+				if (code == HttpURLConnection.HTTP_OK) {
+					onResponded();
+					stream = urlConnection.getInputStream();
+					body = ImageUtils.readPooledBytes(new ProgressInputStream(
+							stream), urlConnection.getContentLength(), null,
+							mPool);
 				}
+				reusable = true;
 			} catch (final IOException e) {
-				Log.e(TAG, "IOException:" + e.getMessage());
+				Log.d(TAG, "对冲下载失败:" + urlString + "," + e.getMessage());
+			} catch (final Exception e) {
+				Log.e(TAG, "Exception:" + e.getMessage());
+			} finally {
+				if (!onFinished(index, body, code, urlConnection)
+						&& body != null) {
+					body.release();
+				}
+				releaseConnection(urlConnection, stream, reusable);
+				if (mHedgeHosts[index] != null) {
+					releaseHedge(mHedgeHosts[index]);
+				}
+			}
+		}
+
+		private synchronized void onResponded() {
+			mResponded = true;
+			mLastProgress = System.currentTimeMillis();
+		}
+
+		// 记录连接，已经结束的时候断开
+		private synchronized boolean register(int index,
+				HttpURLConnection urlConnection) {
+			if (mFinished) {
+				urlConnection.disconnect();
+				return false;
+			}
+			mConnections[index] = urlConnection;
+			return true;
+		}
+
+		// 一个地址结束，先成功的胜出
+		private synchronized boolean onFinished(int index,
+				ByteArrayPool.Buffer body, int code,
+				HttpURLConnection urlConnection) {
+			if (mFinished || mBody != null) {
+				return false;
+			}
+			if (body == null) {
+				mFailed++;
+				if (index == 0) {
+					responseCode = code;
+				}
+				notifyAll();
+				return false;
+			}
+			mBody = body;
+			mWinner = index;
+			responseCode = code;
+			etag = urlConnection.getHeaderField("ETag");
+			lastModified = urlConnection.getHeaderField("Last-Modified");
+			notifyAll();
+			return true;
+		}
+
+		// 读取数据的时候记录进度，用于判断数据停顿
+		private final class ProgressInputStream extends FlushedInputStream {
+
+			ProgressInputStream(InputStream inputStream) {
+				super(inputStream);
+			}
+
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				mLastProgress = System.currentTimeMillis();
+				return b;
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int count)
+					throws IOException {
+				int n = super.read(buffer, offset, count);
+				mLastProgress = System.currentTimeMillis();
+				return n;
 			}
 		}
-		return null;
 	}
 }
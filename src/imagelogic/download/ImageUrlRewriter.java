@@ -0,0 +1,21 @@
+package imagelogic.download;
+
+/**
+ * 图片地址改写接口。
+ * 显示前按imageView测量出来的大小把原图地址改写成CDN缩放后的地址，小图不用下载整张原图。
+ * 内存缓存，磁盘缓存和下载都使用改写后的地址，不同大小的图片分开缓存。
+ * 
+ */
+public interface ImageUrlRewriter {
+
+	/**
+	 * @Title: rewrite
+	 * @Description: 改写图片地址，在主线程调用
+	 * @param @param url 原图地址
+	 * @param @param width imageView测量出来的宽度
+	 * @param @param height imageView测量出来的高度
+	 * @return String 改写后的地址，返回空或者原地址不改写
+	 * @throws
+	 */
+	public String rewrite(String url, int width, int height);
+}
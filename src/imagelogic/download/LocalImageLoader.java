@@ -0,0 +1,168 @@
+package imagelogic.download;
+
+import imagelogic.utils.ImageDecoder;
+import imagelogic.utils.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+/**
+ * 本地图片加载类。
+ * file://，content://，asset://，res://地址直接从本地按显示大小解码，不经过网络下载，也不写入磁盘缓存。
+ * res://地址可以是资源ID(res://2130837504)，也可以是类型和名字(res://drawable/icon)。
+ *
+ */
+public class LocalImageLoader {
+	private static final String TAG = "LocalImageLoader";
+
+	public static final String SCHEME_FILE = "file://";// 本地文件
+	public static final String SCHEME_CONTENT = "content://";// 相册等ContentProvider
+	public static final String SCHEME_ASSET = "asset://";// assets目录
+	public static final String SCHEME_RES = "res://";// 应用资源
+
+	private final Context mContext;
+
+	public LocalImageLoader(Context context) {
+		mContext = context;
+	}
+
+	/**
+	 * @Title: isLocalUri
+	 * @Description: 是否是本地图片地址
+	 * @param @param uri
+	 * @return boolean
+	 * @throws
+	 */
+	public static boolean isLocalUri(String uri) {
+		return startsWith(uri, SCHEME_FILE) || startsWith(uri, SCHEME_CONTENT)
+				|| startsWith(uri, SCHEME_ASSET) || startsWith(uri, SCHEME_RES);
+	}
+
+	/**
+	 * @Title: loadBitmap
+	 * @Description: 解码本地图片，宽高大于0的时候按宽高压缩
+	 * @param @param uri 本地图片地址
+	 * @param @param reqWidth 需要的宽
+	 * @param @param reqHeight 需要的高
+	 * @return Bitmap 失败返回null
+	 * @throws
+	 */
+	public Bitmap loadBitmap(String uri, int reqWidth, int reqHeight) {
+		Log.d(TAG, "加载本地图片:" + uri);
+		try {
+			if (startsWith(uri, SCHEME_FILE)) {
+				return decodeFile(Uri.parse(uri).getPath(), reqWidth,
+						reqHeight);
+			} else if (startsWith(uri, SCHEME_CONTENT)) {
+				return decodeContent(uri, reqWidth, reqHeight);
+			} else if (startsWith(uri, SCHEME_ASSET)) {
+				return decodeAsset(uri.substring(SCHEME_ASSET.length()),
+						reqWidth, reqHeight);
+			} else if (startsWith(uri, SCHEME_RES)) {
+				return decodeResource(uri.substring(SCHEME_RES.length()),
+						reqWidth, reqHeight);
+			}
+		} catch (OutOfMemoryError e) {
+			e.printStackTrace();
+		} catch (Exception e) {
+			Log.e(TAG, "加载本地图片失败:" + uri + "," + e.getMessage());
+		}
+		return null;
+	}
+
+	private Bitmap decodeFile(String path, int reqWidth, int reqHeight) {
+		if (path == null) {
+			return null;
+		}
+		if (!hasSize(reqWidth, reqHeight)) {
+			return BitmapFactory.decodeFile(path);
+		}
+		return ImageDecoder.decodeSampledBitmapFromFile(path, reqWidth,
+				reqHeight);
+	}
+
+	// 相册图片通过文件描述符解码，不复制数据
+	private Bitmap decodeContent(String uri, int reqWidth, int reqHeight)
+			throws IOException {
+		ParcelFileDescriptor pfd = mContext.getContentResolver()
+				.openFileDescriptor(Uri.parse(uri), "r");
+		if (pfd == null) {
+			return null;
+		}
+		try {
+			if (!hasSize(reqWidth, reqHeight)) {
+				return BitmapFactory.decodeFileDescriptor(
+						pfd.getFileDescriptor(), null, null);
+			}
+			return ImageDecoder.decodeSampledBitmapFromDescriptor(
+					pfd.getFileDescriptor(), reqWidth, reqHeight);
+		} finally {
+			pfd.close();
+		}
+	}
+
+	// assets中的文件可能是压缩存放的，没有独立的文件描述符，先读图片大小再重新打开解码
+	private Bitmap decodeAsset(String name, int reqWidth, int reqHeight)
+			throws IOException {
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		if (hasSize(reqWidth, reqHeight)) {
+			options.inJustDecodeBounds = true;
+			decodeAssetStream(name, options);
+			options.inSampleSize = ImageDecoder.calculateInSampleSize(
+					options.outWidth, options.outHeight, reqWidth, reqHeight);
+			options.inJustDecodeBounds = false;
+		}
+		return decodeAssetStream(name, options);
+	}
+
+	private Bitmap decodeAssetStream(String name, BitmapFactory.Options options)
+			throws IOException {
+		InputStream in = mContext.getAssets().open(name);
+		try {
+			return BitmapFactory.decodeStream(in, null, options);
+		} finally {
+			in.close();
+		}
+	}
+
+	// res://资源ID或者res://类型/名字
+	private Bitmap decodeResource(String path, int reqWidth, int reqHeight) {
+		int resId = 0;
+		final int slash = path.indexOf('/');
+		if (slash < 0) {
+			try {
+				resId = Integer.parseInt(path);
+			} catch (NumberFormatException e) {
+				Log.e(TAG, "资源ID错误:" + path);
+			}
+		} else {
+			resId = mContext.getResources().getIdentifier(
+					path.substring(slash + 1), path.substring(0, slash),
+					mContext.getPackageName());
+		}
+		if (resId == 0) {
+			return null;
+		}
+		if (!hasSize(reqWidth, reqHeight)) {
+			return BitmapFactory.decodeResource(mContext.getResources(), resId);
+		}
+		return ImageDecoder.decodeSampledBitmapFromResource(
+				mContext.getResources(), resId, reqWidth, reqHeight);
+	}
+
+	// 宽高都大于0的时候才压缩
+	private static boolean hasSize(int reqWidth, int reqHeight) {
+		return reqWidth > 0 && reqHeight > 0;
+	}
+
+	private static boolean startsWith(String uri, String scheme) {
+		return uri != null
+				&& uri.regionMatches(true, 0, scheme, 0, scheme.length());
+	}
+}
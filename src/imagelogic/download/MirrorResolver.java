@@ -0,0 +1,18 @@
+package imagelogic.download;
+
+/**
+ * 镜像地址接口。
+ * 同一张图片在多个CDN上都有的时候返回其他CDN的地址，主地址迟迟没有响应时对冲请求镜像地址，先下载完的使用。
+ * 
+ */
+public interface MirrorResolver {
+
+	/**
+	 * @Title: getMirrors
+	 * @Description: 获取图片的镜像地址，在下载线程调用
+	 * @param @param url 主地址
+	 * @return String[] 镜像地址，按尝试顺序排列，没有返回null
+	 * @throws
+	 */
+	public String[] getMirrors(String url);
+}
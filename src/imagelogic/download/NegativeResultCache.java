@@ -0,0 +1,248 @@
+package imagelogic.download;
+
+import imagelogic.utils.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 加载失败的图片地址缓存。
+ * 404，不能解码的数据等失败的地址在一段时间内不再请求，直接显示失败图片；有效期按失败原因区分，
+ * 连接失败和超时由HostCircuitBreaker处理，不在这里缓存。
+ * 只保存最近的maxEntries个地址，可以同时保存到文件，重启以后继续有效。
+ * 
+ */
+public class NegativeResultCache {
+	private static final String TAG = "NegativeResultCache";
+
+	/** 数据不能解码为图片 */
+	public static final int STATUS_UNDECODABLE = -2;
+
+	public static final int DEFAULT_MAX_ENTRIES = 256;
+
+	private static final long TTL_NOT_FOUND = 60 * 60 * 1000L;// 404，410
+	private static final long TTL_UNDECODABLE = 60 * 60 * 1000L;// 不能解码
+	private static final long TTL_CLIENT_ERROR = 10 * 60 * 1000L;// 其他4xx
+	private static final long TTL_SERVER_ERROR = 60 * 1000L;// 5xx
+
+	private static final int FILE_MAGIC = 0x4e454731;
+
+	private final Map<String, Long> mEntries;// 地址和过期时间
+
+	private final File mFile;// 保存的文件，为空只在内存中
+
+	private boolean mLoaded;// 是否已经读取文件
+
+	/**
+	 * Description:构造方法
+	 * 
+	 * @param maxEntries
+	 *            最多保存的地址个数
+	 * @param file
+	 *            保存的文件，为空只在内存中
+	 */
+	public NegativeResultCache(final int maxEntries, File file) {
+		mEntries = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+				return size() > maxEntries;
+			}
+		};
+		mFile = file;
+		mLoaded = file == null;
+	}
+
+	/**
+	 * @Title: getTtl
+	 * @Description: 按失败原因计算有效期
+	 * @param @param status HTTP响应码或者STATUS_UNDECODABLE
+	 * @return long 毫秒，0不缓存
+	 * @throws
+	 */
+	public static long getTtl(int status) {
+		if (status == STATUS_UNDECODABLE) {
+			return TTL_UNDECODABLE;
+		}
+		if (status == 404 || status == 410) {
+			return TTL_NOT_FOUND;
+		}
+		if (status >= 400 && status < 500 && status != 408 && status != 429) {
+			// 408超时，429限流，过一会就可能成功
+			return TTL_CLIENT_ERROR;
+		}
+		if (status >= 500 && status < 600) {
+			return TTL_SERVER_ERROR;
+		}
+		return 0;
+	}
+
+	/**
+	 * @Title: isFailed
+	 * @Description: 地址最近是否加载失败，只查内存，可以在主线程调用
+	 * @param @param url
+	 * @return boolean
+	 * @throws
+	 */
+	public synchronized boolean isFailed(String url) {
+		Long expires = mEntries.get(url);
+		if (expires == null) {
+			return false;
+		}
+		if (expires < System.currentTimeMillis()) {
+			mEntries.remove(url);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @Title: put
+	 * @Description: 记录失败的地址，有文件的时候同时保存，在后台线程调用
+	 * @param @param url
+	 * @param @param status HTTP响应码或者STATUS_UNDECODABLE
+	 * @return void
+	 * @throws
+	 */
+	public void put(String url, int status) {
+		long ttl = getTtl(status);
+		if (url == null || ttl <= 0) {
+			return;
+		}
+		load();
+		synchronized (this) {
+			mEntries.put(url, System.currentTimeMillis() + ttl);
+		}
+		Log.d(TAG, "记录失败地址:" + url + " status:" + status);
+		save();
+	}
+
+	// 地址加载成功，删除记录
+	public void remove(String url) {
+		boolean removed;
+		synchronized (this) {
+			removed = mEntries.remove(url) != null;
+		}
+		if (removed) {
+			save();
+		}
+	}
+
+	// 清空所有记录
+	public void clear() {
+		synchronized (this) {
+			mEntries.clear();
+		}
+		save();
+	}
+
+	/**
+	 * @Title: load
+	 * @Description: 读取保存的记录，只读取一次，在后台线程调用
+	 * @return void
+	 * @throws
+	 */
+	public void load() {
+		synchronized (this) {
+			if (mLoaded) {
+				return;
+			}
+			mLoaded = true;
+		}
+		if (!mFile.exists()) {
+			return;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(mFile)));
+			if (in.readInt() != FILE_MAGIC) {
+				return;
+			}
+			int count = in.readInt();
+			long now = System.currentTimeMillis();
+			synchronized (this) {
+				for (int i = 0; i < count; i++) {
+					String url = in.readUTF();
+					long expires = in.readLong();
+					// 内存中已经有的记录更新
+					if (expires > now && !mEntries.containsKey(url)) {
+						mEntries.put(url, expires);
+					}
+				}
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "读取失败地址出错:" + e.getMessage());
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	// 保存到文件，先写临时文件再改名
+	private void save() {
+		if (mFile == null) {
+			return;
+		}
+		List<String> urls = new ArrayList<String>();
+		List<Long> expires = new ArrayList<Long>();
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			for (Iterator<Map.Entry<String, Long>> it = mEntries.entrySet()
+					.iterator(); it.hasNext();) {
+				Map.Entry<String, Long> entry = it.next();
+				if (entry.getValue() < now) {
+					it.remove();
+				} else {
+					urls.add(entry.getKey());
+					expires.add(entry.getValue());
+				}
+			}
+		}
+		synchronized (mFile) {
+			File tmp = new File(mFile.getPath() + ".tmp");
+			DataOutputStream out = null;
+			try {
+				out = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(tmp)));
+				out.writeInt(FILE_MAGIC);
+				out.writeInt(urls.size());
+				for (int i = 0; i < urls.size(); i++) {
+					out.writeUTF(urls.get(i));
+					out.writeLong(expires.get(i));
+				}
+				out.close();
+				out = null;
+				if (!tmp.renameTo(mFile)) {
+					throw new IOException("rename failed");
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "保存失败地址出错:" + e.getMessage());
+				tmp.delete();
+			} finally {
+				if (out != null) {
+					try {
+						out.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}
+	}
+}
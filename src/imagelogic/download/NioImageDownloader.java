@@ -0,0 +1,746 @@
+package imagelogic.download;
+
+import imagelogic.disk.ValidatorSink;
+import imagelogic.utils.ByteArrayPool;
+import imagelogic.utils.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于非阻塞SocketChannel的图片下载类。
+ * 所有连接的建立，发送和接收都在一个selector线程中完成，一个线程可以同时下载几十张图片；
+ * 接收完成的数据交给解码线程池(异步接口enqueue)，或者唤醒等待的下载线程(ImageDownloader的同步接口)。
+ * 只实现了HTTP/1.1 GET的最小子集：Content-Length，chunked和关闭连接结束的响应，重定向，每个请求一个连接；
+ * https等其他协议交给ImageSimpleHttpDownloader下载。
+ * 使用同步接口的时候可以用ImageLogic.configNetThreads调大下载线程数，等待中的线程不做网络读取。
+ *
+ */
+public class NioImageDownloader implements ImageDownloader {
+	private static final String TAG = "NioImageDownloader";
+	private static final String USER_AGENT = "Mozilla/5.0 (X11; U; Linux i686; zh-CN; rv:1.9.1.2) Gecko/20090803 Fedora/3.5.2-2.fc11 Firefox/3.5.2";
+
+	public static final int DEFAULT_MAX_CONNECTIONS = 32;// 默认同时打开的连接数
+
+	private static final int CONN_TIMEOUT = 15 * 1000; // 网络连接超时时间
+	private static final int READ_TIMEOUT = 10 * 1000; // 网络读取超时时间
+	private static final int SELECT_TIMEOUT = 1000; // 检查超时的间隔
+	private static final int MAX_REDIRECTS = 5; // 最多重定向次数
+	private static final int MAX_HEADER_SIZE = 32 * 1024; // 响应头最大长度
+	private static final int READ_BUFFER_SIZE = 32 * 1024; // selector线程的读缓冲区
+	private static final int DEFAULT_BODY_SIZE = 16 * 1024; // 没有Content-Length时的初始大小
+
+	// 响应的解析状态
+	private static final int STATE_HEADERS = 0;// 响应头
+	private static final int STATE_BODY = 1;// Content-Length或者关闭连接结束的数据
+	private static final int STATE_CHUNK_SIZE = 2;// chunk长度行
+	private static final int STATE_CHUNK_DATA = 3;// chunk数据
+	private static final int STATE_CHUNK_END = 4;// chunk数据后的换行
+	private static final int STATE_TRAILER = 5;// 最后一个chunk后的trailer
+
+	/**
+	 * 异步下载的回调，在解码线程池中执行
+	 */
+	public interface Callback {
+
+		// 下载成功，body用完调用release还回池中
+		void onComplete(String url, ByteArrayPool.Buffer body);
+
+		// 下载失败，没有收到响应(连接失败，超时)的时候responseCode为-1
+		void onFailure(String url, int responseCode);
+	}
+
+	private final int mMaxConnections;// 同时打开的连接数
+	private final ByteArrayPool mPool = ByteArrayPool.getDefault();
+	private final ImageDownloader mFallback;// 下载https等其他协议
+	private volatile Executor mCallbackExecutor;// 异步回调的线程池
+
+	// 等待selector线程开始的请求
+	private final ConcurrentLinkedQueue<Request> mPending = new ConcurrentLinkedQueue<Request>();
+
+	// 以下字段只在selector线程访问
+	private final LinkedList<Request> mWaiting = new LinkedList<Request>();// 连接数已满，排队的请求
+	private final List<Connection> mConnections = new ArrayList<Connection>();// 打开的连接
+	private final ByteBuffer mReadBuffer = ByteBuffer
+			.allocate(READ_BUFFER_SIZE);
+
+	private Selector mSelector;// 由this保护
+	private Thread mSelectorThread;// 由this保护
+
+	public NioImageDownloader() {
+		this(DEFAULT_MAX_CONNECTIONS);
+	}
+
+	public NioImageDownloader(int maxConnections) {
+		mMaxConnections = Math.max(1, maxConnections);
+		mFallback = new ImageSimpleHttpDownloader();
+	}
+
+	/**
+	 * @Title: setCallbackExecutor
+	 * @Description: 设置异步回调(解码)的线程池，默认两个线程
+	 * @param @param executor
+	 * @return void
+	 * @throws
+	 */
+	public void setCallbackExecutor(Executor executor) {
+		mCallbackExecutor = executor;
+	}
+
+	/**
+	 * @Title: enqueue
+	 * @Description: 异步下载，不占用调用线程。域名解析和回调都在回调线程池中执行
+	 * @param @param urlString 图片地址
+	 * @param @param callback 在回调线程池中执行
+	 * @return void
+	 * @throws
+	 */
+	public void enqueue(String urlString, Callback callback) {
+		final Request request = new Request(urlString, callback);
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				submit(request);
+			}
+		});
+	}
+
+	@Override
+	public boolean downloadToLocalStreamByUrl(String urlString,
+			OutputStream outputStream) {
+		ByteArrayPool.Buffer body = downloadPooledBytesByUrl(urlString,
+				outputStream);
+		if (body == null) {
+			return false;
+		}
+		body.release();
+		return true;
+	}
+
+	@Override
+	public byte[] downloadBytesByUrl(String urlString) {
+		return downloadBytesByUrl(urlString, null);
+	}
+
+	@Override
+	public byte[] downloadBytesByUrl(String urlString, OutputStream teeStream) {
+		ByteArrayPool.Buffer body = downloadPooledBytesByUrl(urlString,
+				teeStream);
+		if (body == null) {
+			return null;
+		}
+		byte[] bytes = new byte[body.length];
+		System.arraycopy(body.data, 0, bytes, 0, body.length);
+		body.release();
+		return bytes;
+	}
+
+	/**
+	 * @Title: downloadPooledBytesByUrl
+	 * @Description: 同步下载到池中借来的数组，等待期间调用线程不做网络读取，用完调用release还回池中
+	 * @param @param urlString 图片地址
+	 * @param @param teeStream 下载完成后数据写入这个流，可以为null，不会关闭
+	 * @return ByteArrayPool.Buffer 失败返回null
+	 * @throws
+	 */
+	public ByteArrayPool.Buffer downloadPooledBytesByUrl(String urlString,
+			OutputStream teeStream) {
+		Log.d(TAG, "请求地址:" + urlString);
+		final Request request = new Request(urlString, null);
+		submit(request);
+		final ByteArrayPool.Buffer body = request.await();
+		if (body == null) {
+			return null;
+		}
+		if (teeStream != null) {
+			try {
+				if (teeStream instanceof ValidatorSink) {
+					((ValidatorSink) teeStream).setValidators(request.etag,
+							request.lastModified);
+				}
+				teeStream.write(body.data, 0, body.length);
+			} catch (IOException e) {
+				Log.e(TAG, "IOException:" + e.getMessage());
+				body.release();
+				return null;
+			}
+		}
+		return body;
+	}
+
+	// 解析地址和域名，交给selector线程；不是http的地址在当前线程用ImageSimpleHttpDownloader下载
+	private void submit(Request request) {
+		final URL url;
+		try {
+			url = new URL(request.url);
+		} catch (MalformedURLException e) {
+			Log.e(TAG, "地址错误:" + request.url);
+			deliver(request, null, -1);
+			return;
+		}
+		if (!"http".equalsIgnoreCase(url.getProtocol())) {
+			byte[] bytes = mFallback.downloadBytesByUrl(request.url);
+			deliver(request, bytes != null ? new ByteArrayPool.Buffer(null,
+					bytes, bytes.length) : null, bytes != null ? 200 : -1);
+			return;
+		}
+		final int port = url.getPort() > 0 ? url.getPort() : 80;
+		request.address = new InetSocketAddress(url.getHost(), port);
+		if (request.address.isUnresolved()) {
+			Log.e(TAG, "域名解析失败:" + url.getHost());
+			deliver(request, null, -1);
+			return;
+		}
+		request.requestBytes = buildRequest(url, port);
+		try {
+			ensureSelector();
+		} catch (IOException e) {
+			Log.e(TAG, "IOException:" + e.getMessage());
+			deliver(request, null, -1);
+			return;
+		}
+		mPending.add(request);
+		mSelector.wakeup();
+	}
+
+	private static byte[] buildRequest(URL url, int port) {
+		String path = url.getFile();
+		if (path == null || path.length() == 0) {
+			path = "/";
+		}
+		StringBuilder sb = new StringBuilder(256);
+		sb.append("GET ").append(path).append(" HTTP/1.1\r\n");
+		sb.append("Host: ").append(url.getHost());
+		if (port != 80) {
+			sb.append(':').append(port);
+		}
+		sb.append("\r\n");
+		sb.append("User-Agent: ").append(USER_AGENT).append("\r\n");
+		sb.append("Accept: */*\r\n");
+		sb.append("Accept-Encoding: identity\r\n");
+		sb.append("Connection: close\r\n\r\n");
+		try {
+			return sb.toString().getBytes("ISO-8859-1");
+		} catch (java.io.UnsupportedEncodingException e) {
+			return sb.toString().getBytes();
+		}
+	}
+
+	// 第一次请求的时候启动selector线程
+	private synchronized void ensureSelector() throws IOException {
+		if (mSelectorThread != null) {
+			return;
+		}
+		mSelector = Selector.open();
+		mSelectorThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runSelector();
+			}
+		}, "ImageLogic NIO");
+		mSelectorThread.setDaemon(true);
+		mSelectorThread.setPriority(Thread.NORM_PRIORITY - 1);
+		mSelectorThread.start();
+	}
+
+	// selector线程，一直运行
+	private void runSelector() {
+		while (true) {
+			try {
+				mSelector.select(SELECT_TIMEOUT);
+			} catch (IOException e) {
+				Log.e(TAG, "select失败:" + e.getMessage());
+			}
+			try {
+				startPending();
+				Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					Connection connection = (Connection) key.attachment();
+					try {
+						connection.onReady(key);
+					} catch (IOException e) {
+						Log.e(TAG, "IOException:" + e.getMessage());
+						connection.fail(connection.responseCode);
+					}
+				}
+				checkTimeouts();
+			} catch (RuntimeException e) {
+				Log.e(TAG, "selector线程异常:" + e.getMessage());
+			}
+		}
+	}
+
+	// 连接数没有满的时候开始排队的请求
+	private void startPending() {
+		Request request;
+		while ((request = mPending.poll()) != null) {
+			mWaiting.add(request);
+		}
+		while (!mWaiting.isEmpty() && mConnections.size() < mMaxConnections) {
+			request = mWaiting.removeFirst();
+			SocketChannel channel = null;
+			try {
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				Connection connection = new Connection(request, channel);
+				int ops = SelectionKey.OP_CONNECT;
+				if (channel.connect(request.address)) {
+					ops = SelectionKey.OP_WRITE;
+				}
+				connection.key = channel.register(mSelector, ops, connection);
+				mConnections.add(connection);
+			} catch (IOException e) {
+				Log.e(TAG, "连接失败:" + request.url + "," + e.getMessage());
+				closeQuietly(channel);
+				deliver(request, null, -1);
+			}
+		}
+	}
+
+	// 连接或者读取超时的连接直接失败
+	private void checkTimeouts() {
+		final long now = System.currentTimeMillis();
+		for (int i = mConnections.size() - 1; i >= 0; i--) {
+			Connection connection = mConnections.get(i);
+			if (now > connection.deadline) {
+				Log.e(TAG, "超时:" + connection.request.url);
+				connection.fail(connection.responseCode);
+			}
+		}
+	}
+
+	// 回调或者唤醒等待的线程
+	private void deliver(final Request request,
+			final ByteArrayPool.Buffer body, final int responseCode) {
+		request.responseCode = responseCode;
+		final Callback callback = request.callback;
+		if (callback == null) {
+			request.complete(body);
+			return;
+		}
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				if (body != null) {
+					callback.onComplete(request.url, body);
+				} else {
+					callback.onFailure(request.url, responseCode);
+				}
+			}
+		});
+	}
+
+	// 在回调线程池中执行，线程池拒绝的时候在当前线程执行
+	private void execute(Runnable runnable) {
+		try {
+			getCallbackExecutor().execute(runnable);
+		} catch (RejectedExecutionException e) {
+			runnable.run();
+		}
+	}
+
+	private synchronized Executor getCallbackExecutor() {
+		if (mCallbackExecutor == null) {
+			mCallbackExecutor = new ThreadPoolExecutor(2, 2, 1,
+					TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+					new ThreadFactory() {
+						private final AtomicInteger mCount = new AtomicInteger(
+								1);
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "ImageLogic decode #"
+									+ mCount.getAndIncrement());
+							thread.setPriority(Thread.NORM_PRIORITY - 1);
+							return thread;
+						}
+					});
+		}
+		return mCallbackExecutor;
+	}
+
+	private static void closeQuietly(SocketChannel channel) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// 忽略
+			}
+		}
+	}
+
+	// 一个下载请求，重定向的时候修改url重新提交
+	private static final class Request {
+		String url;
+		final Callback callback;// 为null的时候是同步请求
+		InetSocketAddress address;
+		byte[] requestBytes;
+		int redirects;
+		int responseCode = -1;
+		String etag;
+		String lastModified;
+		private ByteArrayPool.Buffer mBody;
+		private boolean mDone;
+		private boolean mAbandoned;
+
+		Request(String url, Callback callback) {
+			this.url = url;
+			this.callback = callback;
+		}
+
+		// 同步请求结束
+		synchronized void complete(ByteArrayPool.Buffer body) {
+			if (mAbandoned) {
+				// 等待的线程已经中断
+				if (body != null) {
+					body.release();
+				}
+				return;
+			}
+			mBody = body;
+			mDone = true;
+			notifyAll();
+		}
+
+		// 等待同步请求结束，线程中断的时候返回null
+		synchronized ByteArrayPool.Buffer await() {
+			while (!mDone) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					mAbandoned = true;
+					Thread.currentThread().interrupt();
+					return null;
+				}
+			}
+			return mBody;
+		}
+	}
+
+	// 一个连接，只在selector线程访问
+	private final class Connection {
+		final Request request;
+		final SocketChannel channel;
+		SelectionKey key;
+		long deadline;// 超时时间，收到数据的时候延长
+		ByteBuffer requestBuffer;
+		int state = STATE_HEADERS;
+		int responseCode = -1;
+
+		byte[] header = new byte[1024];// 响应头或者chunk长度行
+		int headerLength;
+
+		ByteArrayPool.Buffer result;
+		byte[] body;
+		int bodyLength;
+		long contentLength = -1;
+		boolean chunked;
+		long chunkRemaining;
+		String location;
+
+		Connection(Request request, SocketChannel channel) {
+			this.request = request;
+			this.channel = channel;
+			this.requestBuffer = ByteBuffer.wrap(request.requestBytes);
+			this.deadline = System.currentTimeMillis() + CONN_TIMEOUT;
+		}
+
+		void onReady(SelectionKey key) throws IOException {
+			if (!key.isValid()) {
+				return;
+			}
+			if (key.isConnectable()) {
+				if (!channel.finishConnect()) {
+					return;
+				}
+				deadline = System.currentTimeMillis() + READ_TIMEOUT;
+				key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+			if (key.isWritable()) {
+				channel.write(requestBuffer);
+				if (!requestBuffer.hasRemaining()) {
+					key.interestOps(SelectionKey.OP_READ);
+				}
+				return;
+			}
+			if (key.isReadable()) {
+				final ByteBuffer buffer = mReadBuffer;
+				buffer.clear();
+				int n = channel.read(buffer);
+				if (n < 0) {
+					onEof();
+				} else if (n > 0) {
+					deadline = System.currentTimeMillis() + READ_TIMEOUT;
+					onData(buffer.array(), 0, n);
+				}
+			}
+		}
+
+		// 解析收到的数据，响应结束的时候回调
+		private void onData(byte[] data, int offset, int length)
+				throws IOException {
+			int end = offset + length;
+			while (offset < end && key.isValid()) {
+				switch (state) {
+				case STATE_HEADERS:
+					offset = readHeaders(data, offset, end);
+					break;
+				case STATE_BODY: {
+					int n = end - offset;
+					if (contentLength >= 0) {
+						n = (int) Math.min(n, contentLength - bodyLength);
+					}
+					appendBody(data, offset, n);
+					offset += n;
+					if (bodyLength == contentLength) {
+						succeed();
+					}
+					break;
+				}
+				case STATE_CHUNK_SIZE:
+				case STATE_CHUNK_END:
+				case STATE_TRAILER:
+					offset = readChunkLine(data, offset, end);
+					break;
+				case STATE_CHUNK_DATA: {
+					int n = (int) Math.min(end - offset, chunkRemaining);
+					appendBody(data, offset, n);
+					offset += n;
+					chunkRemaining -= n;
+					if (chunkRemaining == 0) {
+						state = STATE_CHUNK_END;
+					}
+					break;
+				}
+				}
+			}
+		}
+
+		// 读到空行为止，返回响应头后面数据的位置
+		private int readHeaders(byte[] data, int offset, int end)
+				throws IOException {
+			while (offset < end) {
+				appendHeader(data[offset++]);
+				if (headerLength >= 4 && header[headerLength - 1] == '\n'
+						&& header[headerLength - 2] == '\r'
+						&& header[headerLength - 3] == '\n'
+						&& header[headerLength - 4] == '\r') {
+					parseHeaders(new String(header, 0, headerLength,
+							"ISO-8859-1"));
+					headerLength = 0;
+					return offset;
+				}
+			}
+			return offset;
+		}
+
+		private void parseHeaders(String headers) throws IOException {
+			String[] lines = headers.split("\r\n");
+			String[] status = lines[0].split(" ");
+			if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+				throw new IOException("响应错误:" + lines[0]);
+			}
+			try {
+				responseCode = Integer.parseInt(status[1]);
+			} catch (NumberFormatException e) {
+				throw new IOException("响应错误:" + lines[0]);
+			}
+			for (int i = 1; i < lines.length; i++) {
+				int colon = lines[i].indexOf(':');
+				if (colon <= 0) {
+					continue;
+				}
+				String name = lines[i].substring(0, colon).trim()
+						.toLowerCase(Locale.US);
+				String value = lines[i].substring(colon + 1).trim();
+				if ("content-length".equals(name)) {
+					try {
+						contentLength = Long.parseLong(value);
+					} catch (NumberFormatException e) {
+						throw new IOException("Content-Length错误:" + value);
+					}
+				} else if ("transfer-encoding".equals(name)) {
+					chunked = value.toLowerCase(Locale.US).contains("chunked");
+				} else if ("location".equals(name)) {
+					location = value;
+				} else if ("etag".equals(name)) {
+					request.etag = value;
+				} else if ("last-modified".equals(name)) {
+					request.lastModified = value;
+				}
+			}
+			if (responseCode >= 100 && responseCode < 200) {
+				// 100 Continue等中间响应，继续读下一个响应头
+				contentLength = -1;
+				chunked = false;
+				return;
+			}
+			if (isRedirect(responseCode) && location != null) {
+				redirect();
+				return;
+			}
+			if (responseCode != 200) {
+				Log.e(TAG, "响应码:" + responseCode + "," + request.url);
+				fail(responseCode);
+				return;
+			}
+			if (chunked) {
+				contentLength = -1;
+				state = STATE_CHUNK_SIZE;
+			} else {
+				state = STATE_BODY;
+			}
+			if (contentLength > Integer.MAX_VALUE - 8) {
+				throw new IOException("图片太大:" + contentLength);
+			}
+			body = mPool.getBuf(contentLength > 0 ? (int) contentLength
+					: DEFAULT_BODY_SIZE);
+			if (contentLength == 0) {
+				succeed();
+			}
+		}
+
+		// chunk长度行，chunk数据后的换行，trailer都按行读取
+		private int readChunkLine(byte[] data, int offset, int end)
+				throws IOException {
+			while (offset < end) {
+				appendHeader(data[offset++]);
+				if (header[headerLength - 1] != '\n') {
+					continue;
+				}
+				String line = new String(header, 0, headerLength, "ISO-8859-1")
+						.trim();
+				headerLength = 0;
+				if (state == STATE_CHUNK_END) {
+					state = STATE_CHUNK_SIZE;
+				} else if (state == STATE_TRAILER) {
+					if (line.length() == 0) {
+						succeed();
+					}
+				} else {
+					int semicolon = line.indexOf(';');
+					if (semicolon >= 0) {
+						line = line.substring(0, semicolon).trim();
+					}
+					try {
+						chunkRemaining = Long.parseLong(line, 16);
+					} catch (NumberFormatException e) {
+						throw new IOException("chunk长度错误:" + line);
+					}
+					state = chunkRemaining == 0 ? STATE_TRAILER
+							: STATE_CHUNK_DATA;
+				}
+				return offset;
+			}
+			return offset;
+		}
+
+		private void appendHeader(byte b) throws IOException {
+			if (headerLength == header.length) {
+				if (header.length >= MAX_HEADER_SIZE) {
+					throw new IOException("响应头太长");
+				}
+				byte[] grown = new byte[header.length * 2];
+				System.arraycopy(header, 0, grown, 0, headerLength);
+				header = grown;
+			}
+			header[headerLength++] = b;
+		}
+
+		// 数据写入池中借来的数组，不够的时候换一个两倍大的数组
+		private void appendBody(byte[] data, int offset, int length) {
+			if (bodyLength + length > body.length) {
+				byte[] grown = mPool.getBuf(Math.max(body.length * 2,
+						bodyLength + length));
+				System.arraycopy(body, 0, grown, 0, bodyLength);
+				mPool.returnBuf(body);
+				body = grown;
+			}
+			System.arraycopy(data, offset, body, bodyLength, length);
+			bodyLength += length;
+		}
+
+		// 服务端关闭连接，没有长度的响应到这里结束
+		private void onEof() throws IOException {
+			if (state == STATE_BODY && contentLength < 0) {
+				succeed();
+				return;
+			}
+			throw new IOException("数据不完整:" + bodyLength + "/"
+					+ contentLength);
+		}
+
+		private void succeed() {
+			close();
+			final ByteArrayPool.Buffer result = new ByteArrayPool.Buffer(
+					mPool, body, bodyLength);
+			body = null;
+			deliver(request, result, responseCode);
+		}
+
+		void fail(int code) {
+			close();
+			if (body != null) {
+				mPool.returnBuf(body);
+				body = null;
+			}
+			deliver(request, null, code);
+		}
+
+		// 重定向到新的地址，在回调线程池中解析域名后重新提交
+		private void redirect() throws IOException {
+			close();
+			if (++request.redirects > MAX_REDIRECTS) {
+				Log.e(TAG, "重定向次数太多:" + request.url);
+				deliver(request, null, responseCode);
+				return;
+			}
+			request.url = new URL(new URL(request.url), location).toString();
+			request.etag = null;
+			request.lastModified = null;
+			Log.d(TAG, "重定向:" + request.url);
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					submit(request);
+				}
+			});
+		}
+
+		private void close() {
+			if (key != null) {
+				key.cancel();
+			}
+			closeQuietly(channel);
+			mConnections.remove(this);
+		}
+	}
+
+	private static boolean isRedirect(int code) {
+		return code == 301 || code == 302 || code == 303 || code == 307
+				|| code == 308;
+	}
+}
@@ -0,0 +1,269 @@
+package imagelogic.download;
+
+import imagelogic.disk.ValidatorSink;
+import imagelogic.utils.ImageDecoder;
+import imagelogic.utils.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * 渐进式JPEG边下载边预览。
+ * 下载的数据原样写入目标输出流(可以为空)，同时解析JPEG的段结构，每下载完一遍扫描解码一张低分辨率的预览图。
+ * 不是渐进式JPEG的图片在第一遍扫描开始时就停止解析并释放缓冲区。
+ * 响应的校验值转交给目标输出流，磁盘缓存的临时文件被包装以后也能保存ETag和Last-Modified。
+ * 
+ */
+public class ProgressiveJpegOutputStream extends OutputStream implements
+		ValidatorSink {
+	private static final String TAG = "ProgressiveJpegOutputStream";
+
+	// 两次预览的最小间隔
+	private static final long MIN_PREVIEW_INTERVAL_MS = 300;
+
+	/**
+	 * 预览回调，在下载线程调用
+	 */
+	public interface PreviewListener {
+		void onPreview(Bitmap preview);
+	}
+
+	// 解析状态
+	private static final int STATE_SOI_FF = 0;
+	private static final int STATE_SOI_D8 = 1;
+	private static final int STATE_MARKER = 2;
+	private static final int STATE_CODE = 3;
+	private static final int STATE_LENGTH_HIGH = 4;
+	private static final int STATE_LENGTH_LOW = 5;
+	private static final int STATE_SEGMENT = 6;
+	private static final int STATE_ENTROPY = 7;
+	private static final int STATE_ENTROPY_FF = 8;
+	private static final int STATE_DONE = 9;
+
+	private final OutputStream mOut;// 目标输出流
+	private final int mReqWidth, mReqHeight;// 显示大小
+	private final PreviewListener mListener;
+
+	private byte[] mBuf = new byte[16 * 1024];// 已经下载的数据，停止解析后为空
+	private int mCount;
+
+	private int mState = STATE_SOI_FF;
+	private int mMarker;// 当前段的标记
+	private int mSegmentStart;// 当前段数据在缓冲区中的位置
+	private int mSegmentRemaining;// 当前段还没有读到的长度
+	private int mWidth, mHeight;// 图片原始宽高
+	private boolean mProgressive;
+	private int mCompletedScans;// 已经下载完的扫描数
+	private int mPreviewedScans;// 已经预览的扫描数
+	private long mLastPreviewTime;
+
+	public ProgressiveJpegOutputStream(OutputStream out, int reqWidth,
+			int reqHeight, PreviewListener listener) {
+		mOut = out;
+		mReqWidth = reqWidth;
+		mReqHeight = reqHeight;
+		mListener = listener;
+	}
+
+	@Override
+	public void write(int oneByte) throws IOException {
+		write(new byte[] { (byte) oneByte }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] buffer, int offset, int count) throws IOException {
+		if (mOut != null) {
+			mOut.write(buffer, offset, count);
+		}
+		if (mBuf == null || count <= 0) {
+			return;
+		}
+		ensureCapacity(mCount + count);
+		System.arraycopy(buffer, offset, mBuf, mCount, count);
+		int end = mCount + count;
+		for (int i = mCount; i < end && mBuf != null; i++) {
+			parse(i, mBuf[i] & 0xff);
+		}
+		if (mBuf == null) {
+			return;
+		}
+		mCount = end;
+		maybePreview();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (mOut != null) {
+			mOut.flush();
+		}
+	}
+
+	@Override
+	public void setValidators(String etag, String lastModified) {
+		if (mOut instanceof ValidatorSink) {
+			((ValidatorSink) mOut).setValidators(etag, lastModified);
+		}
+	}
+
+	// 不关闭目标输出流，只释放缓冲区
+	@Override
+	public void close() throws IOException {
+		mBuf = null;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > mBuf.length) {
+			byte[] buf = new byte[Math.max(capacity, mBuf.length * 2)];
+			System.arraycopy(mBuf, 0, buf, 0, mCount);
+			mBuf = buf;
+		}
+	}
+
+	// 解析一个字节
+	private void parse(int pos, int b) {
+		switch (mState) {
+		case STATE_SOI_FF:
+			expect(b == 0xff, STATE_SOI_D8);
+			break;
+		case STATE_SOI_D8:
+			expect(b == 0xd8, STATE_MARKER);
+			break;
+		case STATE_MARKER:
+			expect(b == 0xff, STATE_CODE);
+			break;
+		case STATE_CODE:
+			if (b != 0xff) {
+				onMarker(b);
+			}
+			break;
+		case STATE_LENGTH_HIGH:
+			mSegmentRemaining = b << 8;
+			mState = STATE_LENGTH_LOW;
+			break;
+		case STATE_LENGTH_LOW:
+			mSegmentRemaining = (mSegmentRemaining | b) - 2;
+			mSegmentStart = pos + 1;
+			if (mSegmentRemaining < 0) {
+				stop();
+			} else if (mSegmentRemaining == 0) {
+				onSegment();
+			} else {
+				mState = STATE_SEGMENT;
+			}
+			break;
+		case STATE_SEGMENT:
+			if (--mSegmentRemaining == 0) {
+				onSegment();
+			}
+			break;
+		case STATE_ENTROPY:
+			if (b == 0xff) {
+				mState = STATE_ENTROPY_FF;
+			}
+			break;
+		case STATE_ENTROPY_FF:
+			if (b == 0x00 || (b >= 0xd0 && b <= 0xd7)) {
+				// 填充字节或者RST标记，还在扫描数据中
+				mState = STATE_ENTROPY;
+			} else if (b != 0xff) {
+				// 扫描数据结束
+				mCompletedScans++;
+				onMarker(b);
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void expect(boolean ok, int next) {
+		if (ok) {
+			mState = next;
+		} else {
+			stop();
+		}
+	}
+
+	private void onMarker(int marker) {
+		if (marker == 0xd9) {
+			// EOI，完整图片由调用方解码
+			mState = STATE_DONE;
+			mBuf = null;
+		} else if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd8)) {
+			// 没有长度的标记
+			mState = STATE_MARKER;
+		} else {
+			mMarker = marker;
+			mState = STATE_LENGTH_HIGH;
+		}
+	}
+
+	// 读完一个段
+	private void onSegment() {
+		if (isStartOfFrame(mMarker)) {
+			mProgressive = mMarker == 0xc2 || mMarker == 0xc6
+					|| mMarker == 0xca || mMarker == 0xce;
+			if (mSegmentStart + 5 <= mBuf.length) {
+				mHeight = ((mBuf[mSegmentStart + 1] & 0xff) << 8)
+						| (mBuf[mSegmentStart + 2] & 0xff);
+				mWidth = ((mBuf[mSegmentStart + 3] & 0xff) << 8)
+						| (mBuf[mSegmentStart + 4] & 0xff);
+			}
+			mState = STATE_MARKER;
+		} else if (mMarker == 0xda) {
+			// SOS，后面是扫描数据
+			if (!mProgressive || mWidth <= 0 || mHeight <= 0) {
+				stop();
+			} else {
+				mState = STATE_ENTROPY;
+			}
+		} else {
+			mState = STATE_MARKER;
+		}
+	}
+
+	// SOF0-SOF15，C4(DHT)，C8(JPG)，CC(DAC)除外
+	private static boolean isStartOfFrame(int marker) {
+		return marker >= 0xc0 && marker <= 0xcf && marker != 0xc4
+				&& marker != 0xc8 && marker != 0xcc;
+	}
+
+	// 不是渐进式JPEG或者数据有误，停止解析
+	private void stop() {
+		mState = STATE_DONE;
+		mBuf = null;
+	}
+
+	// 有新的扫描下载完时解码预览图
+	private void maybePreview() {
+		if (mCompletedScans <= mPreviewedScans) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (now - mLastPreviewTime < MIN_PREVIEW_INTERVAL_MS) {
+			return;
+		}
+		mPreviewedScans = mCompletedScans;
+		mLastPreviewTime = now;
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		// 预览图比最终的图片再缩小一半，解码更快
+		options.inSampleSize = ImageDecoder.calculateInSampleSize(mWidth,
+				mHeight, mReqWidth, mReqHeight) * 2;
+		options.inPreferredConfig = Bitmap.Config.RGB_565;
+		Bitmap preview = null;
+		try {
+			preview = BitmapFactory.decodeByteArray(mBuf, 0, mCount, options);
+		} catch (OutOfMemoryError e) {
+			e.printStackTrace();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		if (preview != null) {
+			Log.d(TAG, "预览扫描:" + mCompletedScans);
+			mListener.onPreview(preview);
+		}
+	}
+}
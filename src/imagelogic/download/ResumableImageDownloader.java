@@ -0,0 +1,47 @@
+package imagelogic.download;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 支持断点续传的图片下载接口。
+ * 下载失败时保留已经下载的部分和服务端的校验值(强ETag或者Last-Modified)，
+ * 重试的时候用Range/If-Range只请求剩下的部分，文件变了服务端会返回完整的内容。
+ * 
+ */
+public interface ResumableImageDownloader extends ImageDownloader {
+
+	/**
+	 * @Title: downloadToLocalStreamByUrl
+	 * @Description: 断点续传下载图片
+	 * @param @param urlString 图片地址
+	 * @param @param target 已经下载的部分和写入的位置
+	 * @return boolean true 成功 false 失败
+	 * @throws
+	 */
+	public boolean downloadToLocalStreamByUrl(String urlString,
+			PartialTarget target);
+
+	/**
+	 * 下载的目标文件，一般是磁盘缓存的临时文件
+	 */
+	public interface PartialTarget {
+
+		// 已经下载的字节数，没有返回0
+		long getOffset();
+
+		// 已经下载部分的校验值，没有返回null
+		String getValidator();
+
+		/**
+		 * @Title: openStream
+		 * @Description: 收到响应以后打开输出流
+		 * @param @param resume true 在已经下载的部分后面追加，false 从头开始写
+		 * @param @param validator 这次响应的校验值，服务端没有返回或者不能用于续传为null
+		 * @return OutputStream 下载完成或者失败后由调用方关闭
+		 * @throws IOException
+		 */
+		OutputStream openStream(boolean resume, String validator)
+				throws IOException;
+	}
+}
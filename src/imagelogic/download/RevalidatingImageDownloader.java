@@ -0,0 +1,33 @@
+package imagelogic.download;
+
+import java.io.OutputStream;
+
+/**
+ * 支持条件请求的图片下载接口。
+ * 刷新磁盘缓存中的图片时带上保存的ETag和Last-Modified，图片没有变化服务端只返回304，不用重新下载整张图片。
+ * 
+ */
+public interface RevalidatingImageDownloader extends ImageDownloader {
+
+	/** 请求失败 */
+	public static final int RESULT_FAILED = 0;
+
+	/** 图片已经变化，新的数据已经写入输出流 */
+	public static final int RESULT_MODIFIED = 1;
+
+	/** 图片没有变化(304 Not Modified) */
+	public static final int RESULT_NOT_MODIFIED = 2;
+
+	/**
+	 * @Title: revalidate
+	 * @Description: 条件请求图片，发送If-None-Match/If-Modified-Since
+	 * @param @param urlString 图片地址
+	 * @param @param etag 缓存的ETag，可以为空
+	 * @param @param lastModified 缓存的Last-Modified，可以为空
+	 * @param @param outputStream 图片变化时写入新数据的输出流，不会关闭
+	 * @return int RESULT_FAILED，RESULT_MODIFIED或者RESULT_NOT_MODIFIED
+	 * @throws
+	 */
+	public int revalidate(String urlString, String etag, String lastModified,
+			OutputStream outputStream);
+}
@@ -0,0 +1,59 @@
+package imagelogic.download;
+
+import imagelogic.threads.PriorityLifoExecutor;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * 预加载下载的数据流。
+ * 有前台任务的时候暂停读取，让出带宽；设置了限速的时候按令牌桶限速。
+ * 
+ */
+class ThrottledInputStream extends FilterInputStream {
+	private static final int MAX_READ = 8 * 1024;// 每次最多读取，限速更平滑
+	private static final long YIELD_STEP_MS = 50;
+	private static final long MAX_YIELD_MS = 5 * 1000;// 每次最多暂停，避免服务端超时断开
+
+	private final BandwidthLimiter mLimiter;// 可以为空
+
+	ThrottledInputStream(InputStream in, BandwidthLimiter limiter) {
+		super(in);
+		mLimiter = limiter;
+	}
+
+	@Override
+	public int read() throws IOException {
+		yieldToForeground();
+		int b = in.read();
+		if (b >= 0 && mLimiter != null) {
+			mLimiter.acquire(1);
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int count) throws IOException {
+		yieldToForeground();
+		int n = in.read(buffer, offset, Math.min(count, MAX_READ));
+		if (n > 0 && mLimiter != null) {
+			mLimiter.acquire(n);
+		}
+		return n;
+	}
+
+	// 前台任务在排队或者执行的时候等待
+	private void yieldToForeground() throws InterruptedIOException {
+		long waited = 0;
+		while (waited < MAX_YIELD_MS && PriorityLifoExecutor.shouldYield()) {
+			try {
+				Thread.sleep(YIELD_STEP_MS);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			waited += YIELD_STEP_MS;
+		}
+	}
+}
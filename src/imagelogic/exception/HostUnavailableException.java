@@ -0,0 +1,16 @@
+package imagelogic.exception;
+
+import java.io.IOException;
+
+/**
+ * 图片主机连续失败，熔断期间不再发请求
+ */
+public class HostUnavailableException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public HostUnavailableException(String host) {
+        super("host unavailable: " + host);
+    }
+
+}
@@ -0,0 +1,17 @@
+package imagelogic.listener;
+
+import imagelogic.PrefetchRequest;
+
+/**
+ * 批量预加载的回调，都在主线程执行。
+ * 进度合并以后回调，不是每张图片回调一次。
+ *
+ */
+public interface PrefetchListener {
+
+	// 已经结束的图片数变化
+	public void onProgress(PrefetchRequest request, int finished, int total);
+
+	// 全部结束或者取消以后回调一次
+	public void onComplete(PrefetchRequest request);
+}
@@ -72,7 +72,8 @@ public abstract class ImageAsyncTask<Params, Progress, Result> {
     public static final Executor SERIAL_EXECUTOR = ImageUtils.hasHoneycomb() ? new SerialExecutor()
             : Executors.newSingleThreadExecutor(sCacheThreadFactory);
 
-    public static Executor NET_THREAD_EXECUTOR = Executors.newFixedThreadPool(4, sNetThreadFactory);
+    // 网络线程池，按可见性优先级执行，同一优先级后提交的先执行
+    public static Executor NET_THREAD_EXECUTOR = new PriorityLifoExecutor(4, sNetThreadFactory);
 
     private final WorkerRunnable<Params, Result> mWorker;
 
@@ -93,6 +94,12 @@ public abstract class ImageAsyncTask<Params, Progress, Result> {
     private final AtomicBoolean mCancelled = new AtomicBoolean();
     private final AtomicBoolean mTaskInvoked = new AtomicBoolean();
 
+    // 任务优先级，在PriorityLifoExecutor中有效
+    private volatile int mPriority = PriorityLifoExecutor.PRIORITY_VISIBLE;
+
+    // 执行任务的线程池
+    private volatile Executor mExecutor;
+
     @TargetApi(11)
     private static class SerialExecutor implements Executor {
         final ArrayDeque<Runnable> mTasks = new ArrayDeque<Runnable>();
@@ -157,22 +164,69 @@ public abstract class ImageAsyncTask<Params, Progress, Result> {
          * 可使用 FutureTask 包装 Callable 或 Runnable 对象。因为 FutureTask
          * 实现了Runnable，所以可将 FutureTask 提交给 Executor 执行。
          */
-        mFuture = new FutureTask<Result>(mWorker) {
-            @Override
-            protected void done() {
-                try {
-                    /**
-                     * Future有个get方法而获取结果只有在计算完成时获取，否则会一直阻塞直到任务转入完成状态，
-                     * 然后会返回结果或者抛出异常
-                     */
-                    postResultIfNotInvoked(get());
-                } catch (InterruptedException e) {
-                } catch (ExecutionException e) {
-                } catch (CancellationException e) {
-                    postResultIfNotInvoked(null);
-                }
+        mFuture = new TaskFuture(mWorker);
+    }
+
+    // 提交给线程池的任务，带上优先级
+    private class TaskFuture extends FutureTask<Result> implements PriorityLifoExecutor.Prioritized {
+
+        TaskFuture(Callable<Result> callable) {
+            super(callable);
+        }
+
+        @Override
+        protected void done() {
+            try {
+                /**
+                 * Future有个get方法而获取结果只有在计算完成时获取，否则会一直阻塞直到任务转入完成状态，
+                 * 然后会返回结果或者抛出异常
+                 */
+                postResultIfNotInvoked(get());
+            } catch (InterruptedException e) {
+            } catch (ExecutionException e) {
+            } catch (CancellationException e) {
+                postResultIfNotInvoked(null);
             }
-        };
+        }
+
+        @Override
+        public int getPriority() {
+            return mPriority;
+        }
+
+        @Override
+        public boolean isObsolete() {
+            return ImageAsyncTask.this.isObsolete();
+        }
+
+        @Override
+        public String getHost() {
+            return ImageAsyncTask.this.getHost();
+        }
+    }
+
+    // 任务优先级
+    public final int getPriority() {
+        return mPriority;
+    }
+
+    // 设置任务优先级，还在排队的任务按新的优先级重新排队
+    public final void setPriority(int priority) {
+        mPriority = priority;
+        Executor exec = mExecutor;
+        if (exec instanceof PriorityLifoExecutor) {
+            ((PriorityLifoExecutor) exec).reprioritize(mFuture);
+        }
+    }
+
+    // 任务开始执行前检查是否已经没有意义，没有意义的任务不再执行，直接取消
+    protected boolean isObsolete() {
+        return false;
+    }
+
+    // 任务访问的主机，网络线程池按主机限制并发，返回null不限制
+    protected String getHost() {
+        return null;
     }
 
     private void postResultIfNotInvoked(Result result) {
@@ -224,6 +278,10 @@ public abstract class ImageAsyncTask<Params, Progress, Result> {
     // 取消任务操作
     public final boolean cancel(boolean mayInterruptIfRunning) {
         mCancelled.set(true);
+        Executor exec = mExecutor;
+        if (exec instanceof PriorityLifoExecutor) {
+            ((PriorityLifoExecutor) exec).remove(mFuture);
+        }
         return mFuture.cancel(mayInterruptIfRunning);
     }
 
@@ -263,6 +321,7 @@ public abstract class ImageAsyncTask<Params, Progress, Result> {
         onPreExecute();
         // 异步任务的数据
         mWorker.mParams = params;
+        mExecutor = exec;
         exec.execute(mFuture);
         // 返回自己
         return this;
@@ -0,0 +1,367 @@
+package imagelogic.threads;
+
+import imagelogic.utils.Log;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 按优先级执行的下载线程池。
+ * 任务分为可见，即将可见，预加载三档，优先执行高优先级的任务，同一档中后提交的先执行(快速滑动以后先加载当前屏幕的图片)。
+ * 任务开始执行前检查是否已经没有意义(imageView已经显示别的图片或者被回收)，没有意义的直接取消。
+ * 同一个主机同时执行的任务数有限制，一个慢主机不会占满所有线程；预加载任务至少留一个线程给前台任务。
+ *
+ */
+public class PriorityLifoExecutor implements Executor {
+	private static final String TAG = "PriorityLifoExecutor";
+
+	/** 正在显示的imageView */
+	public static final int PRIORITY_VISIBLE = 0;
+
+	/** 即将显示的imageView，例如刚滑出屏幕或者马上滑入屏幕 */
+	public static final int PRIORITY_NEAR_VISIBLE = 1;
+
+	/** 预加载，没有imageView等待 */
+	public static final int PRIORITY_PREFETCH = 2;
+
+	/**
+	 * 有优先级的任务
+	 */
+	public interface Prioritized {
+
+		// 任务优先级，PRIORITY_*
+		int getPriority();
+
+		// 任务是否已经没有意义，开始执行前检查
+		boolean isObsolete();
+
+		// 任务访问的主机，没有返回null，不限制
+		String getHost();
+	}
+
+	// 优先级高的在前，同一优先级后提交的在前
+	private static final Comparator<Entry> ENTRY_ORDER = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry lhs, Entry rhs) {
+			if (lhs.priority != rhs.priority) {
+				return lhs.priority < rhs.priority ? -1 : 1;
+			}
+			return lhs.sequence > rhs.sequence ? -1
+					: (lhs.sequence == rhs.sequence ? 0 : 1);
+		}
+	};
+
+	// 当前线程正在执行的任务
+	private static final ThreadLocal<Entry> sCurrent = new ThreadLocal<Entry>();
+
+	private int mThreads;// 线程数，由this保护
+	private final ThreadFactory mThreadFactory;
+
+	// 以下字段都由this保护
+	private final TreeSet<Entry> mQueue = new TreeSet<Entry>(ENTRY_ORDER);// 排队的任务
+	private final Map<Runnable, Entry> mQueued = new HashMap<Runnable, Entry>();// 提交的任务和排队的位置
+	private final Map<String, Integer> mHostRunning = new HashMap<String, Integer>();// 每个主机正在执行的任务数
+	private long mSequence;// 提交顺序
+	private int mWorkers;// 已经启动的线程数
+	private int mIdleWorkers;// 空闲的线程数
+	private int mPrefetchRunning;// 正在执行的预加载任务数
+	private int mForegroundCount;// 排队和正在执行的前台任务数
+	private int mMaxPerHost;// 每个主机同时执行的任务数
+	private int mMaxPrefetch;// 同时执行的预加载任务数
+	private boolean mCustomMaxPerHost;// 是否设置过每个主机的任务数
+	private boolean mCustomMaxPrefetch;// 是否设置过预加载任务数
+
+	public PriorityLifoExecutor(int threads, ThreadFactory threadFactory) {
+		mThreads = Math.max(1, threads);
+		mThreadFactory = threadFactory;
+		mMaxPerHost = Math.max(1, mThreads - 1);
+		mMaxPrefetch = Math.max(1, mThreads - 1);
+	}
+
+	/**
+	 * @Title: setMaxRequestsPerHost
+	 * @Description: 设置每个主机同时执行的任务数，默认比线程数少一个，其他主机的图片总有线程可用
+	 * @param @param maxPerHost
+	 * @return void
+	 * @throws
+	 */
+	public synchronized void setMaxRequestsPerHost(int maxPerHost) {
+		mMaxPerHost = Math.max(1, maxPerHost);
+		mCustomMaxPerHost = true;
+		notifyAll();
+	}
+
+	/**
+	 * @Title: setMaxPrefetchRequests
+	 * @Description: 设置同时执行的预加载任务数，默认比线程数少一个，前台任务总有线程可用
+	 * @param @param maxPrefetch
+	 * @return void
+	 * @throws
+	 */
+	public synchronized void setMaxPrefetchRequests(int maxPrefetch) {
+		mMaxPrefetch = Math.max(1, Math.min(maxPrefetch, mThreads));
+		mCustomMaxPrefetch = true;
+		notifyAll();
+	}
+
+	/**
+	 * @Title: setThreadCount
+	 * @Description: 修改线程数。没有设置过的主机和预加载任务数跟着调整，多出来的线程执行完当前任务以后退出
+	 * @param @param threads
+	 * @return void
+	 * @throws
+	 */
+	public synchronized void setThreadCount(int threads) {
+		mThreads = Math.max(1, threads);
+		if (!mCustomMaxPerHost) {
+			mMaxPerHost = Math.max(1, mThreads - 1);
+		}
+		if (!mCustomMaxPrefetch) {
+			mMaxPrefetch = Math.max(1, mThreads - 1);
+		} else {
+			mMaxPrefetch = Math.min(mMaxPrefetch, mThreads);
+		}
+		// 排队的任务不用等下一次提交才有线程执行
+		startWorkers();
+		notifyAll();
+	}
+
+	public synchronized int getThreadCount() {
+		return mThreads;
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		if (command == null) {
+			throw new NullPointerException();
+		}
+		synchronized (this) {
+			enqueue(new Entry(command, priorityOf(command), hostOf(command),
+					++mSequence));
+			startWorkers();
+			notifyAll();
+		}
+	}
+
+	// 排队的任务比空闲线程多的时候启动新线程，空闲以后的一批任务也能分到多个线程上，由this保护
+	private void startWorkers() {
+		while (mQueue.size() > mIdleWorkers && mWorkers < mThreads) {
+			mWorkers++;
+			mThreadFactory.newThread(new Worker()).start();
+		}
+	}
+
+	/**
+	 * @Title: reprioritize
+	 * @Description: 任务优先级变化或者imageView重新绑定的时候调用，按新的优先级重新排队，并排到同一档的最前面
+	 * @param @param command 提交的任务
+	 * @return void
+	 */
+	public synchronized void reprioritize(Runnable command) {
+		Entry entry = mQueued.get(command);
+		if (entry == null) {
+			// 已经开始执行
+			return;
+		}
+		dequeue(entry);
+		enqueue(new Entry(command, priorityOf(command), entry.host,
+				++mSequence));
+		notifyAll();
+	}
+
+	/**
+	 * @Title: remove
+	 * @Description: 从队列中删除还没有开始执行的任务
+	 * @param @param command 提交的任务
+	 * @return boolean 是否删除
+	 */
+	public synchronized boolean remove(Runnable command) {
+		Entry entry = mQueued.get(command);
+		if (entry == null) {
+			return false;
+		}
+		dequeue(entry);
+		return true;
+	}
+
+	// 是否有排队或者正在执行的前台任务
+	public synchronized boolean hasForegroundWork() {
+		return mForegroundCount > 0;
+	}
+
+	/**
+	 * @Title: getCurrentPriority
+	 * @Description: 当前线程正在执行的任务的优先级
+	 * @return int 不是线程池的线程返回-1
+	 */
+	public static int getCurrentPriority() {
+		Entry entry = sCurrent.get();
+		return entry != null ? entry.priority : -1;
+	}
+
+	/**
+	 * @Title: shouldYield
+	 * @Description: 当前线程执行的是预加载任务，并且有前台任务在排队或者执行，预加载应该让出带宽
+	 * @return boolean
+	 */
+	public static boolean shouldYield() {
+		Entry entry = sCurrent.get();
+		return entry != null && entry.priority >= PRIORITY_PREFETCH
+				&& entry.owner().hasForegroundWork();
+	}
+
+	private void enqueue(Entry entry) {
+		mQueue.add(entry);
+		mQueued.put(entry.command, entry);
+		if (entry.priority < PRIORITY_PREFETCH) {
+			mForegroundCount++;
+		}
+	}
+
+	private void dequeue(Entry entry) {
+		mQueue.remove(entry);
+		mQueued.remove(entry.command);
+		if (entry.priority < PRIORITY_PREFETCH) {
+			mForegroundCount--;
+		}
+	}
+
+	// 取出可以执行的优先级最高的任务，主机或者预加载的并发数已满的跳过
+	private Entry pollRunnable() {
+		for (Iterator<Entry> it = mQueue.iterator(); it.hasNext();) {
+			Entry entry = it.next();
+			if (entry.priority >= PRIORITY_PREFETCH
+					&& mPrefetchRunning >= mMaxPrefetch) {
+				continue;
+			}
+			if (entry.host != null && hostRunning(entry.host) >= mMaxPerHost) {
+				continue;
+			}
+			it.remove();
+			mQueued.remove(entry.command);
+			return entry;
+		}
+		return null;
+	}
+
+	private int hostRunning(String host) {
+		Integer running = mHostRunning.get(host);
+		return running != null ? running : 0;
+	}
+
+	private void onStart(Entry entry) {
+		if (entry.host != null) {
+			mHostRunning.put(entry.host, hostRunning(entry.host) + 1);
+		}
+		if (entry.priority >= PRIORITY_PREFETCH) {
+			mPrefetchRunning++;
+		}
+	}
+
+	private void onFinish(Entry entry) {
+		if (entry.host != null) {
+			int running = hostRunning(entry.host) - 1;
+			if (running > 0) {
+				mHostRunning.put(entry.host, running);
+			} else {
+				mHostRunning.remove(entry.host);
+			}
+		}
+		if (entry.priority >= PRIORITY_PREFETCH) {
+			mPrefetchRunning--;
+		} else {
+			mForegroundCount--;
+		}
+		notifyAll();
+	}
+
+	private static int priorityOf(Runnable command) {
+		if (command instanceof Prioritized) {
+			return ((Prioritized) command).getPriority();
+		}
+		return PRIORITY_PREFETCH;
+	}
+
+	private static String hostOf(Runnable command) {
+		if (command instanceof Prioritized) {
+			return ((Prioritized) command).getHost();
+		}
+		return null;
+	}
+
+	// 工作线程，一直等待可以执行的任务
+	private class Worker implements Runnable {
+		@Override
+		public void run() {
+			while (true) {
+				Entry entry;
+				synchronized (PriorityLifoExecutor.this) {
+					while ((entry = pollRunnable()) == null) {
+						if (mWorkers > mThreads) {
+							// 线程数调小了
+							mWorkers--;
+							return;
+						}
+						mIdleWorkers++;
+						try {
+							PriorityLifoExecutor.this.wait();
+						} catch (InterruptedException e) {
+							// 线程池不会关闭，继续等待
+						} finally {
+							mIdleWorkers--;
+						}
+					}
+					onStart(entry);
+				}
+				sCurrent.set(entry);
+				try {
+					entry.run();
+				} catch (RuntimeException e) {
+					Log.e(TAG, "任务异常:" + e.getMessage());
+				} finally {
+					sCurrent.set(null);
+					synchronized (PriorityLifoExecutor.this) {
+						onFinish(entry);
+					}
+				}
+			}
+		}
+	}
+
+	// 队列中的任务
+	private class Entry {
+		final Runnable command;
+		final int priority;
+		final String host;
+		final long sequence;
+
+		Entry(Runnable command, int priority, String host, long sequence) {
+			this.command = command;
+			this.priority = priority;
+			this.host = host;
+			this.sequence = sequence;
+		}
+
+		PriorityLifoExecutor owner() {
+			return PriorityLifoExecutor.this;
+		}
+
+		void run() {
+			if (command instanceof Prioritized
+					&& ((Prioritized) command).isObsolete()) {
+				Log.d(TAG, "丢弃已经没有意义的任务");
+				if (command instanceof Future) {
+					((Future<?>) command).cancel(false);
+				}
+				return;
+			}
+			command.run();
+		}
+	}
+}
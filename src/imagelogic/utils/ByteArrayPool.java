@@ -0,0 +1,138 @@
+package imagelogic.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * 按大小分级的字节数组池。
+ * 下载，读取磁盘缓存和解码用到的临时数组用完以后还回池中，列表滑动时几乎不再分配新的数组。
+ * 数组大小是2的整数次幂(4KB到1MB)，更大的数组不缓存；池中数组总大小超过上限时先丢弃最久没有用的。
+ *
+ */
+public class ByteArrayPool {
+
+	public static final int DEFAULT_POOL_BYTES = 2 * 1024 * 1024;// 默认池大小
+
+	private static final int MIN_SHIFT = 12;// 最小4KB
+	private static final int MAX_SHIFT = 20;// 最大1MB
+
+	private static final ByteArrayPool sDefault = new ByteArrayPool(
+			DEFAULT_POOL_BYTES);
+
+	// 每一级空闲的数组，后还回的先用
+	private final List<List<byte[]>> mFree = new ArrayList<List<byte[]>>();
+
+	// 所有空闲的数组，最久没有用的在前
+	private final LinkedList<byte[]> mByLastUse = new LinkedList<byte[]>();
+
+	private final int mSizeLimit;// 池中数组总大小上限
+
+	private int mCurrentSize;// 池中数组总大小
+
+	/**
+	 * 借出的数组和有效数据的长度，用完调用release还回池中
+	 */
+	public static final class Buffer {
+		public final byte[] data;
+		public final int length;
+		private ByteArrayPool mPool;
+
+		public Buffer(ByteArrayPool pool, byte[] data, int length) {
+			this.mPool = pool;
+			this.data = data;
+			this.length = length;
+		}
+
+		// 还回池中，之后不能再使用data
+		public void release() {
+			ByteArrayPool pool = mPool;
+			mPool = null;
+			if (pool != null) {
+				pool.returnBuf(data);
+			}
+		}
+	}
+
+	public ByteArrayPool(int sizeLimit) {
+		mSizeLimit = sizeLimit;
+		for (int i = MIN_SHIFT; i <= MAX_SHIFT; i++) {
+			mFree.add(new ArrayList<byte[]>());
+		}
+	}
+
+	// 整个应用共用的池
+	public static ByteArrayPool getDefault() {
+		return sDefault;
+	}
+
+	/**
+	 * @Title: getBuf
+	 * @Description: 借一个至少len字节的数组，池中没有的时候新建
+	 * @param @param len
+	 * @return byte[] 长度可能大于len
+	 * @throws
+	 */
+	public synchronized byte[] getBuf(int len) {
+		int shift = shiftFor(len);
+		if (shift < 0) {
+			return new byte[len];
+		}
+		List<byte[]> free = mFree.get(shift - MIN_SHIFT);
+		if (!free.isEmpty()) {
+			byte[] buf = free.remove(free.size() - 1);
+			mByLastUse.remove(buf);
+			mCurrentSize -= buf.length;
+			return buf;
+		}
+		return new byte[1 << shift];
+	}
+
+	/**
+	 * @Title: returnBuf
+	 * @Description: 还回数组，不是池中大小的数组直接丢弃
+	 * @param @param buf
+	 * @return void
+	 * @throws
+	 */
+	public synchronized void returnBuf(byte[] buf) {
+		if (buf == null || buf.length > mSizeLimit) {
+			return;
+		}
+		int shift = shiftFor(buf.length);
+		if (shift < 0 || buf.length != 1 << shift) {
+			return;
+		}
+		mFree.get(shift - MIN_SHIFT).add(buf);
+		mByLastUse.add(buf);
+		mCurrentSize += buf.length;
+		trim();
+	}
+
+	// 清空池，内存不足的时候调用
+	public synchronized void clear() {
+		for (List<byte[]> free : mFree) {
+			free.clear();
+		}
+		mByLastUse.clear();
+		mCurrentSize = 0;
+	}
+
+	// 丢弃最久没有用的数组直到不超过上限
+	private void trim() {
+		while (mCurrentSize > mSizeLimit) {
+			byte[] buf = mByLastUse.removeFirst();
+			mFree.get(shiftFor(buf.length) - MIN_SHIFT).remove(buf);
+			mCurrentSize -= buf.length;
+		}
+	}
+
+	// 能放下len字节的级别，太大不缓存返回-1
+	private static int shiftFor(int len) {
+		int shift = MIN_SHIFT;
+		while (shift <= MAX_SHIFT && (1 << shift) < len) {
+			shift++;
+		}
+		return shift <= MAX_SHIFT ? shift : -1;
+	}
+}
@@ -0,0 +1,265 @@
+package imagelogic.utils;
+
+import java.io.UnsupportedEncodingException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 图片地址对应的缓存key，一次请求只计算一次。
+ * 使用非加密的Murmur3 128位哈希，文件名是26个字符的base32编码，比MD5快而且文件名更短。
+ * 最近使用的地址保存在一个小的LRU表中，同一个地址在内存，磁盘，下载几个环节不会重复计算。
+ * 
+ */
+public final class CacheKey {
+
+	// 缓存的地址个数
+	private static final int MEMO_SIZE = 128;
+
+	// base32字母表(RFC 4648，小写)
+	private static final char[] BASE32 = "abcdefghijklmnopqrstuvwxyz234567"
+			.toCharArray();
+
+	// 最近使用的地址对应的key
+	private static final Map<String, CacheKey> sMemo = new LinkedHashMap<String, CacheKey>(
+			MEMO_SIZE, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CacheKey> eldest) {
+			return size() > MEMO_SIZE;
+		}
+	};
+
+	private final String mUrl;
+	private final long mHigh;
+	private final long mLow;
+	private final String mFileName;
+	private String mLegacyFileName;
+
+	private CacheKey(String url) {
+		mUrl = url;
+		byte[] bytes;
+		try {
+			bytes = url.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		long[] hash = murmur3Hash128(bytes, 0);
+		mHigh = hash[0];
+		mLow = hash[1];
+		mFileName = toBase32(mHigh, mLow);
+	}
+
+	/**
+	 * @Title: of
+	 * @Description: 获取图片地址对应的key，最近使用过的地址直接返回
+	 * @param @param url 图片地址
+	 * @return CacheKey
+	 */
+	public static CacheKey of(String url) {
+		synchronized (sMemo) {
+			CacheKey key = sMemo.get(url);
+			if (key != null) {
+				return key;
+			}
+		}
+		CacheKey key = new CacheKey(url);
+		synchronized (sMemo) {
+			sMemo.put(url, key);
+		}
+		return key;
+	}
+
+	// 图片地址
+	public String getUrl() {
+		return mUrl;
+	}
+
+	// 磁盘缓存文件名
+	public String getFileName() {
+		return mFileName;
+	}
+
+	/**
+	 * @Title: getLegacyFileName
+	 * @Description: 旧版本使用的MD5文件名，只在迁移旧的缓存文件时使用
+	 * @return String
+	 */
+	public synchronized String getLegacyFileName() {
+		if (mLegacyFileName == null) {
+			mLegacyFileName = ImageUtils.CalcUrl2Md5(mUrl);
+		}
+		return mLegacyFileName;
+	}
+
+	/**
+	 * @Title: isLegacyFileName
+	 * @Description: 是否是旧版本的MD5文件名(32位十六进制加".0")，CalcUrl2Md5生成的是大写，大小写都接受
+	 */
+	public static boolean isLegacyFileName(String name) {
+		if (name.length() != 34 || !name.endsWith(".0")) {
+			return false;
+		}
+		for (int i = 0; i < 32; i++) {
+			char c = name.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f')
+					&& (c < 'A' || c > 'F')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof CacheKey)) {
+			return false;
+		}
+		CacheKey other = (CacheKey) o;
+		return mHigh == other.mHigh && mLow == other.mLow
+				&& mUrl.equals(other.mUrl);
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (mLow ^ (mLow >>> 32));
+	}
+
+	@Override
+	public String toString() {
+		return mFileName;
+	}
+
+	// 128位哈希转成26个字符的base32
+	private static String toBase32(long high, long low) {
+		char[] chars = new char[26];
+		for (int i = 0; i < 26; i++) {
+			int shift = 123 - i * 5;// 从最高位开始，每次取5位，最后一组低位补0
+			int value;
+			if (shift >= 64) {
+				value = (int) (high >>> (shift - 64));
+			} else if (shift > 59) {
+				value = (int) ((high << (64 - shift)) | (low >>> shift));
+			} else if (shift >= 0) {
+				value = (int) (low >>> shift);
+			} else {
+				value = (int) (low << -shift);
+			}
+			chars[i] = BASE32[value & 0x1f];
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * @Title: murmur3Hash128
+	 * @Description: MurmurHash3 x64 128位哈希
+	 * @param @param data
+	 * @param @param seed
+	 * @return long[] 高64位和低64位
+	 */
+	@SuppressWarnings("fallthrough")
+	static long[] murmur3Hash128(byte[] data, int seed) {
+		final long c1 = 0x87c37b91114253d5L;
+		final long c2 = 0x4cf5ad432745937fL;
+		final int length = data.length;
+		final int blocks = length / 16;
+		long h1 = seed & 0xffffffffL;
+		long h2 = seed & 0xffffffffL;
+
+		for (int i = 0; i < blocks; i++) {
+			long k1 = getLong(data, i * 16);
+			long k2 = getLong(data, i * 16 + 8);
+
+			k1 *= c1;
+			k1 = Long.rotateLeft(k1, 31);
+			k1 *= c2;
+			h1 ^= k1;
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+
+			k2 *= c2;
+			k2 = Long.rotateLeft(k2, 33);
+			k2 *= c1;
+			h2 ^= k2;
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		long k1 = 0;
+		long k2 = 0;
+		int tail = blocks * 16;
+		// 剩下不足16个字节，和参考实现一样每个case故意落到下一个case
+		switch (length & 15) {
+		case 15:
+			k2 ^= (data[tail + 14] & 0xffL) << 48;
+		case 14:
+			k2 ^= (data[tail + 13] & 0xffL) << 40;
+		case 13:
+			k2 ^= (data[tail + 12] & 0xffL) << 32;
+		case 12:
+			k2 ^= (data[tail + 11] & 0xffL) << 24;
+		case 11:
+			k2 ^= (data[tail + 10] & 0xffL) << 16;
+		case 10:
+			k2 ^= (data[tail + 9] & 0xffL) << 8;
+		case 9:
+			k2 ^= (data[tail + 8] & 0xffL);
+			k2 *= c2;
+			k2 = Long.rotateLeft(k2, 33);
+			k2 *= c1;
+			h2 ^= k2;
+		case 8:
+			k1 ^= (data[tail + 7] & 0xffL) << 56;
+		case 7:
+			k1 ^= (data[tail + 6] & 0xffL) << 48;
+		case 6:
+			k1 ^= (data[tail + 5] & 0xffL) << 40;
+		case 5:
+			k1 ^= (data[tail + 4] & 0xffL) << 32;
+		case 4:
+			k1 ^= (data[tail + 3] & 0xffL) << 24;
+		case 3:
+			k1 ^= (data[tail + 2] & 0xffL) << 16;
+		case 2:
+			k1 ^= (data[tail + 1] & 0xffL) << 8;
+		case 1:
+			k1 ^= (data[tail] & 0xffL);
+			k1 *= c1;
+			k1 = Long.rotateLeft(k1, 31);
+			k1 *= c2;
+			h1 ^= k1;
+		}
+
+		h1 ^= length;
+		h2 ^= length;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix64(h1);
+		h2 = fmix64(h2);
+		h1 += h2;
+		h2 += h1;
+		return new long[] { h1, h2 };
+	}
+
+	// 小端读取8个字节
+	private static long getLong(byte[] data, int pos) {
+		return (data[pos] & 0xffL) | (data[pos + 1] & 0xffL) << 8
+				| (data[pos + 2] & 0xffL) << 16 | (data[pos + 3] & 0xffL) << 24
+				| (data[pos + 4] & 0xffL) << 32 | (data[pos + 5] & 0xffL) << 40
+				| (data[pos + 6] & 0xffL) << 48 | (data[pos + 7] & 0xffL) << 56;
+	}
+
+	private static long fmix64(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+}
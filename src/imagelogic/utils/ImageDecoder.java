@@ -14,6 +14,11 @@ import android.graphics.BitmapFactory;
  */
 public class ImageDecoder {
 
+	public static final String MIME_JPEG = "image/jpeg";
+	public static final String MIME_PNG = "image/png";
+
+	private static final int TEMP_STORAGE_SIZE = 16 * 1024;// 解码临时缓冲区大小
+
 	private ImageDecoder() {
 	}
 
@@ -91,17 +96,33 @@ public class ImageDecoder {
 	 */
 	public static Bitmap decodeSampledBitmapFromBytes(byte[] bytes,
 			int reqWidth, int reqHeight) {
+		return decodeSampledBitmapFromBytes(bytes, bytes.length, reqWidth,
+				reqHeight);
+	}
+
+	/**
+	 * @Title: decodeSampledBitmapFromBytes
+	 * @Description: 压缩图片数据，数据只占数组的前length个字节(从池中借出的数组)
+	 * @param @param bytes
+	 * @param @param length
+	 * @param @param reqWidth
+	 * @param @param reqHeight
+	 * @param @return
+	 * @return Bitmap
+	 * @throws
+	 */
+	public static Bitmap decodeSampledBitmapFromBytes(byte[] bytes,
+			int length, int reqWidth, int reqHeight) {
 		final BitmapFactory.Options options = new BitmapFactory.Options();
 		options.inJustDecodeBounds = true;
 		options.inPurgeable = true;
-		BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+		decodeByteArray(bytes, length, options);
 		options.inSampleSize = calculateInSampleSize(options, reqWidth,
 				reqHeight);
 		options.inJustDecodeBounds = false;
 		Bitmap bitmap = null;
 		try {
-			bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length,
-					options);
+			bitmap = decodeByteArray(bytes, length, options);
 		} catch (OutOfMemoryError e) {
 			e.printStackTrace();
 		} catch (Exception e) {
@@ -110,6 +131,72 @@ public class ImageDecoder {
 		return bitmap;
 	}
 
+	/**
+	 * @Title: decodeSampledBitmapFromBytes
+	 * @Description: 压缩图片数据，图片宽高已知(来自磁盘索引)，不再解析图片边界
+	 * @param @param bytes
+	 * @param @param reqWidth
+	 * @param @param reqHeight
+	 * @param @param width 图片原始宽
+	 * @param @param height 图片原始高
+	 * @param @param mimeType 图片格式，jpeg没有透明通道使用RGB_565解码
+	 * @param @return
+	 * @return Bitmap
+	 * @throws
+	 */
+	public static Bitmap decodeSampledBitmapFromBytes(byte[] bytes,
+			int reqWidth, int reqHeight, int width, int height, String mimeType) {
+		return decodeSampledBitmapFromBytes(bytes, bytes.length, reqWidth,
+				reqHeight, width, height, mimeType);
+	}
+
+	// 同上，数据只占数组的前length个字节
+	public static Bitmap decodeSampledBitmapFromBytes(byte[] bytes,
+			int length, int reqWidth, int reqHeight, int width, int height,
+			String mimeType) {
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inPurgeable = true;
+		options.inSampleSize = calculateInSampleSize(width, height, reqWidth,
+				reqHeight);
+		if (MIME_JPEG.equals(mimeType)) {
+			options.inPreferredConfig = Bitmap.Config.RGB_565;
+		}
+		Bitmap bitmap = null;
+		try {
+			bitmap = decodeByteArray(bytes, length, options);
+		} catch (OutOfMemoryError e) {
+			e.printStackTrace();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return bitmap;
+	}
+
+	/**
+	 * @Title: decodeByteArray
+	 * @Description: 解码图片数据，解码用的临时缓冲区(inTempStorage)从池中借出，解码完还回
+	 * @param @param bytes
+	 * @param @param length
+	 * @param @param options 可以为空
+	 * @return Bitmap
+	 * @throws
+	 */
+	public static Bitmap decodeByteArray(byte[] bytes, int length,
+			BitmapFactory.Options options) {
+		if (options == null) {
+			options = new BitmapFactory.Options();
+		}
+		final ByteArrayPool pool = ByteArrayPool.getDefault();
+		final byte[] tempStorage = pool.getBuf(TEMP_STORAGE_SIZE);
+		options.inTempStorage = tempStorage;
+		try {
+			return BitmapFactory.decodeByteArray(bytes, 0, length, options);
+		} finally {
+			options.inTempStorage = null;
+			pool.returnBuf(tempStorage);
+		}
+	}
+
 	/**
 	 * @Title: decodeSampledBitmapFromDescriptor
 	 * @Description: 压缩图片数据
@@ -154,8 +241,23 @@ public class ImageDecoder {
 	 */
 	private static int calculateInSampleSize(BitmapFactory.Options options,
 			int reqWidth, int reqHeight) {
-		final int height = options.outHeight;
-		final int width = options.outWidth;
+		return calculateInSampleSize(options.outWidth, options.outHeight,
+				reqWidth, reqHeight);
+	}
+
+	/**
+	 * @Title: calculateInSampleSize
+	 * @Description: 根据图片原始宽高计算图片压缩比
+	 * @param @param width
+	 * @param @param height
+	 * @param @param reqWidth
+	 * @param @param reqHeight
+	 * @param @return
+	 * @return int
+	 * @throws
+	 */
+	public static int calculateInSampleSize(int width, int height,
+			int reqWidth, int reqHeight) {
 		int inSampleSize = 1;
 
 		if (height > reqHeight || width > reqWidth) {
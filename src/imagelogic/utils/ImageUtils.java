@@ -6,6 +6,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
@@ -103,6 +104,17 @@ public class ImageUtils {
 		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1;
 	}
 
+	/**
+	 * @Title: hasIceCreamSandwich
+	 * @Description: 判断系统版本是否大于4.0
+	 * @param @return
+	 * @return boolean true 大于 false 小于
+	 * @throws
+	 */
+	public static boolean hasIceCreamSandwich() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH;
+	}
+
 	/**
 	 * @Title: getDiskCacheDir
 	 * @Description: 获取磁盘缓存图片目录文件
@@ -133,7 +145,7 @@ public class ImageUtils {
 				.getExternalStorageState()) ? getExternalCacheDir(context)
 				.getPath() : getInternalCacheDir(context).getPath();
 		cachePath = cachePath + File.separator + IMAGE_DIR + File.separator;
-		String key = ImageUtils.CalcUrl2Md5(url);
+		String key = CacheKey.of(url).getFileName();
 		cachePath = cachePath + key;
 		return cachePath;
 	}
@@ -152,10 +164,12 @@ public class ImageUtils {
 				.getExternalStorageState()) ? getExternalCacheDir(context)
 				.getPath() : getInternalCacheDir(context).getPath();
 		cachePath = cachePath + File.separator + IMAGE_DIR + File.separator;
-		String key = ImageUtils.CalcUrl2Md5(url);
-		cachePath = cachePath + key;
-		if (new File(cachePath).exists())
-			return cachePath;
+		CacheKey key = CacheKey.of(url);
+		if (new File(cachePath + key.getFileName()).exists())
+			return cachePath + key.getFileName();
+		// 还没有迁移的旧缓存文件
+		if (new File(cachePath + key.getLegacyFileName()).exists())
+			return cachePath + key.getLegacyFileName();
 		return null;
 	}
 
@@ -496,6 +510,133 @@ public class ImageUtils {
 		return null;
 	}
 
+	/**
+	 * @Title: getBytes
+	 * @Description: 获取字节数组，数据直接读进结果数组，同时写入teeStream，不经过中间缓冲
+	 * @param @param is 输入流，读完后关闭
+	 * @param @param expectedLength 数据长度(Content-Length)，未知传-1
+	 * @param @param teeStream 同时写入的输出流，可以为空，不会关闭
+	 * @return byte[] 失败返回null
+	 * @throws
+	 */
+	public static byte[] getBytes(InputStream is, int expectedLength,
+			OutputStream teeStream) {
+		ByteArrayPool.Buffer buffer = getPooledBytes(is, expectedLength,
+				teeStream, null);
+		return buffer != null ? buffer.data : null;
+	}
+
+	/**
+	 * @Title: getPooledBytes
+	 * @Description: 获取字节数组，数组从池中借出，按数据长度(Content-Length)一次借够，用完调用release还回
+	 * @param @param is 输入流，读完后关闭
+	 * @param @param expectedLength 数据长度(Content-Length)，未知传-1
+	 * @param @param teeStream 同时写入的输出流，可以为空，不会关闭
+	 * @param @param pool 为空的时候新建数组，返回的数组长度等于数据长度
+	 * @return ByteArrayPool.Buffer 失败返回null
+	 * @throws
+	 */
+	public static ByteArrayPool.Buffer getPooledBytes(InputStream is,
+			int expectedLength, OutputStream teeStream, ByteArrayPool pool) {
+		try {
+			return readPooledBytes(is, expectedLength, teeStream, pool);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				if (is != null) {
+					is.close();
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @Title: readPooledBytes
+	 * @Description: 和getPooledBytes一样读到池中借来的数组，但是不关闭输入流，正常返回的时候输入流已经读到结尾，
+	 *               HTTP连接可以放回连接池
+	 * @param @param is 输入流，由调用方关闭
+	 * @param @param expectedLength 数据长度(Content-Length)，未知传-1
+	 * @param @param teeStream 同时写入的输出流，可以为空，不会关闭
+	 * @param @param pool 为空的时候新建数组，返回的数组长度等于数据长度
+	 * @return ByteArrayPool.Buffer
+	 * @throws IOException 读取失败或者数据不完整
+	 */
+	public static ByteArrayPool.Buffer readPooledBytes(InputStream is,
+			int expectedLength, OutputStream teeStream, ByteArrayPool pool)
+			throws IOException {
+		int initial = expectedLength > 0 ? expectedLength : 16 * 1024;
+		byte[] bytes = pool != null ? pool.getBuf(initial) : new byte[initial];
+		int count = 0;
+		int rc = 0;
+		try {
+			while (true) {
+				if (count == bytes.length) {
+					if (count == expectedLength) {
+						// 长度已知，检查是否还有多余数据
+						int b = is.read();
+						if (b == -1) {
+							break;
+						}
+						bytes = grow(bytes, count, count * 2, pool);
+						bytes[count++] = (byte) b;
+						if (teeStream != null) {
+							teeStream.write(b);
+						}
+						continue;
+					}
+					bytes = grow(bytes, count, count * 2, pool);
+				}
+				rc = is.read(bytes, count, bytes.length - count);
+				if (rc == -1) {
+					break;
+				}
+				if (teeStream != null) {
+					teeStream.write(bytes, count, rc);
+				}
+				count += rc;
+			}
+			if (expectedLength > 0 && count < expectedLength) {
+				throw new IOException("Expected " + expectedLength
+						+ " bytes, read " + count + " bytes");
+			}
+			if (pool == null && count != bytes.length) {
+				bytes = copyOf(bytes, count);
+			}
+			ByteArrayPool.Buffer buffer = new ByteArrayPool.Buffer(pool, bytes,
+					count);
+			bytes = null;
+			return buffer;
+		} finally {
+			if (pool != null && bytes != null) {
+				pool.returnBuf(bytes);
+			}
+		}
+	}
+
+	// 扩大数组，旧的数组还回池中
+	private static byte[] grow(byte[] bytes, int count, int newLength,
+			ByteArrayPool pool) {
+		if (pool == null) {
+			return copyOf(bytes, newLength);
+		}
+		byte[] result = pool.getBuf(newLength);
+		System.arraycopy(bytes, 0, result, 0, count);
+		pool.returnBuf(bytes);
+		return result;
+	}
+
+	// Arrays.copyOf在2.3以后才有
+	private static byte[] copyOf(byte[] original, int newLength) {
+		byte[] result = new byte[newLength];
+		System.arraycopy(original, 0, result, 0,
+				Math.min(original.length, newLength));
+		return result;
+	}
+
 	// 获取字节数组
 	public static byte[] getBytes(File file) {
 		byte[] buffer = null;
@@ -0,0 +1,105 @@
+package imagelogic.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import imagelogic.disk.CacheHeader;
+import imagelogic.disk.DiskBasedCache;
+import imagelogic.utils.ByteArrayPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.graphics.Bitmap;
+
+/**
+ * 预览下载的校验值测试。磁盘缓存的临时文件被ProgressiveJpegOutputStream包装以后，
+ * 下载类设置的ETag和Last-Modified也要保存到缓存项中，否则刷新图片只能重新下载。
+ *
+ */
+public class ProgressiveJpegOutputStreamTest {
+	private static final String KEY = "preview";
+	private static final String ETAG = "\"p1\"";
+	private static final String LAST_MODIFIED = "Mon, 19 Oct 2026 00:00:00 GMT";
+
+	private final byte[] mBody = new byte[16 * 1024];
+	private StubHttpServer mServer;
+	private File mRoot;
+	private DiskBasedCache mCache;
+
+	@Before
+	public void setUp() throws IOException {
+		new Random(42).nextBytes(mBody);
+		mServer = new StubHttpServer();
+		mServer.enqueue(new StubHttpServer.Response("200 OK", "ETag: " + ETAG
+				+ "\r\nLast-Modified: " + LAST_MODIFIED + "\r\n", mBody,
+				mBody.length));
+		mRoot = File.createTempFile("preview", "");
+		mRoot.delete();
+		mRoot.mkdirs();
+		mCache = new DiskBasedCache(mRoot);
+	}
+
+	@After
+	public void tearDown() {
+		mServer.close();
+		File[] files = mRoot.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		mRoot.delete();
+	}
+
+	@Test(timeout = 10000)
+	public void previewedDownloadStoresValidators() throws Exception {
+		ImageSimpleHttpDownloader downloader = new ImageSimpleHttpDownloader(
+				false);
+		downloader.setHostBreaker(null);
+		OutputStream out = mCache.getTempOutputStream(KEY);
+		OutputStream tee = preview(out);
+		ByteArrayPool.Buffer buffer = downloader.downloadPooledBytesByUrl(
+				mServer.getUrl(), tee, ByteArrayPool.getDefault());
+		assertNotNull(buffer);
+		buffer.release();
+		assertCommitted(out, tee);
+	}
+
+	@Test(timeout = 10000)
+	public void previewedNioDownloadStoresValidators() throws Exception {
+		OutputStream out = mCache.getTempOutputStream(KEY);
+		OutputStream tee = preview(out);
+		ByteArrayPool.Buffer buffer = new NioImageDownloader()
+				.downloadPooledBytesByUrl(mServer.getUrl(), tee);
+		assertNotNull(buffer);
+		buffer.release();
+		assertCommitted(out, tee);
+	}
+
+	private static OutputStream preview(OutputStream out) {
+		return new ProgressiveJpegOutputStream(out, 100, 100,
+				new ProgressiveJpegOutputStream.PreviewListener() {
+					@Override
+					public void onPreview(Bitmap preview) {
+					}
+				});
+	}
+
+	private void assertCommitted(OutputStream out, OutputStream tee)
+			throws IOException {
+		tee.close();
+		out.close();
+		mCache.commit(out);
+		CacheHeader header = mCache.getHeader(KEY);
+		assertNotNull(header);
+		assertEquals(mBody.length, header.size);
+		assertEquals(ETAG, header.etag);
+		assertEquals(LAST_MODIFIED, header.lastModified);
+	}
+}
@@ -0,0 +1,208 @@
+package imagelogic.download;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import imagelogic.disk.DiskBasedCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 断点续传测试。本地的桩服务端按脚本返回响应，可以在响应体中途断开连接，
+ * 检查重试时的Range/If-Range请求、206/200/416的处理，以及续传以后crc覆盖整个文件。
+ * 下载和磁盘缓存之间的衔接和ImageProcess.downloadImageResumable一样。
+ *
+ */
+public class ResumableDownloadTest {
+	private static final String KEY = "resume";
+	private static final String ETAG = "\"v1\"";
+	private static final int SIZE = 48 * 1024;
+
+	private final byte[] mBody = new byte[SIZE];
+	private StubHttpServer mServer;
+	private File mRoot;
+	private DiskBasedCache mCache;
+	private ImageSimpleHttpDownloader mDownloader;
+
+	@Before
+	public void setUp() throws IOException {
+		new Random(35).nextBytes(mBody);
+		mServer = new StubHttpServer();
+		mRoot = File.createTempFile("resume", "");
+		mRoot.delete();
+		mRoot.mkdirs();
+		mCache = new DiskBasedCache(mRoot);
+		mDownloader = new ImageSimpleHttpDownloader(false);
+		// 桩服务端故意失败，不能让熔断影响后面的请求
+		mDownloader.setHostBreaker(null);
+	}
+
+	@After
+	public void tearDown() {
+		mServer.close();
+		File[] files = mRoot.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		mRoot.delete();
+	}
+
+	@Test(timeout = 10000)
+	public void droppedDownloadResumesWithRangeAndIfRange() throws Exception {
+		mServer.enqueue(full(SIZE / 3));
+		mServer.enqueue(partial(SIZE / 3, SIZE * 2 / 3));
+		mServer.enqueue(partial(SIZE * 2 / 3, SIZE));
+
+		assertFalse(download());
+		assertEquals(SIZE / 3, mCache.getPartialLength(KEY));
+		assertEquals(ETAG, mCache.getPartialValidator(KEY));
+		assertFalse(download());
+		assertEquals(SIZE * 2 / 3, mCache.getPartialLength(KEY));
+		assertTrue(download());
+
+		List<Map<String, String>> requests = mServer.getRequests();
+		assertEquals(3, requests.size());
+		assertNull(requests.get(0).get("range"));
+		assertNull(requests.get(0).get("if-range"));
+		assertEquals("bytes=" + SIZE / 3 + "-", requests.get(1).get("range"));
+		assertEquals(ETAG, requests.get(1).get("if-range"));
+		assertEquals("identity", requests.get(1).get("accept-encoding"));
+		assertEquals("bytes=" + SIZE * 2 / 3 + "-", requests.get(2).get("range"));
+		assertCommitted();
+	}
+
+	@Test(timeout = 10000)
+	public void fullResponseToRangeRequestOverwritesPartial() throws Exception {
+		mServer.enqueue(full(SIZE / 2));
+		// 文件变了，服务端忽略Range返回完整的内容
+		mServer.enqueue(full(SIZE));
+
+		assertFalse(download());
+		assertEquals(SIZE / 2, mCache.getPartialLength(KEY));
+		assertTrue(download());
+		assertEquals("bytes=" + SIZE / 2 + "-",
+				mServer.getRequests().get(1).get("range"));
+		assertCommitted();
+	}
+
+	@Test(timeout = 10000)
+	public void wrongContentRangeDiscardsPartial() throws Exception {
+		mServer.enqueue(full(SIZE / 2));
+		mServer.enqueue(partial(SIZE / 4, SIZE));
+		mServer.enqueue(full(SIZE));
+
+		assertFalse(download());
+		assertFalse(download());
+		assertEquals(0, mCache.getPartialLength(KEY));
+		assertTrue(download());
+		assertNull(mServer.getRequests().get(2).get("range"));
+		assertCommitted();
+	}
+
+	@Test(timeout = 10000)
+	public void rangeNotSatisfiableDiscardsPartial() throws Exception {
+		mServer.enqueue(full(SIZE / 2));
+		mServer.enqueue(new StubHttpServer.Response(
+				"416 Requested Range Not Satisfiable", "ETag: " + ETAG
+						+ "\r\nContent-Range: bytes */" + SIZE + "\r\n",
+				new byte[0], 0));
+		mServer.enqueue(full(SIZE));
+
+		assertFalse(download());
+		assertFalse(download());
+		assertEquals(0, mCache.getPartialLength(KEY));
+		assertNull(mCache.getPartialValidator(KEY));
+		assertTrue(download());
+		assertNull(mServer.getRequests().get(2).get("range"));
+		assertCommitted();
+	}
+
+	// 提交以后的文件是完整的内容，crc包括续传以前已经在磁盘上的部分
+	private void assertCommitted() {
+		assertEquals(0, mCache.getPartialLength(KEY));
+		assertArrayEquals(mBody, mCache.getData(KEY));
+		CRC32 crc = new CRC32();
+		crc.update(mBody);
+		assertEquals(crc.getValue(), mCache.getHeader(KEY).crc);
+		assertEquals(ETAG, mCache.getHeader(KEY).etag);
+	}
+
+	// 和ImageProcess.downloadImageResumable一样的衔接
+	private boolean download() throws Exception {
+		assertTrue(mCache.lockPartial(KEY));
+		try {
+			final long offset = mCache.getPartialLength(KEY);
+			final String validator = offset > 0 ? mCache
+					.getPartialValidator(KEY) : null;
+			final String[] responseValidator = { validator };
+			final OutputStream[] out = new OutputStream[1];
+			boolean success = mDownloader.downloadToLocalStreamByUrl(
+					mServer.getUrl(),
+					new ResumableImageDownloader.PartialTarget() {
+						@Override
+						public long getOffset() {
+							return offset;
+						}
+
+						@Override
+						public String getValidator() {
+							return validator;
+						}
+
+						@Override
+						public OutputStream openStream(boolean resume,
+								String validator) throws IOException {
+							responseValidator[0] = validator;
+							try {
+								out[0] = mCache.getTempOutputStream(KEY, resume);
+							} catch (IOException e) {
+								throw e;
+							} catch (Exception e) {
+								throw new IOException(e.toString());
+							}
+							return out[0];
+						}
+					});
+			if (out[0] != null) {
+				out[0].close();
+			}
+			if (success && out[0] != null) {
+				mCache.commit(out[0]);
+			} else {
+				mCache.keepPartial(KEY, responseValidator[0]);
+			}
+			return success;
+		} finally {
+			mCache.unlockPartial(KEY);
+		}
+	}
+
+	// 200响应，发送到dropAt就断开
+	private StubHttpServer.Response full(int dropAt) {
+		return new StubHttpServer.Response("200 OK", "ETag: " + ETAG + "\r\n",
+				mBody, dropAt);
+	}
+
+	// 206响应[start, end)，总是声明到文件末尾，发送到end就断开
+	private StubHttpServer.Response partial(int start, int end) {
+		byte[] rest = new byte[SIZE - start];
+		System.arraycopy(mBody, start, rest, 0, rest.length);
+		return new StubHttpServer.Response("206 Partial Content", "ETag: "
+				+ ETAG + "\r\nContent-Range: bytes " + start + "-"
+				+ (SIZE - 1) + "/" + SIZE + "\r\n", rest, end - start);
+	}
+}
@@ -0,0 +1,112 @@
+package imagelogic.download;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按顺序返回脚本响应的HTTP桩服务端，每个连接只处理一个请求，可以在响应体中途断开。
+ * 记录收到的请求头(小写)，用于检查下载类发出的请求。
+ *
+ */
+class StubHttpServer implements Runnable {
+	private final ServerSocket mSocket;
+	private final List<Response> mResponses = new ArrayList<Response>();
+	private final List<Map<String, String>> mRequests = new ArrayList<Map<String, String>>();
+
+	static class Response {
+		final String status;
+		final String headers;// 除Content-Length以外的响应头，每行以\r\n结尾
+		final byte[] body;
+		final int sendBytes;// 发送的字节数，小于body长度表示中途断开
+
+		Response(String status, String headers, byte[] body, int sendBytes) {
+			this.status = status;
+			this.headers = headers;
+			this.body = body;
+			this.sendBytes = sendBytes;
+		}
+	}
+
+	StubHttpServer() throws IOException {
+		mSocket = new ServerSocket(0);
+		Thread thread = new Thread(this, "StubHttpServer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	String getUrl() {
+		return "http://127.0.0.1:" + mSocket.getLocalPort() + "/image.jpg";
+	}
+
+	synchronized void enqueue(Response response) {
+		mResponses.add(response);
+	}
+
+	synchronized List<Map<String, String>> getRequests() {
+		return new ArrayList<Map<String, String>>(mRequests);
+	}
+
+	void close() {
+		try {
+			mSocket.close();
+		} catch (IOException ignored) {
+		}
+	}
+
+	@Override
+	public void run() {
+		while (!mSocket.isClosed()) {
+			Socket socket = null;
+			try {
+				socket = mSocket.accept();
+				serve(socket);
+			} catch (IOException ignored) {
+			} finally {
+				if (socket != null) {
+					try {
+						socket.close();
+					} catch (IOException ignored) {
+					}
+				}
+			}
+		}
+	}
+
+	private void serve(Socket socket) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				socket.getInputStream(), "ISO-8859-1"));
+		Map<String, String> request = new HashMap<String, String>();
+		String line = reader.readLine();
+		while ((line = reader.readLine()) != null && line.length() > 0) {
+			int colon = line.indexOf(':');
+			if (colon > 0) {
+				request.put(line.substring(0, colon).trim().toLowerCase(),
+						line.substring(colon + 1).trim());
+			}
+		}
+		Response response;
+		synchronized (this) {
+			mRequests.add(request);
+			response = mResponses.isEmpty() ? null : mResponses.remove(0);
+		}
+		OutputStream out = socket.getOutputStream();
+		if (response == null) {
+			out.write("HTTP/1.1 500 No Script\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+					.getBytes("ISO-8859-1"));
+			return;
+		}
+		out.write(("HTTP/1.1 " + response.status + "\r\nContent-Length: "
+				+ response.body.length + "\r\n" + response.headers
+				+ "Connection: close\r\n\r\n").getBytes("ISO-8859-1"));
+		out.write(response.body, 0, response.sendBytes);
+		out.flush();
+	}
+}
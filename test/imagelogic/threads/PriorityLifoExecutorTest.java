@@ -0,0 +1,299 @@
+package imagelogic.threads;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * PriorityLifoExecutor的调度测试。
+ * 先用一个阻塞的任务占住线程，排好队以后再放开，执行顺序和并发限制都是确定的。
+ *
+ */
+public class PriorityLifoExecutorTest {
+	private static final int VISIBLE = PriorityLifoExecutor.PRIORITY_VISIBLE;
+	private static final int NEAR_VISIBLE = PriorityLifoExecutor.PRIORITY_NEAR_VISIBLE;
+	private static final int PREFETCH = PriorityLifoExecutor.PRIORITY_PREFETCH;
+
+	// 测试结束以后不等待空闲线程
+	private static final ThreadFactory DAEMON = new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "PriorityLifoExecutorTest");
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+
+	private final List<String> mLog = Collections
+			.synchronizedList(new ArrayList<String>());
+
+	// 高优先级的档先执行，同一档后提交的先执行
+	@Test(timeout = 5000)
+	public void higherBandFirstAndLifoWithinBand() throws Exception {
+		PriorityLifoExecutor executor = new PriorityLifoExecutor(1, DAEMON);
+		CountDownLatch gate = block(executor);
+		Task p1 = submit(executor, new Task("p1", PREFETCH, null));
+		Task v1 = submit(executor, new Task("v1", VISIBLE, null));
+		Task n1 = submit(executor, new Task("n1", NEAR_VISIBLE, null));
+		Task v2 = submit(executor, new Task("v2", VISIBLE, null));
+		Task p2 = submit(executor, new Task("p2", PREFETCH, null));
+		gate.countDown();
+		awaitDone(p1, v1, n1, v2, p2);
+		assertEquals(Arrays.asList("blocker", "v2", "v1", "n1", "p2", "p1"),
+				mLog);
+	}
+
+	// 修改优先级以后按新的档重新排队，排到这一档的最前面
+	@Test(timeout = 5000)
+	public void setPriorityMovesQueuedTaskToFrontOfNewBand() throws Exception {
+		PriorityLifoExecutor executor = new PriorityLifoExecutor(1, DAEMON);
+		CountDownLatch gate = block(executor);
+		Task a = submit(executor, new Task("a", PREFETCH, null));
+		Task b = submit(executor, new Task("b", VISIBLE, null));
+		Task c = submit(executor, new Task("c", VISIBLE, null));
+		Task d = submit(executor, new Task("d", PREFETCH, null));
+		a.setPriority(executor, VISIBLE);
+		c.setPriority(executor, PREFETCH);
+		gate.countDown();
+		awaitDone(a, b, c, d);
+		assertEquals(Arrays.asList("blocker", "a", "b", "c", "d"), mLog);
+	}
+
+	// 开始执行前已经没有意义的任务不执行，Future被取消
+	@Test(timeout = 5000)
+	public void obsoleteTaskIsDroppedAndCancelled() throws Exception {
+		PriorityLifoExecutor executor = new PriorityLifoExecutor(1, DAEMON);
+		CountDownLatch gate = block(executor);
+		Task kept = submit(executor, new Task("kept", VISIBLE, null));
+		ObsoleteFuture dropped = new ObsoleteFuture();
+		executor.execute(dropped);
+		Task last = submit(executor, new Task("last", PREFETCH, null));
+		gate.countDown();
+		awaitDone(kept, last);
+		assertEquals(Arrays.asList("blocker", "kept", "last"), mLog);
+		assertTrue(dropped.isCancelled());
+	}
+
+	// 同一个主机的任务数满了，排在前面的任务跳过，别的主机的任务照样执行
+	@Test(timeout = 5000)
+	public void perHostCapLeavesThreadsForOtherHosts() throws Exception {
+		PriorityLifoExecutor executor = new PriorityLifoExecutor(2, DAEMON);
+		executor.setMaxRequestsPerHost(1);
+		CountDownLatch gate = new CountDownLatch(1);
+		Task a1 = submit(executor, new Task("a1", VISIBLE, "a", gate));
+		assertTrue(a1.started.await(1, TimeUnit.SECONDS));
+		Task a2;
+		Task b;
+		// 一次提交，a2在b前面，空闲线程只能跳过a2执行b
+		synchronized (executor) {
+			b = submit(executor, new Task("b", VISIBLE, "b"));
+			a2 = submit(executor, new Task("a2", VISIBLE, "a"));
+		}
+		try {
+			assertTrue("主机b的任务没有执行", b.done.await(1, TimeUnit.SECONDS));
+			assertEquals(1, a2.started.getCount());
+		} finally {
+			gate.countDown();
+		}
+		awaitDone(a1, a2);
+		assertEquals(Arrays.asList("a1", "b", "a2"), mLog);
+	}
+
+	// 预加载任务最多占用线程数减一个线程，前台任务总有线程可用
+	@Test(timeout = 5000)
+	public void prefetchCapLeavesAThreadForForegroundWork() throws Exception {
+		PriorityLifoExecutor executor = new PriorityLifoExecutor(2, DAEMON);
+		CountDownLatch gate = new CountDownLatch(1);
+		Task p1 = submit(executor, new Task("p1", PREFETCH, null, gate));
+		assertTrue(p1.started.await(1, TimeUnit.SECONDS));
+		Task p2 = submit(executor, new Task("p2", PREFETCH, null, gate));
+		Task v;
+		try {
+			v = submit(executor, new Task("v", VISIBLE, null));
+			assertTrue("前台任务没有线程", v.done.await(1, TimeUnit.SECONDS));
+			assertEquals(1, p2.started.getCount());
+		} finally {
+			gate.countDown();
+		}
+		awaitDone(p1, p2);
+		assertEquals(Arrays.asList("p1", "v", "p2"), mLog);
+	}
+
+	// 线程空闲以后提交的一批任务要分到多个线程上同时执行
+	@Test(timeout = 5000)
+	public void burstAfterIdleRunsInParallel() throws Exception {
+		final PriorityLifoExecutor executor = new PriorityLifoExecutor(4,
+				Executors.defaultThreadFactory());
+		final CountDownLatch warmUp = new CountDownLatch(1);
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				warmUp.countDown();
+			}
+		});
+		assertTrue(warmUp.await(1, TimeUnit.SECONDS));
+		Thread.sleep(100);// 等线程进入空闲
+
+		final CountDownLatch started = new CountDownLatch(4);
+		final CountDownLatch release = new CountDownLatch(1);
+		// 持有executor的锁一次提交，空闲线程在提交完以前醒不过来
+		synchronized (executor) {
+			for (int i = 0; i < 4; i++) {
+				executor.execute(new VisibleTask() {
+					@Override
+					public void run() {
+						started.countDown();
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							// 测试结束
+						}
+					}
+				});
+			}
+		}
+		try {
+			assertTrue("4个任务没有同时执行", started.await(1, TimeUnit.SECONDS));
+		} finally {
+			release.countDown();
+		}
+	}
+
+	// 可见图片的任务，不受预加载并发数限制
+	private static abstract class VisibleTask implements Runnable,
+			PriorityLifoExecutor.Prioritized {
+		@Override
+		public int getPriority() {
+			return PriorityLifoExecutor.PRIORITY_VISIBLE;
+		}
+
+		@Override
+		public boolean isObsolete() {
+			return false;
+		}
+
+		@Override
+		public String getHost() {
+			return null;
+		}
+	}
+
+	// 用一个可见任务占住线程，返回放开它的门
+	private CountDownLatch block(PriorityLifoExecutor executor)
+			throws InterruptedException {
+		CountDownLatch gate = new CountDownLatch(1);
+		Task blocker = submit(executor, new Task("blocker", VISIBLE, null,
+				gate));
+		assertTrue(blocker.started.await(1, TimeUnit.SECONDS));
+		return gate;
+	}
+
+	private static Task submit(PriorityLifoExecutor executor, Task task) {
+		executor.execute(task);
+		return task;
+	}
+
+	private static void awaitDone(Task... tasks) throws InterruptedException {
+		for (Task task : tasks) {
+			assertTrue(task.name + "没有执行",
+					task.done.await(1, TimeUnit.SECONDS));
+		}
+	}
+
+	// 记录执行顺序的任务，有门的时候等门打开才结束
+	private class Task implements Runnable, PriorityLifoExecutor.Prioritized {
+		final String name;
+		final String host;
+		final CountDownLatch gate;
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile int priority;
+
+		Task(String name, int priority, String host) {
+			this(name, priority, host, null);
+		}
+
+		Task(String name, int priority, String host, CountDownLatch gate) {
+			this.name = name;
+			this.priority = priority;
+			this.host = host;
+			this.gate = gate;
+		}
+
+		// 和ImageAsyncTask.setPriority一样
+		void setPriority(PriorityLifoExecutor executor, int priority) {
+			this.priority = priority;
+			executor.reprioritize(this);
+		}
+
+		@Override
+		public void run() {
+			mLog.add(name);
+			started.countDown();
+			try {
+				if (gate != null) {
+					gate.await();
+				}
+			} catch (InterruptedException e) {
+				// 测试结束
+			} finally {
+				done.countDown();
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return priority;
+		}
+
+		@Override
+		public boolean isObsolete() {
+			return false;
+		}
+
+		@Override
+		public String getHost() {
+			return host;
+		}
+	}
+
+	// 已经没有意义的任务，和ImageAsyncTask一样是Future
+	private class ObsoleteFuture extends FutureTask<Void> implements
+			PriorityLifoExecutor.Prioritized {
+		ObsoleteFuture() {
+			super(new Runnable() {
+				@Override
+				public void run() {
+					mLog.add("obsolete");
+				}
+			}, null);
+		}
+
+		@Override
+		public int getPriority() {
+			return VISIBLE;
+		}
+
+		@Override
+		public boolean isObsolete() {
+			return true;
+		}
+
+		@Override
+		public String getHost() {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package imagelogic.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * CacheKey的哈希和文件名测试。哈希要和MurmurHash3 x64 128位的参考实现一致，
+ * 旧版本的MD5文件名要能识别出来才能迁移。
+ *
+ */
+public class CacheKeyTest {
+	private static final String URL = "http://img.example.com/a/b/c.jpg?w=100";
+
+	@Test
+	public void legacyFileNameFromCalcUrl2Md5IsDetected() {
+		String name = ImageUtils.CalcUrl2Md5(URL);
+		assertTrue(name, CacheKey.isLegacyFileName(name));
+		assertEquals(name, CacheKey.of(URL).getLegacyFileName());
+	}
+
+	@Test
+	public void legacyFileNameIgnoresCase() {
+		assertTrue(CacheKey.isLegacyFileName("0123456789abcdef0123456789ABCDEF.0"));
+	}
+
+	@Test
+	public void otherNamesAreNotLegacy() {
+		assertFalse(CacheKey.isLegacyFileName(CacheKey.of(URL).getFileName()));
+		assertFalse(CacheKey.isLegacyFileName("0123456789abcdef0123456789ABCDEG.0"));
+		assertFalse(CacheKey.isLegacyFileName("0123456789abcdef0123456789abcdef.1"));
+		assertFalse(CacheKey.isLegacyFileName("0123456789abcdef0123456789abcdef"));
+	}
+
+	// 参考实现的已知结果，种子为0
+	@Test
+	public void murmur3MatchesKnownVectors() throws Exception {
+		assertHash(0xcbd8a7b341bd9b02L, 0x5b1e906a48ae1d19L, "hello");
+		assertHash(0x629942693e10f867L, 0x92db0b82baeb5347L, "hell");
+		assertHash(0xe34bbc7bbc071b6cL, 0x7a433ca9c49a9347L,
+				"The quick brown fox jumps over the lazy dog");
+	}
+
+	// 文件名是26个字符的小写base32，不同地址的文件名不同
+	@Test
+	public void fileNameIsLowercaseBase32() {
+		for (String url : new String[] { "", URL, URL + "&h=100",
+				"http://img.example.com/中文.png" }) {
+			String name = CacheKey.of(url).getFileName();
+			assertEquals(name, 26, name.length());
+			for (int i = 0; i < name.length(); i++) {
+				char c = name.charAt(i);
+				assertTrue(name, (c >= 'a' && c <= 'z') || (c >= '2' && c <= '7'));
+			}
+		}
+		assertFalse(CacheKey.of(URL).getFileName()
+				.equals(CacheKey.of(URL + "&h=100").getFileName()));
+	}
+
+	// 最近使用的地址直接返回同一个key
+	@Test
+	public void recentKeysAreMemoized() {
+		assertSame(CacheKey.of(URL), CacheKey.of(URL));
+		assertNotSame(CacheKey.of(URL), CacheKey.of(URL + "&h=100"));
+	}
+
+	private static void assertHash(long high, long low, String input)
+			throws Exception {
+		long[] hash = CacheKey.murmur3Hash128(input.getBytes("UTF-8"), 0);
+		assertEquals(input, high, hash[0]);
+		assertEquals(input, low, hash[1]);
+	}
+}